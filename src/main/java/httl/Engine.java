@@ -267,4 +267,22 @@ public abstract class Engine {
      */
     public abstract Template getTemplate(String name, String encoding) throws IOException, ParseException;
 
+    /**
+     * Destroy the engine, stop its background threads and release its registrations.
+     * 
+     * Call it when the engine is no longer used, e.g. when the web application is stopped,
+     * the next getEngine() with the same config creates a new engine.
+     * 
+     * @see #getEngine()
+     */
+    public void destroy() {
+    	String name = getName();
+    	if (name != null) {
+    		VolatileReference<Engine> reference = ENGINES.get(name);
+    		if (reference != null && reference.get() == this) {
+    			ENGINES.remove(name, reference);
+    		}
+    	}
+    }
+
 }
@@ -0,0 +1,40 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi;
+
+import java.text.ParseException;
+
+/**
+ * Batch Java Compiler. (SPI, Singleton, ThreadSafe)
+ * 
+ * The optional capability of the compiler, the parser compiles one by one without it.
+ * 
+ * @see httl.spi.parsers.AbstractParser#precompile(java.util.List)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface BatchCompiler extends Compiler {
+
+    /**
+     * Compile java source codes in a batch.
+     * 
+     * @param codes Java source codes
+     * @return Compiled classes, in the same order of the codes
+     */
+    Class<?>[] compile(String[] codes) throws ParseException;
+
+}
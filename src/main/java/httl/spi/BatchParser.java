@@ -0,0 +1,41 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi;
+
+import httl.Resource;
+
+import java.util.List;
+
+/**
+ * Batch Template Parser. (SPI, Singleton, ThreadSafe)
+ * 
+ * The optional capability of the parser, the engine parses one by one without it.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setPrecompiled(boolean)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface BatchParser extends Parser {
+
+    /**
+     * Compile the template classes in batches, so the following parse(resource) need not to invoke the compiler for each class.
+     * 
+     * @param resources - template resources
+     */
+    void precompile(List<Resource> resources);
+
+}
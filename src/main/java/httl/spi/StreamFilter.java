@@ -0,0 +1,39 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi;
+
+import java.io.IOException;
+
+/**
+ * Stream Filter. (SPI, Singleton, ThreadSafe)
+ * 
+ * @see httl.spi.parsers.AbstractParser#setValueFilter(Filter)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface StreamFilter extends Filter {
+
+    /**
+     * Filter the variable value to the output, without the intermediate filtered string.
+     * 
+     * @param value - Original variable value
+     * @param output - Filtered variable value output
+     * @throws IOException - If an I/O error occurs
+     */
+    void filter(CharSequence value, Appendable output) throws IOException;
+
+}
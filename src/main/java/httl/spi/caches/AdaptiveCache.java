@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * AdaptiveCache. (SPI, Singleton, ThreadSafe)
@@ -34,6 +35,8 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class AdaptiveCache<K, V> implements ConcurrentMap<K, V> {
 
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	private ConcurrentMap<K, V> cache;
 
 	/**
@@ -41,7 +44,13 @@ public class AdaptiveCache<K, V> implements ConcurrentMap<K, V> {
 	 */
 	public void setCacheCapacity(int capacity) {
 		if (capacity > 0) {
-			cache = new ConcurrentLinkedHashMap<K, V>(capacity);
+			cache = new ConcurrentLinkedHashMap.Builder<K, V>()
+					.maximumWeightedCapacity(capacity)
+					.listener(new ConcurrentLinkedHashMap.EvictionListener<K, V>() {
+						public void onEviction(K key, V value) {
+							evictionCount.incrementAndGet();
+						}
+					}).build();
 		} else {
 			cache = new ConcurrentHashMap<K, V>();
 		}
@@ -53,6 +62,13 @@ public class AdaptiveCache<K, V> implements ConcurrentMap<K, V> {
 		}
 	}
 
+	/**
+	 * Get the count of the entries evicted by the capacity.
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
 	public void clear() {
 		cache.clear();
 	}
@@ -0,0 +1,64 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.caches;
+
+import httl.Expression;
+import httl.spi.engines.ExpressionVariants;
+
+/**
+ * ExpressionTinyLfuCache. (SPI, Singleton, ThreadSafe)
+ * 
+ * Weigh the expressions by the source and generated code length of the variants,
+ * the evaluator classes are compiled lazily and shared, so the code length is the estimate of the bytecode.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setExpressionCache(java.util.Map)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ExpressionTinyLfuCache<K, V> extends TinyLfuCache<K, V> {
+
+	/**
+	 * httl.properties: expression.cache.maximum.weight=33554432
+	 */
+	public void setExpressionCacheMaximumWeight(long maximumWeight) {
+		super.setCacheMaximumWeight(maximumWeight);
+	}
+
+	/**
+	 * httl.properties: expression.cache.pinned=
+	 */
+	public void setExpressionCachePinned(String[] sources) {
+		super.setCachePinned(sources);
+	}
+
+	@Override
+	protected int weigh(K key, V value) {
+		if (! (value instanceof ExpressionVariants)) {
+			return 1;
+		}
+		int weight = 0;
+		for (Expression expression : ((ExpressionVariants) value).getExpressions()) {
+			weight += expression.getSource().length();
+			String code = expression.getCode();
+			if (code != null) {
+				weight += code.length();
+			}
+		}
+		return weight;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.caches;
+
+import httl.util.ConcurrentLinkedHashMap;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FragmentCache. (SPI, Singleton, ThreadSafe)
+ * 
+ * Cache the rendered chars or bytes of the #cache(key, ttl) blocks, bounded by the size of the cached fragments.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setFragmentCache(FragmentCache)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class FragmentCache {
+
+	private static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private final AtomicLong expirationCount = new AtomicLong();
+
+	private ConcurrentMap<FragmentKey, Fragment> cache;
+
+	/**
+	 * httl.properties: fragment.cache.capacity=16777216
+	 */
+	public void setFragmentCacheCapacity(int capacity) {
+		cache = new ConcurrentLinkedHashMap.Builder<FragmentKey, Fragment>()
+				.maximumWeightedCapacity(capacity > 0 ? capacity : DEFAULT_CAPACITY)
+				.weigher(new ConcurrentLinkedHashMap.Weigher<Fragment>() {
+					public int weightOf(Fragment fragment) {
+						// 字符按两个字节计算
+						Object value = fragment.getValue();
+						int size = value instanceof char[] ? ((char[]) value).length * 2 
+								: (value instanceof byte[] ? ((byte[]) value).length : 0);
+						return Math.max(size, 1);
+					}
+				})
+				.listener(new ConcurrentLinkedHashMap.EvictionListener<FragmentKey, Fragment>() {
+					public void onEviction(FragmentKey key, Fragment value) {
+						evictionCount.incrementAndGet();
+					}
+				}).build();
+	}
+
+	public void init() {
+		if (cache == null) {
+			setFragmentCacheCapacity(0);
+		}
+	}
+
+	/**
+	 * Get the rendered fragment.
+	 * 
+	 * @param fragment - the fragment id, unique in the template version and output type
+	 * @param key - the fragment key
+	 * @return the rendered chars or bytes, null if not cached or expired
+	 */
+	public Object get(String fragment, Object key) {
+		FragmentKey fragmentKey = new FragmentKey(fragment, key);
+		Fragment value = cache.get(fragmentKey);
+		if (value != null && value.isExpired()) {
+			if (cache.remove(fragmentKey, value)) {
+				expirationCount.incrementAndGet();
+			}
+			value = null;
+		}
+		if (value == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return value.getValue();
+	}
+
+	/**
+	 * Put the rendered fragment.
+	 * 
+	 * @param fragment - the fragment id, unique in the template version and output type
+	 * @param key - the fragment key
+	 * @param value - the rendered chars or bytes
+	 * @param ttl - the time to live in milliseconds, never expired if less than or equal to 0
+	 */
+	public void put(String fragment, Object key, Object value, long ttl) {
+		cache.put(new FragmentKey(fragment, key), new Fragment(value, ttl > 0 ? System.currentTimeMillis() + ttl : 0));
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	private static final class FragmentKey {
+
+		private final String fragment;
+
+		private final Object key;
+
+		private final int hash;
+
+		FragmentKey(String fragment, Object key) {
+			this.fragment = fragment;
+			this.key = key;
+			this.hash = 31 * fragment.hashCode() + (key == null ? 0 : key.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (! (obj instanceof FragmentKey)) {
+				return false;
+			}
+			FragmentKey other = (FragmentKey) obj;
+			return hash == other.hash && fragment.equals(other.fragment) 
+					&& (key == null ? other.key == null : key.equals(other.key));
+		}
+
+	}
+
+	private static final class Fragment {
+
+		private final Object value;
+
+		private final long expired;
+
+		Fragment(Object value, long expired) {
+			this.value = value;
+			this.expired = expired;
+		}
+
+		Object getValue() {
+			return value;
+		}
+
+		boolean isExpired() {
+			return expired > 0 && System.currentTimeMillis() >= expired;
+		}
+
+	}
+
+}
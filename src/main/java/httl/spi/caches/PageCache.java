@@ -0,0 +1,161 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.caches;
+
+import httl.util.ConcurrentLinkedHashMap;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageCache. (SPI, Singleton, ThreadSafe)
+ * 
+ * Cache the rendered bytes or chars of the whole template, keyed by the template and its declared parameter values,
+ * bounded by the size of the cached pages.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setPageCache(PageCache)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class PageCache {
+
+	private static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private ConcurrentMap<PageKey, Object> cache;
+
+	/**
+	 * httl.properties: page.cache.capacity=16777216
+	 */
+	public void setPageCacheCapacity(int capacity) {
+		cache = new ConcurrentLinkedHashMap.Builder<PageKey, Object>()
+				.maximumWeightedCapacity(capacity > 0 ? capacity : DEFAULT_CAPACITY)
+				.weigher(new ConcurrentLinkedHashMap.Weigher<Object>() {
+					public int weightOf(Object value) {
+						// 字符按两个字节计算
+						int size = value instanceof char[] ? ((char[]) value).length * 2 : ((byte[]) value).length;
+						return Math.max(size, 1);
+					}
+				})
+				.listener(new ConcurrentLinkedHashMap.EvictionListener<PageKey, Object>() {
+					public void onEviction(PageKey key, Object value) {
+						evictionCount.incrementAndGet();
+					}
+				}).build();
+	}
+
+	public void init() {
+		if (cache == null) {
+			setPageCacheCapacity(0);
+		}
+	}
+
+	/**
+	 * Get the rendered page.
+	 * 
+	 * @param page - the page id, unique in the template version and output type
+	 * @param values - the declared parameter values
+	 * @return the rendered bytes or chars, null if not cached
+	 */
+	public Object get(String page, Object[] values) {
+		Object value = cache.get(new PageKey(page, values));
+		if (value == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return value;
+	}
+
+	/**
+	 * Put the rendered page.
+	 * 
+	 * @param page - the page id, unique in the template version and output type
+	 * @param values - the declared parameter values
+	 * @param value - the rendered bytes or chars
+	 */
+	public void put(String page, Object[] values, Object value) {
+		cache.put(new PageKey(page, values), value);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	private static final class PageKey {
+
+		private final String page;
+
+		private final Object[] values;
+
+		private final int hash;
+
+		PageKey(String page, Object[] values) {
+			this.page = page;
+			this.values = values;
+			this.hash = 31 * page.hashCode() + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (! (obj instanceof PageKey)) {
+				return false;
+			}
+			PageKey other = (PageKey) obj;
+			return hash == other.hash && page.equals(other.page) 
+					&& Arrays.equals(values, other.values);
+		}
+
+	}
+
+}
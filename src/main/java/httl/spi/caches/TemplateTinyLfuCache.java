@@ -0,0 +1,84 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.caches;
+
+import httl.Template;
+import httl.spi.compilers.AbstractCompiler;
+import httl.spi.parsers.template.AbstractTemplate;
+import httl.util.ClassUtils;
+import httl.util.IOUtils;
+import httl.util.VolatileReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * TemplateTinyLfuCache. (SPI, Singleton, ThreadSafe)
+ * 
+ * Weigh the templates by the generated code length and the static text length.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setTemplateCache(java.util.Map)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TemplateTinyLfuCache<K, V> extends TinyLfuCache<K, V> {
+
+	/**
+	 * httl.properties: template.cache.maximum.weight=33554432
+	 */
+	public void setTemplateCacheMaximumWeight(long maximumWeight) {
+		super.setCacheMaximumWeight(maximumWeight);
+	}
+
+	/**
+	 * httl.properties: template.cache.pinned=/index.httl,/header.httl
+	 */
+	public void setTemplateCachePinned(String[] names) {
+		super.setCachePinned(names);
+	}
+
+	@Override
+	protected int weigh(K key, V value) {
+		Object template = value instanceof VolatileReference ? ((VolatileReference<?>) value).get() : value;
+		if (! (template instanceof Template)) {
+			return 0; // 模板还在编译中
+		}
+		return (int) Math.min(Math.max(((Template) template).getLength(), 0) + getBytecodeLength((Template) template), Integer.MAX_VALUE);
+	}
+
+	// 编译器定义的类，按定义时记录的字节码长度计算，从类路径加载的类，按类文件长度计算，包装的模板，如AdaptiveTemplate，按生成的代码长度估算
+	private static long getBytecodeLength(Template template) {
+		Class<?> cls = template.getClass();
+		ClassLoader loader = cls.getClassLoader();
+		if (template instanceof AbstractTemplate && loader != null) {
+			int length = AbstractCompiler.getBytecodeLength(cls);
+			if (length >= 0) {
+				return length;
+			}
+			InputStream in = loader.getResourceAsStream(cls.getName().replace('.', '/') + ClassUtils.CLASS_EXTENSION);
+			if (in != null) {
+				try {
+					return IOUtils.readToBytes(in).length;
+				} catch (IOException e) {
+				}
+			}
+		}
+		String code = template.getCode();
+		return code == null ? 0 : code.length();
+	}
+
+}
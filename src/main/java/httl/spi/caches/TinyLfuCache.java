@@ -0,0 +1,624 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.caches;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TinyLfuCache. (SPI, Singleton, ThreadSafe)
+ * 
+ * A W-TinyLFU cache bounded by the entry weights: the new entries enter a small LRU window,
+ * then compete with the LRU victim of the main segmented LRU by the access frequency of a count-min sketch,
+ * so a scan of rarely used keys does not evict the hot entries. The pinned keys are never evicted.
+ * 
+ * The reads are lock free, the access order and the frequency are recorded when the lock is not contended.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setTemplateCache(java.util.Map)
+ * @see httl.spi.engines.DefaultEngine#setExpressionCache(java.util.Map)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TinyLfuCache<K, V> implements ConcurrentMap<K, V> {
+
+	private static final long DEFAULT_MAXIMUM_WEIGHT = 32 * 1024 * 1024;
+
+	// 窗口占总容量的1%，主区中保护段占80%
+	private static final double WINDOW_PERCENT = 0.01d;
+
+	private static final double PROTECTED_PERCENT = 0.8d;
+
+	private static final int WINDOW = 0;
+
+	private static final int PROBATION = 1;
+
+	private static final int PROTECTED = 2;
+
+	private static final int PINNED = 3;
+
+	private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	private final Node<K, V> window = new Node<K, V>(null, null);
+
+	private final Node<K, V> probation = new Node<K, V>(null, null);
+
+	private final Node<K, V> protect = new Node<K, V>(null, null);
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private volatile Set<Object> pinned = Collections.emptySet();
+
+	private long maximumWeight;
+
+	private long windowMaximum;
+
+	private long protectedMaximum;
+
+	private long weightedSize;
+
+	private long windowWeight;
+
+	private long protectedWeight;
+
+	public TinyLfuCache() {
+		setCacheMaximumWeight(0);
+	}
+
+	/**
+	 * httl.properties: cache.maximum.weight=33554432
+	 */
+	public void setCacheMaximumWeight(long maximumWeight) {
+		lock.lock();
+		try {
+			this.maximumWeight = maximumWeight > 0 ? maximumWeight : DEFAULT_MAXIMUM_WEIGHT;
+			this.windowMaximum = Math.max(1, (long) (this.maximumWeight * WINDOW_PERCENT));
+			this.protectedMaximum = (long) ((this.maximumWeight - windowMaximum) * PROTECTED_PERCENT);
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * httl.properties: cache.pinned=/index.httl,/header.httl
+	 */
+	public void setCachePinned(String[] keys) {
+		lock.lock();
+		try {
+			Set<Object> set = new HashSet<Object>();
+			if (keys != null) {
+				for (String key : keys) {
+					key = key.trim();
+					if (key.length() > 0) {
+						set.add(key);
+					}
+				}
+			}
+			pinned = set;
+			// 已缓存的条目，按新的固定列表调整
+			for (Node<K, V> node : data.values()) {
+				if (set.contains(node.key)) {
+					if (node.queue != PINNED) {
+						unlink(node);
+						node.queue = PINNED;
+					}
+				} else if (node.queue == PINNED) {
+					linkLast(window, node);
+					node.queue = WINDOW;
+					windowWeight += node.weight;
+				}
+			}
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the entry weight, e.g. the memory size of the value.
+	 * 
+	 * @param key - the entry key
+	 * @param value - the entry value
+	 * @return the weight, 0 if it is unknown yet, e.g. the value is still loading
+	 */
+	protected int weigh(K key, V value) {
+		return 1;
+	}
+
+	public V get(Object key) {
+		Node<K, V> node = data.get(key);
+		if (node == null) {
+			missCount.incrementAndGet();
+			if (key != null && lock.tryLock()) {
+				try {
+					sketch.increment(key);
+				} finally {
+					lock.unlock();
+				}
+			}
+			return null;
+		}
+		hitCount.incrementAndGet();
+		if (lock.tryLock()) { // 锁竞争时放弃记录，不阻塞读取
+			try {
+				onAccess(node);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	public boolean containsKey(Object key) {
+		return data.containsKey(key);
+	}
+
+	public boolean containsValue(Object value) {
+		for (Node<K, V> node : data.values()) {
+			if (node.value.equals(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public V put(K key, V value) {
+		return put(key, value, false);
+	}
+
+	public V putIfAbsent(K key, V value) {
+		return put(key, value, true);
+	}
+
+	private V put(K key, V value, boolean onlyIfAbsent) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			Node<K, V> node = data.get(key);
+			if (node != null) {
+				V old = node.value;
+				if (! onlyIfAbsent) {
+					node.value = value;
+					node.resolved = false;
+				}
+				onAccess(node);
+				return old;
+			}
+			node = new Node<K, V>(key, value);
+			data.put(key, node);
+			sketch.ensureCapacity(data.size(), data.keySet());
+			sketch.increment(key);
+			if (pinned.contains(key)) {
+				node.queue = PINNED;
+			} else {
+				linkLast(window, node);
+			}
+			reweigh(node);
+			evict();
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void putAll(Map<? extends K, ? extends V> m) {
+		for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public V remove(Object key) {
+		lock.lock();
+		try {
+			Node<K, V> node = data.remove(key);
+			if (node == null) {
+				return null;
+			}
+			discard(node);
+			return node.value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean remove(Object key, Object value) {
+		lock.lock();
+		try {
+			Node<K, V> node = data.get(key);
+			if (node == null || ! node.value.equals(value)) {
+				return false;
+			}
+			data.remove(key);
+			discard(node);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean replace(K key, V oldValue, V newValue) {
+		lock.lock();
+		try {
+			Node<K, V> node = data.get(key);
+			if (node == null || ! node.value.equals(oldValue)) {
+				return false;
+			}
+			put(key, newValue, false);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public V replace(K key, V value) {
+		lock.lock();
+		try {
+			return data.containsKey(key) ? put(key, value, false) : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			data.clear();
+			window.prev = window.next = window;
+			probation.prev = probation.next = probation;
+			protect.prev = protect.next = protect;
+			weightedSize = 0;
+			windowWeight = 0;
+			protectedWeight = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		return data.size();
+	}
+
+	public boolean isEmpty() {
+		return data.isEmpty();
+	}
+
+	public Set<K> keySet() {
+		return Collections.unmodifiableSet(data.keySet());
+	}
+
+	// 快照，不能通过视图修改缓存
+	public Collection<V> values() {
+		return Collections.unmodifiableCollection(snapshot().values());
+	}
+
+	public Set<Map.Entry<K, V>> entrySet() {
+		return Collections.unmodifiableSet(snapshot().entrySet());
+	}
+
+	private Map<K, V> snapshot() {
+		Map<K, V> map = new HashMap<K, V>();
+		for (Node<K, V> node : data.values()) {
+			map.put(node.key, node.value);
+		}
+		return map;
+	}
+
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	public long getWeightedSize() {
+		lock.lock();
+		try {
+			return weightedSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	private void onAccess(Node<K, V> node) {
+		sketch.increment(node.key);
+		if (node.removed) {
+			return;
+		}
+		if (! node.resolved) { // 如模板在放入缓存后才编译完成
+			reweigh(node);
+		}
+		switch (node.queue) {
+			case WINDOW:
+				unlink(node);
+				linkLast(window, node);
+				break;
+			case PROBATION: // 再次访问，晋升到保护段
+				unlink(node);
+				linkLast(protect, node);
+				node.queue = PROTECTED;
+				protectedWeight += node.weight;
+				while (protectedWeight > protectedMaximum && protect.next != node) {
+					Node<K, V> demoted = protect.next;
+					unlink(demoted);
+					protectedWeight -= demoted.weight;
+					linkLast(probation, demoted);
+					demoted.queue = PROBATION;
+				}
+				break;
+			case PROTECTED:
+				unlink(node);
+				linkLast(protect, node);
+				break;
+			default:
+				break;
+		}
+		evict();
+	}
+
+	private void reweigh(Node<K, V> node) {
+		int weight = weigh(node.key, node.value);
+		node.resolved = weight > 0;
+		weight = Math.max(weight, 1);
+		int delta = weight - node.weight;
+		node.weight = weight;
+		weightedSize += delta;
+		if (node.queue == WINDOW) {
+			windowWeight += delta;
+		} else if (node.queue == PROTECTED) {
+			protectedWeight += delta;
+		}
+	}
+
+	private void evict() {
+		int candidates = 0;
+		// 窗口溢出的条目进入试用段，作为候选者
+		while (windowWeight > windowMaximum && window.next != window) {
+			Node<K, V> node = window.next;
+			unlink(node);
+			windowWeight -= node.weight;
+			linkLast(probation, node);
+			node.queue = PROBATION;
+			candidates ++;
+		}
+		while (weightedSize > maximumWeight) {
+			Node<K, V> victim = first();
+			if (victim == null) { // 只剩固定的条目
+				return;
+			}
+			Node<K, V> candidate = candidates > 0 ? probation.prev : null;
+			if (candidate == null || candidate == victim || victim.queue != PROBATION) {
+				if (candidate == victim) {
+					candidates --;
+				}
+				evictNode(victim);
+			} else if (candidate.weight > maximumWeight 
+					|| sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				candidates --;
+				evictNode(candidate); // 不如牺牲者热，拒绝准入
+			} else {
+				evictNode(victim);
+			}
+		}
+	}
+
+	private Node<K, V> first() {
+		if (probation.next != probation) {
+			return probation.next;
+		}
+		if (protect.next != protect) {
+			return protect.next;
+		}
+		if (window.next != window) {
+			return window.next;
+		}
+		return null;
+	}
+
+	private void evictNode(Node<K, V> node) {
+		data.remove(node.key, node);
+		discard(node);
+		evictionCount.incrementAndGet();
+	}
+
+	private void discard(Node<K, V> node) {
+		if (node.queue == WINDOW) {
+			windowWeight -= node.weight;
+		} else if (node.queue == PROTECTED) {
+			protectedWeight -= node.weight;
+		}
+		if (node.queue != PINNED) {
+			unlink(node);
+		}
+		weightedSize -= node.weight;
+		node.removed = true;
+	}
+
+	private static <K, V> void linkLast(Node<K, V> head, Node<K, V> node) {
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+	}
+
+	private static <K, V> void unlink(Node<K, V> node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+
+	private static final class Node<K, V> {
+
+		final K key;
+
+		// 写入在锁内，读取无锁
+		volatile V value;
+
+		int weight;
+
+		boolean resolved;
+
+		int queue;
+
+		boolean removed;
+
+		Node<K, V> prev;
+
+		Node<K, V> next;
+
+		// 链表的头节点
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+			this.prev = this;
+			this.next = this;
+		}
+
+	}
+
+	/**
+	 * The count-min sketch of the access frequency, with the 4-bit counters,
+	 * halves all counters periodically so the old popularity fades.
+	 */
+	private static final class FrequencySketch {
+
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private static final long ONE_MASK = 0x1111111111111111L;
+
+		private long[] table = new long[16];
+
+		private int sampleSize = 160;
+
+		private int size;
+
+		// 扩容时，保留已缓存的键的频率
+		void ensureCapacity(int maximumSize, Collection<?> keys) {
+			if (table.length >= maximumSize || table.length >= (1 << 30)) {
+				return;
+			}
+			int length = table.length;
+			while (length < maximumSize) {
+				length <<= 1;
+			}
+			Map<Object, Integer> frequencies = new HashMap<Object, Integer>();
+			for (Object key : keys) {
+				frequencies.put(key, frequency(key));
+			}
+			table = new long[length];
+			sampleSize = 10 * length;
+			size = 0;
+			for (Map.Entry<Object, Integer> entry : frequencies.entrySet()) {
+				for (int n = entry.getValue(); n > 0; n --) {
+					increment(entry.getKey());
+				}
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i ++) {
+				int index = indexOf(hash, i);
+				int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i ++) {
+				added |= incrementAt(indexOf(hash, i), start + i);
+			}
+			if (added && ++ size >= sampleSize) {
+				reset();
+			}
+		}
+
+		private boolean incrementAt(int i, int j) {
+			int offset = j << 2;
+			long mask = 0xfL << offset;
+			if ((table[i] & mask) != mask) {
+				table[i] += 1L << offset;
+				return true;
+			}
+			return false;
+		}
+
+		private void reset() {
+			int count = 0;
+			for (int i = 0; i < table.length; i ++) {
+				count += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			size = (size >>> 1) - (count >>> 2);
+		}
+
+		private int indexOf(int item, int i) {
+			long hash = (item + SEEDS[i]) * SEEDS[i];
+			hash += hash >>> 32;
+			return ((int) hash) & (table.length - 1);
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+
+	}
+
+}
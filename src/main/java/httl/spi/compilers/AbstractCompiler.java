@@ -16,16 +16,44 @@
  */
 package httl.spi.compilers;
 
+import httl.spi.BatchCompiler;
 import httl.spi.Compiler;
 import httl.spi.Logger;
+import httl.spi.engines.EngineStatistics;
+import httl.util.ByteCache;
 import httl.util.ClassUtils;
+import httl.util.IOUtils;
+import httl.util.MD5;
+import httl.util.StringCache;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * Abstract compiler. (SPI, Prototype, ThreadSafe)
@@ -34,7 +62,7 @@ import java.util.regex.Pattern;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public abstract class AbstractCompiler implements Compiler {
+public abstract class AbstractCompiler implements BatchCompiler {
     
     private static final Pattern PACKAGE_PATTERN = Pattern.compile("package\\s+([_a-zA-Z][_a-zA-Z0-9\\.]*);");
     
@@ -43,9 +71,36 @@ public abstract class AbstractCompiler implements Compiler {
     private File compileDirectory;
     
     private Logger logger;
+
+    private EngineStatistics statistics;
     
     private volatile boolean first = true;
 
+    // 每个模板类(含其内部类)定义在独立的类加载器中，模板重新加载后，旧的类及其类加载器可被回收
+    private final ConcurrentMap<String, ClassLoaderReference> classLoaders = new ConcurrentHashMap<String, ClassLoaderReference>();
+
+    private final ReferenceQueue<ClassLoaderImpl> classLoaderQueue = new ReferenceQueue<ClassLoaderImpl>();
+
+    private final ClassLoader parentClassLoader;
+
+    private final ClassLoaderImpl classLoader;
+
+    private static final String VERSION = ClassUtils.getVersion(Compiler.class, "");
+
+    // 版本号不变而HTTL重新构建时(如IDE中运行和SNAPSHOT)，以HTTL类文件的摘要区分，取不到时不使用编译缓存
+    private static final String RUNTIME_DIGEST = getRuntimeDigest();
+
+    private static final String KEY_EXTENSION = ".key";
+
+    private static final String STRING_CACHE = StringCache.class.getName() + ".getAndRemove(";
+
+    private static final String BYTE_CACHE = ByteCache.class.getName() + ".getAndRemove(";
+
+    public AbstractCompiler() {
+    	parentClassLoader = Thread.currentThread().getContextClassLoader();
+    	classLoader = createClassLoader(Collections.<String, byte[]>emptyMap());
+    }
+
     /**
 	 * httl.properties: loggers=httl.spi.loggers.Log4jLogger
 	 */
@@ -53,6 +108,13 @@ public abstract class AbstractCompiler implements Compiler {
 		this.logger = logger;
 	}
 
+    /**
+	 * httl.properties: statistics=httl.spi.engines.EngineStatistics
+	 */
+    public void setStatistics(EngineStatistics statistics) {
+		this.statistics = statistics;
+	}
+
 	/**
 	 * httl.properties: compile.directory=classes
 	 */
@@ -66,7 +128,7 @@ public abstract class AbstractCompiler implements Compiler {
     }
     
     protected void saveBytecode(String name, byte[] bytecode) throws IOException {
-        // ClassUtils.checkBytecode(name, bytecode);
+        checkBytecode(name, bytecode);
         if (compileDirectory != null && compileDirectory.exists()) {
             File file = new File(compileDirectory, name.replace('.', '/') + ".class");
             File dir = file.getParentFile();
@@ -92,32 +154,76 @@ public abstract class AbstractCompiler implements Compiler {
         }
     }
 
+    // 诊断每个方法的字节码长度，超过HugeMethodLimit的方法不会被JIT编译
+    protected void checkBytecode(String name, byte[] bytecode) {
+        if (logger == null || ! logger.isWarnEnabled()) {
+            return;
+        }
+        Map<String, Integer> lengths;
+        try {
+            lengths = ClassUtils.getMethodCodeLengths(bytecode);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Failed to check bytecode of class " + name + ", cause: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : lengths.entrySet()) {
+            int length = entry.getValue();
+            if (length > ClassUtils.HUGE_METHOD_LIMIT) {
+                logger.warn("The method " + entry.getKey() + " bytecode length " + length + " > " + ClassUtils.HUGE_METHOD_LIMIT 
+                		+ ", it will not be compiled by the JIT, please config split.method.length in httl.properties. class: " + name);
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("The method " + entry.getKey() + " bytecode length " + length + ", class: " + name);
+            }
+        }
+    }
+
+    private static String getClassName(String code) throws ParseException {
+        Matcher matcher = PACKAGE_PATTERN.matcher(code);
+        String pkg;
+        if (matcher.find()) {
+            pkg = matcher.group(1);
+        } else {
+            pkg = "";
+        }
+        matcher = CLASS_PATTERN.matcher(code);
+        String cls;
+        if (matcher.find()) {
+            cls = matcher.group(1);
+        } else {
+            throw new ParseException("No such class name in java code.", 0);
+        }
+        return pkg != null && pkg.length() > 0 ? pkg + "." + cls : cls;
+    }
+
     public Class<?> compile(String code) throws ParseException {
     	String className = null;
     	try {
 	        code = code.trim();
-	        Matcher matcher = PACKAGE_PATTERN.matcher(code);
-	        String pkg;
-	        if (matcher.find()) {
-	            pkg = matcher.group(1);
-	        } else {
-	            pkg = "";
-	        }
-	        matcher = CLASS_PATTERN.matcher(code);
-	        String cls;
-	        if (matcher.find()) {
-	            cls = matcher.group(1);
-	        } else {
-	            throw new ParseException("No such class name in java code.", 0);
-	        }
-	        className = pkg != null && pkg.length() > 0 ? pkg + "." + cls : cls;
+	        className = getClassName(code);
 	        try {
 	            return Class.forName(className, true, Thread.currentThread().getContextClassLoader());
 	        } catch (ClassNotFoundException e) {
+	        	Class<?> compiled = findCompiledClass(className);
+	        	if (compiled != null) {
+	        		return compiled;
+	        	}
 	            if (! code.endsWith("}")) {
 	                throw new ParseException("The java code not endsWith \"}\"", code.length() - 1);
 	            }
-	            return doCompile(className, code);
+	            String key = getCacheKey(code);
+	            Class<?> cls = loadCache(className, key);
+	            if (cls == null) {
+	            	long start = System.nanoTime();
+	            	boolean success = false;
+	            	try {
+	            		cls = doCompile(className, code);
+	            		success = true;
+	            	} finally {
+	            		recordCompile(1, start, success);
+	            	}
+	            	saveCache(className, key);
+	            }
+	            return cls;
 	        }
     	} catch (Throwable t) {
         	if (logger != null && logger.isErrorEnabled()) {
@@ -130,6 +236,319 @@ public abstract class AbstractCompiler implements Compiler {
         }
     }
     
+    public Class<?>[] compile(String[] codes) throws ParseException {
+    	Class<?>[] classes = new Class<?>[codes.length];
+    	List<Integer> indexes = new ArrayList<Integer>();
+    	List<String> names = new ArrayList<String>();
+    	List<String> sources = new ArrayList<String>();
+    	List<String> keys = new ArrayList<String>();
+    	for (int i = 0; i < codes.length; i ++) {
+    		String code = codes[i].trim();
+    		String className = getClassName(code);
+    		try {
+    			classes[i] = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+    		} catch (ClassNotFoundException e) {
+    			classes[i] = findCompiledClass(className);
+    			if (classes[i] != null) {
+    				continue;
+    			}
+    			if (! code.endsWith("}")) {
+    				throw new ParseException("The java code not endsWith \"}\", class: " + className, code.length() - 1);
+    			}
+    			String key = getCacheKey(code);
+    			classes[i] = loadCache(className, key);
+    			if (classes[i] == null) {
+	    			indexes.add(i);
+	    			names.add(className);
+	    			sources.add(code);
+	    			keys.add(key);
+    			}
+    		}
+    	}
+    	if (names.size() > 0) {
+    		Class<?>[] compiled = null;
+	    	try {
+	    		long start = System.nanoTime();
+	    		compiled = doCompile(names.toArray(new String[names.size()]), sources.toArray(new String[sources.size()]));
+	    		recordCompile(names.size(), start, true); // 批量失败时，由逐个编译记录
+	    	} catch (Throwable t) { // 逐个编译，以定位出错的类
+	    		if (logger != null && logger.isWarnEnabled()) {
+	    			logger.warn("Failed to compile " + names.size() + " classes in batch, compile them one by one, cause: " + t.getMessage());
+	    		}
+	    	}
+	    	for (int i = 0; i < indexes.size(); i ++) {
+	    		int index = indexes.get(i);
+	    		if (compiled != null) {
+	    			classes[index] = compiled[i];
+	    			saveCache(names.get(i), keys.get(i));
+	    		} else {
+	    			classes[index] = compile(codes[index]);
+	    		}
+	    	}
+    	}
+    	return classes;
+    }
+
+    // 在编译器中统计，包括模板首次渲染时的延迟编译和分层编译的后台编译
+    private void recordCompile(int count, long start, boolean success) {
+    	EngineStatistics statistics = this.statistics; // safe copy reference
+    	if (statistics != null) {
+    		statistics.recordCompile(count, (System.nanoTime() - start) / 1000000, success);
+    	}
+    }
+
+    // 持久化的编译缓存，以HTTL版本、编译器和类源码的摘要为键，源码已包含模板内容和影响生成代码的配置
+    // 从StringCache或ByteCache取文本的类，依赖当前进程内存中的数据，不能缓存，配置compile.directory时解析器会把文本放在类中
+    private String getCacheKey(String code) {
+    	if (compileDirectory == null || RUNTIME_DIGEST == null 
+    			|| code.contains(STRING_CACHE) || code.contains(BYTE_CACHE)) {
+    		return null;
+    	}
+    	return MD5.getMD5(VERSION + "\n" + RUNTIME_DIGEST + "\n" + getClass().getName() + "\n" + code);
+    }
+
+    // HTTL的jar包中各类文件的CRC，或类目录中各类文件内容的CRC
+    private static String getRuntimeDigest() {
+    	try {
+    		CodeSource codeSource = Compiler.class.getProtectionDomain().getCodeSource();
+    		URL location = codeSource == null ? null : codeSource.getLocation();
+    		if (location == null || ! "file".equals(location.getProtocol())) {
+    			return null;
+    		}
+    		File file = new File(location.toURI());
+    		StringBuilder buf = new StringBuilder();
+    		if (file.isDirectory()) {
+    			File dir = new File(file, "httl");
+    			if (! dir.isDirectory()) {
+    				return null;
+    			}
+    			appendDigest(dir, "httl/", buf);
+    		} else if (file.isFile()) {
+    			JarFile jar = new JarFile(file);
+    			try {
+    				List<String> entries = new ArrayList<String>();
+    				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+    					JarEntry entry = e.nextElement();
+    					if (entry.getName().startsWith("httl/") && entry.getName().endsWith(ClassUtils.CLASS_EXTENSION)) {
+    						entries.add(entry.getName() + ":" + entry.getCrc() + "\n");
+    					}
+    				}
+    				Collections.sort(entries);
+    				for (String entry : entries) {
+    					buf.append(entry);
+    				}
+    			} finally {
+    				jar.close();
+    			}
+    		}
+    		return buf.length() == 0 ? null : MD5.getMD5(buf.toString());
+    	} catch (Throwable t) {
+    		return null;
+    	}
+    }
+
+    private static void appendDigest(File dir, String path, StringBuilder buf) throws IOException {
+    	File[] files = dir.listFiles();
+    	if (files == null) {
+    		return;
+    	}
+    	Arrays.sort(files);
+    	for (File file : files) {
+    		if (file.isDirectory()) {
+    			appendDigest(file, path + file.getName() + "/", buf);
+    		} else if (file.getName().endsWith(ClassUtils.CLASS_EXTENSION)) {
+    			CRC32 crc = new CRC32();
+    			crc.update(IOUtils.readToBytes(new FileInputStream(file)));
+    			buf.append(path + file.getName() + ":" + crc.getValue() + "\n");
+    		}
+    	}
+    }
+
+    // 编译目录中的类文件与键文件匹配时，直接加载字节码，不再编译
+    private Class<?> loadCache(String name, String key) {
+    	if (key == null) {
+    		return null;
+    	}
+    	File keyFile = new File(compileDirectory, name.replace('.', '/') + KEY_EXTENSION);
+    	File classFile = new File(compileDirectory, name.replace('.', '/') + ClassUtils.CLASS_EXTENSION);
+    	if (! keyFile.exists() || ! classFile.exists()) {
+    		return null;
+    	}
+    	try {
+    		if (! key.equals(IOUtils.readToString(new InputStreamReader(new FileInputStream(keyFile), "UTF-8")).trim())) {
+    			return null;
+    		}
+    		return defineClass(name, Collections.singletonMap(name, IOUtils.readToBytes(new FileInputStream(classFile))), false);
+    	} catch (Throwable t) { // 缓存损坏时重新编译
+    		if (logger != null && logger.isWarnEnabled()) {
+    			logger.warn("Failed to load cached class " + name + " from " + classFile.getAbsolutePath() + ", cause: " + t.getMessage());
+    		}
+    		return null;
+    	}
+    }
+
+    private void saveCache(String name, String key) {
+    	if (key == null) {
+    		return;
+    	}
+    	File classFile = new File(compileDirectory, name.replace('.', '/') + ClassUtils.CLASS_EXTENSION);
+    	if (! classFile.exists()) {
+    		return;
+    	}
+    	File keyFile = new File(compileDirectory, name.replace('.', '/') + KEY_EXTENSION);
+    	try {
+	    	FileOutputStream out = new FileOutputStream(keyFile);
+	        try {
+	            out.write(key.getBytes("UTF-8"));
+	            out.flush();
+	        } finally {
+	            out.close();
+	        }
+    	} catch (IOException e) {
+    		if (logger != null && logger.isWarnEnabled()) {
+    			logger.warn("Failed to save cache key of class " + name + " to " + keyFile.getAbsolutePath() + ", cause: " + e.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * Define the compiled class in a new class loader.
+     * 
+     * @param name - class name
+     * @param bytecodes - bytecodes of the class and its inner classes
+     * @return defined class
+     */
+    protected Class<?> defineClass(String name, Map<String, byte[]> bytecodes) throws IOException, ClassNotFoundException {
+    	return defineClass(name, bytecodes, true);
+    }
+
+    private Class<?> defineClass(String name, Map<String, byte[]> bytecodes, boolean save) throws IOException, ClassNotFoundException {
+    	if (save) {
+    		for (Map.Entry<String, byte[]> entry : bytecodes.entrySet()) {
+    			saveBytecode(entry.getKey(), entry.getValue());
+    		}
+    	}
+    	ClassLoaderReference reference;
+    	while ((reference = (ClassLoaderReference) classLoaderQueue.poll()) != null) {
+    		for (String className : reference.getClassNames()) {
+    			classLoaders.remove(className, reference);
+    		}
+    	}
+    	ClassLoaderImpl loader = createClassLoader(bytecodes);
+    	reference = new ClassLoaderReference(loader, bytecodes.keySet(), classLoaderQueue);
+    	for (String className : reference.getClassNames()) {
+    		classLoaders.put(className, reference);
+    	}
+    	Class<?> cls = loader.loadClass(name);
+    	for (String className : reference.getClassNames()) { // 内部类也立即定义，类加载器不再持有字节码
+    		loader.loadClass(className);
+    	}
+    	return cls;
+    }
+
+    private ClassLoaderImpl createClassLoader(final Map<String, byte[]> bytecodes) {
+    	return AccessController.doPrivileged(new PrivilegedAction<ClassLoaderImpl>() {
+            public ClassLoaderImpl run() {
+                return new ClassLoaderImpl(parentClassLoader, bytecodes);
+            }
+        });
+    }
+
+    /**
+     * Find the class compiled by this compiler and not yet collected.
+     * 
+     * @param name - class name
+     * @return compiled class, or null if not found
+     */
+    protected Class<?> findCompiledClass(String name) {
+    	ClassLoaderReference reference = classLoaders.get(name);
+    	ClassLoaderImpl loader = reference == null ? null : reference.get();
+    	if (loader == null) {
+    		return null;
+    	}
+    	try {
+    		return loader.loadClass(name);
+    	} catch (ClassNotFoundException e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * Get the bytecode length of the compiled class and its inner classes, recorded when the class is defined.
+     * 
+     * @param cls - compiled class
+     * @return bytecode length, or -1 if the class is not defined by a compiler
+     */
+    public static int getBytecodeLength(Class<?> cls) {
+    	ClassLoader loader = cls.getClassLoader();
+    	return loader instanceof ClassLoaderImpl ? ((ClassLoaderImpl) loader).bytecodeLength : -1;
+    }
+
+    /**
+     * Get the class loader which can load all compiled classes.
+     * 
+     * @return class loader
+     */
+    protected ClassLoader getClassLoader() {
+    	return classLoader;
+    }
+
+    private final class ClassLoaderImpl extends ClassLoader {
+
+    	// 类定义后即移除，只在定义前持有
+    	private final Map<String, byte[]> bytecodes;
+
+    	// 移除字节码前记录长度，供模板缓存按字节码长度计算权重
+    	private final int bytecodeLength;
+
+    	ClassLoaderImpl(ClassLoader parentClassLoader, Map<String, byte[]> bytecodes) {
+    		super(parentClassLoader);
+    		this.bytecodes = new HashMap<String, byte[]>(bytecodes);
+    		int length = 0;
+    		for (byte[] bytecode : bytecodes.values()) {
+    			length += bytecode.length;
+    		}
+    		this.bytecodeLength = length;
+    	}
+
+    	@Override
+    	protected Class<?> findClass(String name) throws ClassNotFoundException {
+    		byte[] bytecode = bytecodes.remove(name);
+    		if (bytecode != null) {
+    			return defineClass(name, bytecode, 0, bytecode.length);
+    		}
+    		// 引用其它模板的类，如宏，由定义它的类加载器加载
+    		ClassLoaderReference reference = classLoaders.get(name);
+    		ClassLoaderImpl loader = reference == null ? null : reference.get();
+    		if (loader != null && loader != this) {
+    			return loader.loadClass(name);
+    		}
+    		throw new ClassNotFoundException(name);
+    	}
+    }
+
+    private static final class ClassLoaderReference extends WeakReference<ClassLoaderImpl> {
+
+    	private final Set<String> classNames;
+
+    	ClassLoaderReference(ClassLoaderImpl classLoader, Set<String> classNames, ReferenceQueue<ClassLoaderImpl> queue) {
+    		super(classLoader, queue);
+    		this.classNames = Collections.unmodifiableSet(new HashSet<String>(classNames));
+    	}
+
+    	Set<String> getClassNames() {
+    		return classNames;
+    	}
+    }
+
     protected abstract Class<?> doCompile(String name, String source) throws Throwable;
 
+    protected Class<?>[] doCompile(String[] names, String[] sources) throws Throwable {
+    	Class<?>[] classes = new Class<?>[names.length];
+    	for (int i = 0; i < names.length; i ++) {
+    		classes[i] = doCompile(names[i], sources[i]);
+    	}
+    	return classes;
+    }
+
 }
@@ -16,8 +16,10 @@
  */
 package httl.spi.compilers;
 
+import httl.spi.BatchCompiler;
 import httl.spi.Compiler;
 import httl.spi.Logger;
+import httl.spi.engines.EngineStatistics;
 import httl.util.ClassUtils;
 
 import java.text.ParseException;
@@ -29,12 +31,20 @@ import java.text.ParseException;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public class AdaptiveCompiler implements Compiler {
+public class AdaptiveCompiler implements BatchCompiler {
 
-    private Compiler compiler;
+    private volatile Compiler compiler;
 
     private Logger logger;
 
+    private EngineStatistics statistics;
+
+    private boolean lintUnchecked;
+
+    private String compileDirectory;
+
+    private String javaVersion;
+
     /**
 	 * httl.properties: loggers=httl.spi.loggers.Log4jLogger
 	 */
@@ -45,34 +55,92 @@ public class AdaptiveCompiler implements Compiler {
 		}
 	}
 
+    /**
+	 * httl.properties: statistics=httl.spi.engines.EngineStatistics
+	 */
+    public void setStatistics(EngineStatistics statistics) {
+		this.statistics = statistics;
+		if (compiler instanceof AbstractCompiler) {
+			((AbstractCompiler) compiler).setStatistics(statistics);
+		}
+	}
+
     /**
 	 * httl.properties: lint.unchecked=true
 	 */
     public void setLintUnchecked(boolean unchecked) {
+    	this.lintUnchecked = unchecked;
     	if (compiler instanceof JdkCompiler) {
     		((JdkCompiler) compiler).setLintUnchecked(unchecked);
         }
     }
 
+    /**
+	 * httl.properties: compile.directory=classes
+	 */
+    public void setCompileDirectory(String directory) {
+    	this.compileDirectory = directory;
+    	if (compiler instanceof AbstractCompiler) {
+    		((AbstractCompiler) compiler).setCompileDirectory(directory);
+        }
+    }
+
     /**
 	 * httl.properties: java.version=1.7
 	 */
     public void setJavaVersion(String version) {
+    	this.javaVersion = version;
+    	if (compiler != null) { // 初始化后修改版本时，重新选择编译器
+    		compiler = createCompiler(version);
+    	}
+    }
+
+    // 在注入全部属性后选择编译器，各属性的注入顺序不影响结果，降级的警告也能记录到日志
+    private Compiler createCompiler(String version) {
         if (version == null || ClassUtils.isBeforeJava6(version)) {
-        	JavassistCompiler javassistCompiler = new JavassistCompiler();
-        	javassistCompiler.setLogger(logger);
-        	compiler = javassistCompiler;
-        } else {
-        	JdkCompiler jdkCompiler = new JdkCompiler();
-        	jdkCompiler.setJavaVersion(version);
-        	jdkCompiler.setLogger(logger);
-        	compiler = jdkCompiler;
+        	return createJavassistCompiler(null);
         }
+    	JdkCompiler jdkCompiler;
+    	try {
+    		jdkCompiler = new JdkCompiler();
+    	} catch (IllegalStateException e) { // 只有JRE时，没有javac，由Javassist直接生成字节码
+    		return createFallbackCompiler(e.getMessage());
+    	} catch (LinkageError e) { // 没有javax.tools的运行时
+    		return createFallbackCompiler("Can not load the java compiler api, cause: " + e.toString() + ".");
+    	}
+    	jdkCompiler.setJavaVersion(version);
+    	jdkCompiler.setLintUnchecked(lintUnchecked);
+    	jdkCompiler.setLogger(logger);
+    	jdkCompiler.setStatistics(statistics);
+    	jdkCompiler.setCompileDirectory(compileDirectory);
+    	return jdkCompiler;
+    }
+
+    private JavassistCompiler createFallbackCompiler(String cause) {
+    	JavassistCompiler javassistCompiler = createJavassistCompiler(cause);
+    	if (logger != null && logger.isWarnEnabled()) {
+    		logger.warn(cause + " Use javassist compiler instead.");
+    	}
+    	return javassistCompiler;
+    }
+
+    private JavassistCompiler createJavassistCompiler(String jdkCause) {
+    	JavassistCompiler javassistCompiler;
+    	try {
+    		javassistCompiler = new JavassistCompiler();
+    	} catch (LinkageError e) { // 没有javassist.jar
+    		throw new IllegalStateException("No java compiler available. " + (jdkCause == null ? "" : jdkCause + " ") 
+    				+ "Please add javassist.jar to your classpath, cause: " + e.toString(), e);
+    	}
+    	javassistCompiler.setLogger(logger);
+    	javassistCompiler.setStatistics(statistics);
+    	javassistCompiler.setCompileDirectory(compileDirectory);
+    	return javassistCompiler;
     }
 
     public void init() {
     	if (compiler == null) {
-    		setJavaVersion(ClassUtils.getJavaVersion());
+    		compiler = createCompiler(javaVersion != null ? javaVersion : ClassUtils.getJavaVersion());
     	}
     }
 
@@ -80,4 +148,15 @@ public class AdaptiveCompiler implements Compiler {
         return compiler.compile(code);
     }
 
+    public Class<?>[] compile(String[] codes) throws ParseException {
+    	if (compiler instanceof BatchCompiler) {
+    		return ((BatchCompiler) compiler).compile(codes);
+    	}
+    	Class<?>[] classes = new Class<?>[codes.length];
+    	for (int i = 0; i < codes.length; i ++) {
+    		classes[i] = compiler.compile(codes[i]);
+    	}
+    	return classes;
+    }
+
 }
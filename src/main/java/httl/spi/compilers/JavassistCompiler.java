@@ -20,6 +20,7 @@ import httl.spi.Compiler;
 import httl.util.ClassUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,7 +33,6 @@ import javassist.CtField;
 import javassist.CtNewConstructor;
 import javassist.CtNewMethod;
 import javassist.LoaderClassPath;
-import javassist.NotFoundException;
 
 /**
  * JavassistCompiler. (SPI, Singleton, ThreadSafe)
@@ -61,76 +61,73 @@ public class JavassistCompiler extends AbstractCompiler {
 
     @Override
     public Class<?> doCompile(String name, String source) throws Throwable {
-    	try {
-	    	return pool.get(name).toClass();
-    	} catch (NotFoundException e) {
-    		int i = name.lastIndexOf('.');
-            String className = i < 0 ? name : name.substring(i + 1);
-            Matcher matcher = IMPORT_PATTERN.matcher(source);
-            List<String> importPackages = new ArrayList<String>();
-            Map<String, String> fullNames = new HashMap<String, String>();
-            while (matcher.find()) {
-                String pkg = matcher.group(1);
-                if (pkg.endsWith(".*")) {
-                    String pkgName = pkg.substring(0, pkg.length() - 2);
-                    pool.importPackage(pkgName);
-                    importPackages.add(pkgName);
-                } else {
-                    pool.importPackage(pkg);
-                    int pi = pkg.lastIndexOf('.');
-                    fullNames.put(pi < 0 ? pkg : pkg.substring(pi + 1), pkg);
-                }
+    	int i = name.lastIndexOf('.');
+        String className = i < 0 ? name : name.substring(i + 1);
+        Matcher matcher = IMPORT_PATTERN.matcher(source);
+        List<String> importPackages = new ArrayList<String>();
+        Map<String, String> fullNames = new HashMap<String, String>();
+        while (matcher.find()) {
+            String pkg = matcher.group(1);
+            if (pkg.endsWith(".*")) {
+                String pkgName = pkg.substring(0, pkg.length() - 2);
+                pool.importPackage(pkgName);
+                importPackages.add(pkgName);
+            } else {
+                pool.importPackage(pkg);
+                int pi = pkg.lastIndexOf('.');
+                fullNames.put(pi < 0 ? pkg : pkg.substring(pi + 1), pkg);
             }
-            String[] packages = importPackages.toArray(new String[0]);
-            matcher = EXTENDS_PATTERN.matcher(source);
-            CtClass cls;
-            if (matcher.find()) {
-                String extend = matcher.group(1).trim();
-                String extendClass;
-                if (extend.contains(".")) {
-                    extendClass = extend;
-                } else if (fullNames.containsKey(extend)) {
-                    extendClass = fullNames.get(extend);
-                } else {
-                    extendClass = ClassUtils.forName(packages, extend).getName();
-                }
-                cls = pool.makeClass(name, pool.get(extendClass));
+        }
+        String[] packages = importPackages.toArray(new String[0]);
+        matcher = EXTENDS_PATTERN.matcher(source);
+        CtClass cls;
+        if (matcher.find()) {
+            String extend = matcher.group(1).trim();
+            String extendClass;
+            if (extend.contains(".")) {
+                extendClass = extend;
+            } else if (fullNames.containsKey(extend)) {
+                extendClass = fullNames.get(extend);
             } else {
-                cls = pool.makeClass(name);
+                extendClass = ClassUtils.forName(packages, extend).getName();
             }
-            matcher = IMPLEMENTS_PATTERN.matcher(source);
-            if (matcher.find()) {
-                String[] ifaces = matcher.group(1).trim().split("\\,");
-                for (String iface : ifaces) {
-                    iface = iface.trim();
-                    String ifaceClass;
-                    if (iface.contains(".")) {
-                        ifaceClass = iface;
-                    } else if (fullNames.containsKey(iface)) {
-                        ifaceClass = fullNames.get(iface);
-                    } else {
-                        ifaceClass = ClassUtils.forName(packages, iface).getName();
-                    }
-                    cls.addInterface(pool.get(ifaceClass));
+            cls = pool.makeClass(name, pool.get(extendClass));
+        } else {
+            cls = pool.makeClass(name);
+        }
+        matcher = IMPLEMENTS_PATTERN.matcher(source);
+        if (matcher.find()) {
+            String[] ifaces = matcher.group(1).trim().split("\\,");
+            for (String iface : ifaces) {
+                iface = iface.trim();
+                String ifaceClass;
+                if (iface.contains(".")) {
+                    ifaceClass = iface;
+                } else if (fullNames.containsKey(iface)) {
+                    ifaceClass = fullNames.get(iface);
+                } else {
+                    ifaceClass = ClassUtils.forName(packages, iface).getName();
                 }
+                cls.addInterface(pool.get(ifaceClass));
             }
-            String body = source.substring(source.indexOf("{") + 1, source.length() - 1);
-            String[] methods = METHODS_PATTERN.split(body);
-            for (String method : methods) {
-                method = method.trim();
-                if (method.length() > 0) {
-                    if (method.startsWith(className)) {
-                        cls.addConstructor(CtNewConstructor.make("public " + method, cls));
-                    } else if (method.indexOf('{') < 0 || FIELD_PATTERN.matcher(method).matches()) {
-                        cls.addField(CtField.make("private " + method, cls));
-                    } else {
-                        cls.addMethod(CtNewMethod.make("public " + method, cls));
-                    }
+        }
+        String body = source.substring(source.indexOf("{") + 1, source.length() - 1);
+        String[] methods = METHODS_PATTERN.split(body);
+        for (String method : methods) {
+            method = method.trim();
+            if (method.length() > 0) {
+                if (method.startsWith(className)) {
+                    cls.addConstructor(CtNewConstructor.make("public " + method, cls));
+                } else if (method.indexOf('{') < 0 || FIELD_PATTERN.matcher(method).matches()) {
+                    cls.addField(CtField.make("private " + method, cls));
+                } else {
+                    cls.addMethod(CtNewMethod.make("public " + method, cls));
                 }
             }
-            saveBytecode(name, cls.toBytecode());
-            return cls.toClass();
-    	}
+        }
+        byte[] bytecode = cls.toBytecode();
+        cls.detach(); // 模板按名称加载宏类，之后编译的类不需要它，不在ClassPool中保留
+        return defineClass(name, Collections.singletonMap(name, bytecode));
     }
 
 }
@@ -28,17 +28,15 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.tools.DiagnosticCollector;
 import javax.tools.FileObject;
@@ -63,11 +61,10 @@ public class JdkCompiler extends AbstractCompiler {
 
     private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
 
-    private final DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
-    
-    private final ClassLoaderImpl classLoader;
-    
-    private final JavaFileManagerImpl javaFileManager;
+    private final List<File> classPath;
+
+    // javac的文件管理器不是线程安全的，并发编译时各自取用一个
+    private final Queue<JavaFileManagerImpl> javaFileManagers = new ConcurrentLinkedQueue<JavaFileManagerImpl>();
 
     private final List<String> options = new ArrayList<String>();
 
@@ -75,27 +72,90 @@ public class JdkCompiler extends AbstractCompiler {
         if (compiler == null) {
         	throw new IllegalStateException("Can not get system java compiler. Please add jdk tools.jar to your classpath.");
         }
-        StandardJavaFileManager manager = compiler.getStandardFileManager(diagnosticCollector, null, null);
-        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
         if (loader instanceof URLClassLoader 
                 && (! loader.getClass().getName().equals("sun.misc.Launcher$AppClassLoader"))) {
+            URLClassLoader urlClassLoader = (URLClassLoader) loader;
+            List<File> files = new ArrayList<File>();
+            for (URL url : urlClassLoader.getURLs()) {
+                files.add(new File(url.getFile()));
+            }
+            classPath = files;
+        } else {
+            classPath = null;
+        }
+        javaFileManagers.offer(createJavaFileManager());
+    }
+
+    private JavaFileManagerImpl createJavaFileManager() {
+        StandardJavaFileManager manager = compiler.getStandardFileManager(null, null, null);
+        if (classPath != null) {
             try {
-                URLClassLoader urlClassLoader = (URLClassLoader) loader;
-                List<File> files = new ArrayList<File>();
-                for (URL url : urlClassLoader.getURLs()) {
-                    files.add(new File(url.getFile()));
-                }
-                manager.setLocation(StandardLocation.CLASS_PATH, files);
+                manager.setLocation(StandardLocation.CLASS_PATH, classPath);
             } catch (IOException e) {
                 throw new IllegalStateException(e.getMessage(), e);
             }
         }
-        classLoader = AccessController.doPrivileged(new PrivilegedAction<ClassLoaderImpl>() {
-            public ClassLoaderImpl run() {
-                return new ClassLoaderImpl(loader);
-            }
-        });
-        javaFileManager = new JavaFileManagerImpl(manager, classLoader);
+        return new JavaFileManagerImpl(manager);
+    }
+
+    private Class<?>[] compileJavaFiles(String[] names, String[] sourceCodes) throws Throwable {
+        JavaFileManagerImpl javaFileManager = javaFileManagers.poll();
+        if (javaFileManager == null) {
+            javaFileManager = createJavaFileManager();
+        }
+        try {
+	    	List<JavaFileObject> javaFileObjects = new ArrayList<JavaFileObject>();
+	    	for (int n = 0; n < names.length; n ++) {
+	    		String name = names[n];
+	    		if (findCompiledClass(name) == null) {
+		    		int i = name.lastIndexOf('.');
+		            String packageName = i < 0 ? "" : name.substring(0, i);
+		            String className = i < 0 ? name : name.substring(i + 1);
+		            JavaFileObjectImpl javaFileObject = new JavaFileObjectImpl(className, sourceCodes[n]);
+		            javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName, 
+		                                            className + ClassUtils.JAVA_EXTENSION, javaFileObject);
+		            javaFileObjects.add(javaFileObject);
+	    		}
+	    	}
+	    	if (javaFileObjects.size() > 0) {
+	    		DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
+		    	Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options, 
+		                                          null, javaFileObjects).call();
+		        if (result == null || ! result.booleanValue()) {
+		            throw new IllegalStateException("Compilation failed. " + (names.length == 1 ? "class: " + names[0] : "classes: " + Arrays.toString(names)) 
+		            		+ ", diagnostics: " + diagnosticCollector.getDiagnostics());
+		        }
+	    	}
+	    	// 按顶层类分组，内部类与其外部类定义在同一个类加载器中
+	    	Map<String, Map<String, byte[]>> bytecodes = new HashMap<String, Map<String, byte[]>>();
+	    	for (String name : names) {
+	    		bytecodes.put(name, new HashMap<String, byte[]>());
+	    	}
+	    	for (Map.Entry<String, JavaFileObjectImpl> entry : javaFileManager.getOutputs().entrySet()) {
+	    		String name = entry.getKey();
+	    		String outer = name;
+	    		int i;
+	    		while (! bytecodes.containsKey(outer) && (i = outer.lastIndexOf('$')) > 0) {
+	    			outer = outer.substring(0, i);
+	    		}
+	    		Map<String, byte[]> classBytecodes = bytecodes.get(outer);
+	    		if (classBytecodes != null) {
+	    			classBytecodes.put(name, entry.getValue().getByteCode());
+	    		}
+	    	}
+	        Class<?>[] classes = new Class<?>[names.length];
+	        for (int i = 0; i < names.length; i ++) {
+	        	classes[i] = findCompiledClass(names[i]);
+	        	if (classes[i] == null) {
+	        		classes[i] = defineClass(names[i], bytecodes.get(names[i]));
+	        	}
+	        }
+	        return classes;
+        } finally {
+        	javaFileManager.clear();
+        	javaFileManagers.offer(javaFileManager);
+        }
     }
 
     /**
@@ -120,75 +180,13 @@ public class JdkCompiler extends AbstractCompiler {
 
     @Override
     public Class<?> doCompile(String name, String sourceCode) throws Throwable {
-    	try {
-    		return classLoader.findClass(name);
-    	} catch (ClassNotFoundException e) {
-    		int i = name.lastIndexOf('.');
-            String packageName = i < 0 ? "" : name.substring(0, i);
-            String className = i < 0 ? name : name.substring(i + 1);
-            JavaFileObjectImpl javaFileObject = new JavaFileObjectImpl(className, sourceCode);
-            javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName, 
-                                            className + ClassUtils.JAVA_EXTENSION, javaFileObject);
-            Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options, 
-                                              null, Arrays.asList(new JavaFileObject[]{javaFileObject})).call();
-            if (result == null || ! result.booleanValue()) {
-                throw new IllegalStateException("Compilation failed. class: " + name + ", diagnostics: " + diagnosticCollector.getDiagnostics());
-            }
-            return classLoader.loadClass(name);
-    	}
+    	return compileJavaFiles(new String[] { name }, new String[] { sourceCode })[0];
     }
-    
-    private final class ClassLoaderImpl extends ClassLoader {
-        
-        private final Map<String, JavaFileObject> classes = new HashMap<String, JavaFileObject>();
-
-        ClassLoaderImpl(final ClassLoader parentClassLoader) {
-            super(parentClassLoader);
-        }
-
-        Collection<JavaFileObject> files() {
-            return Collections.unmodifiableCollection(classes.values());
-        }
-
-        @Override
-        protected Class<?> findClass(final String qualifiedClassName) throws ClassNotFoundException {
-            JavaFileObject file = classes.get(qualifiedClassName);
-            if (file != null) {
-                byte[] bytes = ((JavaFileObjectImpl) file).getByteCode();
-                try {
-                    saveBytecode(qualifiedClassName, bytes);
-                } catch (IOException e) {
-                    throw new IllegalStateException(e.getMessage(), e);
-                }
-                return defineClass(qualifiedClassName, bytes, 0, bytes.length);
-            }
-            try {
-                return Class.forName(qualifiedClassName);
-            } catch (ClassNotFoundException nf) {
-                return super.findClass(qualifiedClassName);
-            }
-        }
 
-        void add(final String qualifiedClassName, final JavaFileObject javaFile) {
-            classes.put(qualifiedClassName, javaFile);
-        }
-
-        @Override
-        protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
-            return super.loadClass(name, resolve);
-        }
-
-        @Override
-        public InputStream getResourceAsStream(final String name) {
-            if (name.endsWith(ClassUtils.CLASS_EXTENSION)) {
-                String qualifiedClassName = name.substring(0, name.length() - ClassUtils.CLASS_EXTENSION.length()).replace('/', '.');
-                JavaFileObjectImpl file = (JavaFileObjectImpl) classes.get(qualifiedClassName);
-                if (file != null) {
-                    return new UnsafeByteArrayInputStream(file.getByteCode());
-                }
-            }
-            return super.getResourceAsStream(name);
-        }
+    // 在同一个编译任务中编译所有类，避免每个类都初始化一次javac
+    @Override
+    protected Class<?>[] doCompile(String[] names, String[] sourceCodes) throws Throwable {
+    	return compileJavaFiles(names, sourceCodes);
     }
     
     private static final class JavaFileObjectImpl extends SimpleJavaFileObject {
@@ -235,15 +233,14 @@ public class JdkCompiler extends AbstractCompiler {
         }
     }
     
-    private static final class JavaFileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
+    private final class JavaFileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
         
-        private final ClassLoaderImpl classLoader;
-
         private final Map<URI, JavaFileObject> fileObjects = new HashMap<URI, JavaFileObject>();
 
-        public JavaFileManagerImpl(JavaFileManager fileManager, ClassLoaderImpl classLoader) {
+        private final Map<String, JavaFileObjectImpl> outputs = new HashMap<String, JavaFileObjectImpl>();
+
+        public JavaFileManagerImpl(JavaFileManager fileManager) {
             super(fileManager);
-            this.classLoader = classLoader;
         }
 
         @Override
@@ -265,14 +262,24 @@ public class JdkCompiler extends AbstractCompiler {
         @Override
         public JavaFileObject getJavaFileForOutput(Location location, String qualifiedName, Kind kind, FileObject outputFile)
                 throws IOException {
-            JavaFileObject file = new JavaFileObjectImpl(qualifiedName, kind);
-            classLoader.add(qualifiedName, file);
+            JavaFileObjectImpl file = new JavaFileObjectImpl(qualifiedName, kind);
+            outputs.put(qualifiedName, file);
             return file;
         }
 
+        public Map<String, JavaFileObjectImpl> getOutputs() {
+            return outputs;
+        }
+
+        // 编译完成后释放源码和字节码，只由各模板的类加载器持有
+        public void clear() {
+            fileObjects.clear();
+            outputs.clear();
+        }
+
         @Override
         public ClassLoader getClassLoader(JavaFileManager.Location location) {
-            return classLoader;
+            return JdkCompiler.this.getClassLoader();
         }
 
         @Override
@@ -302,8 +309,6 @@ public class JdkCompiler extends AbstractCompiler {
                         files.add(file);
                     }
                 }
-
-                files.addAll(classLoader.files());
             } else if (location == StandardLocation.SOURCE_PATH && kinds.contains(JavaFileObject.Kind.SOURCE)) {
                 for (JavaFileObject file : fileObjects.values()) {
                     if (file.getKind() == Kind.SOURCE && file.getName().startsWith(packageName)) {
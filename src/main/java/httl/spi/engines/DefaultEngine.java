@@ -20,25 +20,40 @@ import httl.Engine;
 import httl.Expression;
 import httl.Resource;
 import httl.Template;
+import httl.spi.BatchParser;
 import httl.spi.Loader;
 import httl.spi.Logger;
 import httl.spi.Parser;
 import httl.spi.Translator;
+import httl.spi.caches.AdaptiveCache;
+import httl.spi.caches.FragmentCache;
+import httl.spi.caches.PageCache;
+import httl.spi.caches.TinyLfuCache;
 import httl.spi.loaders.StringLoader;
+import httl.util.BeanFactory;
 import httl.util.ClassUtils;
 import httl.util.ConfigUtils;
 import httl.util.StringUtils;
 import httl.util.UrlUtils;
 import httl.util.VolatileReference;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Reader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * DefaultEngine. (SPI, Singleton, ThreadSafe)
@@ -61,10 +76,52 @@ public class DefaultEngine extends Engine {
 
     private Map<Object, Object> expressionCache;
 
+    private int expressionCacheVariants;
+
+    private FragmentCache fragmentCache;
+
+    private PageCache pageCache;
+
     private boolean reloadable;
+
+    private long reloadInterval;
+
+    private boolean reloadBackground;
+
+    private ScheduledExecutorService reloadExecutor;
+
+    // 正在后台重新编译的模板
+    private final ConcurrentMap<String, Boolean> reloadingTemplates = new ConcurrentHashMap<String, Boolean>();
+
+    // 后台重新编译失败的模板及其修改时间，源文件再次修改前不再重试
+    private final ConcurrentMap<String, Long> reloadFailedTemplates = new ConcurrentHashMap<String, Long>();
     
     private boolean precompiled;
 
+    private int precompileThreads;
+
+    private boolean precompileBackground;
+
+    private volatile int precompileTotal;
+
+    private final AtomicInteger precompiledCount = new AtomicInteger();
+
+    private final AtomicInteger precompileFailedCount = new AtomicInteger();
+
+    private String warmupFile;
+
+    private long warmupInterval;
+
+    private int warmupLimit;
+
+    private volatile HotTemplates hotTemplates;
+
+    private ScheduledExecutorService warmupExecutor;
+
+    private boolean jmxEnabled;
+
+    private EngineStatistics statistics;
+
     // The engine configuration name
     private String name;
 
@@ -108,35 +165,31 @@ public class DefaultEngine extends Engine {
 		if (cache == null) {
 		    return translator.translate(source, parameterTypes, 0);
 		}
-        VolatileReference<Expression> reference = (VolatileReference<Expression>) cache.get(source);
-        if (reference == null) {
+        // 同一表达式按参数类型缓存多个特化的变体
+        ExpressionVariants variants = (ExpressionVariants) cache.get(source);
+        if (statistics != null) {
+        	statistics.recordExpression(variants != null);
+        }
+        if (variants == null) {
+        	int max = expressionCacheVariants > 0 ? expressionCacheVariants : 8;
         	if (cache instanceof ConcurrentMap) {
-        		reference = new VolatileReference<Expression>(); // quickly
-        		VolatileReference<Expression> old = (VolatileReference<Expression>) ((ConcurrentMap<Object, Object>) cache).putIfAbsent(source, reference);
+        		variants = new ExpressionVariants(source, translator, this, max); // quickly
+        		ExpressionVariants old = (ExpressionVariants) ((ConcurrentMap<Object, Object>) cache).putIfAbsent(source, variants);
         		if (old != null) { // duplicate
-        			reference = old;
+        			variants = old;
         		}
         	} else {
 	        	synchronized (cache) { // cache lock
-	        		reference = (VolatileReference<Expression>) cache.get(source);
-	                if (reference == null) { // double check
-	                	reference = new VolatileReference<Expression>(); // quickly
-	                	cache.put(source, reference);
+	        		variants = (ExpressionVariants) cache.get(source);
+	                if (variants == null) { // double check
+	                	variants = new ExpressionVariants(source, translator, this, max); // quickly
+	                	cache.put(source, variants);
 	                }
 				}
         	}
         }
-        assert(reference != null);
-        Expression expression = (Expression) reference.get();
-		if (expression == null) {
-			synchronized (reference) { // reference lock
-				expression = (Expression) reference.get();
-				if (expression == null) { // double check
-					expression = translator.translate(source, parameterTypes, 0); // slowly
-					reference.set(expression);
-				}
-			}
-		}
+        assert(variants != null);
+        Expression expression = variants.getExpression(parameterTypes);
 		assert(expression != null);
 		return expression;
     }
@@ -151,8 +204,18 @@ public class DefaultEngine extends Engine {
      * @throws IOException - If an I/O error occurs
      * @throws ParseException - If the template cannot be parsed
      */
-    @SuppressWarnings("unchecked")
 	public Template getTemplate(String name, String encoding) throws IOException, ParseException {
+		Template template = loadTemplate(name, encoding);
+		HotTemplates hot = this.hotTemplates; // safe copy reference
+		if (hot != null) {
+			hot.increment(template.getName());
+		}
+		return template;
+	}
+
+    // Get the template from the cache, without recording it as requested.
+    @SuppressWarnings("unchecked")
+	private Template loadTemplate(String name, String encoding) throws IOException, ParseException {
 		name = UrlUtils.cleanName(name);
 		Map<Object, Object> cache = this.templateCache; // safe copy reference
 		if (cache == null) {
@@ -160,7 +223,7 @@ public class DefaultEngine extends Engine {
 		}
 		Resource resource = null;
 		long lastModified;
-        if (reloadable) {
+        if (reloadable && reloadInterval <= 0) { // 定时检查时，修改的模板已从缓存中清除
         	resource = loadResource(name, encoding);
         	lastModified = resource.getLastModified();
         } else {
@@ -186,6 +249,13 @@ public class DefaultEngine extends Engine {
         }
         assert(reference != null);
         Template template = (Template) reference.get();
+        if (statistics != null) {
+        	statistics.recordTemplate(template != null && template.getLastModified() >= lastModified);
+        }
+		if (template != null && template.getLastModified() < lastModified && reloadBackground) {
+			reloadTemplate(name, resource, reference);
+			return template; // 后台编译完成前，继续使用当前版本
+		}
 		if (template == null || template.getLastModified() < lastModified) {
 			synchronized (reference) { // reference lock
 				template = (Template) reference.get();
@@ -268,6 +338,9 @@ public class DefaultEngine extends Engine {
 	public void addResource(String name, String source) {
 		name = UrlUtils.cleanName(name);
 		stringLoader.add(name, source);
+		if (reloadable) {
+			invalidateTemplate(name, null);
+		}
 	}
 
 	/**
@@ -279,6 +352,9 @@ public class DefaultEngine extends Engine {
 	public void removeResource(String name) {
 		name = UrlUtils.cleanName(name);
 		stringLoader.remove(name);
+		if (reloadable) {
+			invalidateTemplate(name, null);
+		}
 	}
 
 	/**
@@ -310,17 +386,37 @@ public class DefaultEngine extends Engine {
      * On inited.
      */
     public void inited() {
+    	if (jmxEnabled) {
+    		if (statistics != null) {
+    			statistics.registerMBean();
+    		} else if (logger != null && logger.isWarnEnabled()) {
+    			logger.warn("jmx.enabled=true is ignored, please also config statistics=" + EngineStatistics.class.getName());
+    		}
+    	}
+    	if (reloadable && (reloadInterval > 0 || reloadBackground) && templateCache != null) {
+    		reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "httl-reload");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+    		if (reloadInterval > 0) {
+	    		reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						checkModified();
+					}
+				}, reloadInterval, reloadInterval, TimeUnit.MILLISECONDS);
+    		}
+    	}
+    	if (warmupFile != null && warmupFile.length() > 0 && templateCache != null) {
+    		warmup();
+    	}
     	if (precompiled) {
             try {
-                List<String> list = loader.list();
-                for (String name : list) {
-                    try {
-                        getTemplate(name);
-                    } catch (Exception e) {
-                    	if (logger != null && logger.isErrorEnabled()) {
-                    		logger.error(e.getMessage(), e);
-                    	}
-                    }
+                ExecutorService executor = precompileAll(loader.list());
+                if (! precompileBackground) {
+                	executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
                 }
             } catch (Exception e) {
             	if (logger != null && logger.isErrorEnabled()) {
@@ -330,6 +426,312 @@ public class DefaultEngine extends Engine {
         }
     }
 
+    /**
+     * Destroy the engine, unregister the mbean and stop the background reload and warmup threads.
+     */
+    public void destroy() {
+    	super.destroy();
+    	if (statistics != null) {
+    		statistics.unregisterMBean();
+    	}
+    	if (reloadExecutor != null) {
+    		reloadExecutor.shutdownNow();
+    	}
+    	if (warmupExecutor != null) {
+    		warmupExecutor.shutdownNow();
+    		saveHotTemplates(); // 保存本次最后的记录
+    	}
+    	BeanFactory.destroyBean(parser); // 停止后台编译线程
+    }
+
+    // 加载上次运行记录的热点模板，按请求次数从多到少在后台预编译，并定时保存本次的记录
+    private void warmup() {
+    	final HotTemplates hot = new HotTemplates(new File(warmupFile));
+    	List<String> names;
+    	try {
+    		names = hot.load();
+    	} catch (Exception e) {
+    		names = new ArrayList<String>();
+    		if (logger != null && logger.isWarnEnabled()) {
+    			logger.warn("Failed to load the hot templates from " + hot.getFile().getAbsolutePath() + ", cause: " + e.getMessage(), e);
+    		}
+    	}
+    	hotTemplates = hot;
+    	warmupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "httl-warmup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+    	long interval = warmupInterval > 0 ? warmupInterval : 60000;
+    	warmupExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				saveHotTemplates();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+    	if (! precompiled && names.size() > 0) { // 全部预编译时，不需要再预热
+    		int limit = warmupLimit > 0 ? warmupLimit : names.size();
+    		precompileAll(names.subList(0, Math.min(limit, names.size())));
+    	}
+    }
+
+    private void saveHotTemplates() {
+    	HotTemplates hot = this.hotTemplates; // safe copy reference
+    	if (hot != null) {
+	    	try {
+	    		hot.save();
+	    	} catch (Throwable t) {
+	    		if (logger != null && logger.isWarnEnabled()) {
+	    			logger.warn("Failed to save the hot templates to " + hot.getFile().getAbsolutePath() + ", cause: " + t.getMessage(), t);
+	    		}
+	    	}
+    	}
+    }
+
+    // 分批提交给预编译线程，先提交的批次先编译
+    private ExecutorService precompileAll(final List<String> list) {
+        final long start = System.currentTimeMillis();
+        precompileTotal = list.size();
+        int threads = precompileThreads > 0 ? precompileThreads : Runtime.getRuntime().availableProcessors();
+        // 分成比线程数多的批次，使各线程负载均衡
+        int size = Math.max(1, (list.size() + threads * 4 - 1) / (threads * 4));
+        final AtomicInteger remaining = new AtomicInteger((list.size() + size - 1) / size);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        	private final AtomicInteger sequence = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "httl-precompile-" + sequence.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+        for (int i = 0; i < list.size(); i += size) {
+        	final List<String> names = list.subList(i, Math.min(i + size, list.size()));
+        	executor.execute(new Runnable() {
+				public void run() {
+					precompile(names);
+					if (remaining.decrementAndGet() == 0 && logger != null && logger.isInfoEnabled()) {
+	                	logger.info("Precompiled " + precompiledCount.get() + "/" + list.size() + " templates, failed " 
+	                			+ precompileFailedCount.get() + ", in " + (System.currentTimeMillis() - start) + "ms.");
+	                }
+				}
+			});
+        }
+        executor.shutdown();
+        return executor;
+    }
+
+    // 后台预编译时，请求的模板由请求线程直接编译，不用排队，预编译线程再遇到时跳过
+    private void precompile(List<String> names) {
+        if (parser instanceof BatchParser) { // 先批量编译，再逐个创建模板
+        	List<Resource> resources = new ArrayList<Resource>();
+        	for (String name : names) {
+        		name = UrlUtils.cleanName(name);
+        		if (! isCompiled(name)) {
+	        		try {
+	        			resources.add(loadResource(name, null));
+	        		} catch (Exception e) { // 加载错误由getTemplate()报告
+	        		}
+        		}
+        	}
+        	((BatchParser) parser).precompile(resources);
+        }
+        for (String name : names) {
+            try {
+                loadTemplate(name, null);
+                precompiledCount.incrementAndGet();
+            } catch (Exception e) {
+            	precompileFailedCount.incrementAndGet();
+            	if (logger != null && logger.isErrorEnabled()) {
+            		logger.error(e.getMessage(), e);
+            	}
+            }
+        }
+    }
+
+    // 定时检查缓存中的模板，修改或删除的模板从缓存中清除，渲染时不必每次检查资源的修改时间
+    private void checkModified() {
+    	Map<Object, Object> cache = this.templateCache; // safe copy reference
+    	List<Object> names;
+    	if (cache instanceof ConcurrentMap) {
+    		names = new ArrayList<Object>(cache.keySet());
+    	} else {
+    		synchronized (cache) {
+    			names = new ArrayList<Object>(cache.keySet());
+    		}
+    	}
+    	for (Object name : names) {
+    		@SuppressWarnings("unchecked")
+    		VolatileReference<Template> reference = (VolatileReference<Template>) cache.get(name);
+    		Object template = reference == null ? null : reference.get();
+    		if (template instanceof Template) {
+	    		try {
+	    			Resource resource = loadResource((String) name, ((Template) template).getEncoding());
+	    			if (((Template) template).getLastModified() < resource.getLastModified()) {
+	    				if (reloadBackground) {
+	    					reloadTemplate((String) name, resource, reference);
+	    				} else {
+	    					invalidateTemplate(name, template);
+	    				}
+	    			}
+	    		} catch (Exception e) { // 已删除的模板，由getTemplate()报告
+	    			invalidateTemplate(name, template);
+	    		}
+    		}
+    	}
+    }
+
+    // 在后台重新编译修改的模板，编译完成后原子替换，同一模板同时只编译一次
+    private void reloadTemplate(final String name, final Resource resource, final VolatileReference<Template> reference) {
+    	Long failed = reloadFailedTemplates.get(name);
+    	if (failed != null && failed.longValue() >= resource.getLastModified()) {
+    		return;
+    	}
+    	if (reloadingTemplates.putIfAbsent(name, Boolean.TRUE) != null) {
+    		return;
+    	}
+    	try {
+	    	reloadExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						Template template = parseTemplate(name, resource.getEncoding(), resource);
+						synchronized (reference) { // reference lock
+							Template old = reference.get();
+							if (old == null || old.getLastModified() < template.getLastModified()) {
+								reference.set(template);
+							}
+						}
+						reloadFailedTemplates.remove(name);
+					} catch (Exception e) {
+						reloadFailedTemplates.put(name, resource.getLastModified());
+						if (logger != null && logger.isErrorEnabled()) {
+		            		logger.error("Failed to reload template " + name + ", keep using the previous version, cause: " + e.getMessage(), e);
+		            	}
+					} finally {
+						reloadingTemplates.remove(name);
+					}
+				}
+			});
+    	} catch (RuntimeException e) {
+    		reloadingTemplates.remove(name);
+    		throw e;
+    	}
+    }
+
+    // 只清除检查过的版本，不清除期间重新编译的新版本
+    private void invalidateTemplate(Object name, Object template) {
+    	Map<Object, Object> cache = this.templateCache; // safe copy reference
+    	if (cache == null) {
+    		return;
+    	}
+    	VolatileReference<?> reference = (VolatileReference<?>) cache.get(name);
+    	if (reference != null) {
+    		synchronized (reference) { // reference lock
+	    		if (template == null || reference.get() == template) {
+	    			reference.set(null);
+	    		}
+    		}
+    	}
+    }
+
+    private boolean isCompiled(String name) {
+    	Map<Object, Object> cache = this.templateCache; // safe copy reference
+    	if (cache == null) {
+    		return false;
+    	}
+    	VolatileReference<?> reference = (VolatileReference<?>) cache.get(name);
+    	return reference != null && reference.get() != null;
+    }
+
+    /**
+     * Get the count of the templates to be precompiled.
+     */
+    public int getPrecompileTotal() {
+    	return precompileTotal;
+    }
+
+    /**
+     * Get the count of the precompiled templates.
+     */
+    public int getPrecompiledCount() {
+    	return precompiledCount.get();
+    }
+
+    /**
+     * Get the count of the templates failed to precompile.
+     */
+    public int getPrecompileFailedCount() {
+    	return precompileFailedCount.get();
+    }
+
+    int getTemplateCacheSize() {
+    	return getCacheSize(templateCache);
+    }
+
+    long getTemplateEvictionCount() {
+    	return getEvictionCount(templateCache);
+    }
+
+    int getExpressionCacheSize() {
+    	return getCacheSize(expressionCache);
+    }
+
+    long getExpressionEvictionCount() {
+    	return getEvictionCount(expressionCache);
+    }
+
+    /**
+     * Invalidate the template, it is parsed again on the next request.
+     * 
+     * @param name - template name
+     */
+    public void invalidateTemplate(String name) {
+    	invalidateTemplate(UrlUtils.cleanName(name), null);
+    }
+
+    /**
+     * Invalidate all cached templates.
+     */
+    public void invalidateTemplates() {
+    	Map<Object, Object> cache = this.templateCache; // safe copy reference
+    	if (cache == null) {
+    		return;
+    	}
+    	List<Object> names;
+    	if (cache instanceof ConcurrentMap) {
+    		names = new ArrayList<Object>(cache.keySet());
+    	} else {
+    		synchronized (cache) {
+    			names = new ArrayList<Object>(cache.keySet());
+    		}
+    	}
+    	for (Object name : names) {
+    		invalidateTemplate(name, null);
+    	}
+    }
+
+    private static int getCacheSize(Map<Object, Object> cache) {
+    	if (cache == null) {
+    		return -1;
+    	}
+    	if (cache instanceof ConcurrentMap) {
+    		return cache.size();
+    	}
+    	synchronized (cache) {
+    		return cache.size();
+    	}
+    }
+
+    private static long getEvictionCount(Map<Object, Object> cache) {
+    	if (cache instanceof AdaptiveCache) {
+    		return ((AdaptiveCache<?, ?>) cache).getEvictionCount();
+    	}
+    	if (cache instanceof TinyLfuCache) {
+    		return ((TinyLfuCache<?, ?>) cache).getEvictionCount();
+    	}
+    	return -1;
+    }
+
     /**
 	 * httl.properties name
 	 */
@@ -351,6 +753,41 @@ public class DefaultEngine extends Engine {
     	this.reloadable = reloadable;
     }
 
+    /**
+	 * httl.properties: reload.interval=1000
+	 */
+    public void setReloadInterval(long reloadInterval) {
+    	this.reloadInterval = reloadInterval;
+    }
+
+    /**
+	 * httl.properties: reload.background=true
+	 */
+    public void setReloadBackground(boolean reloadBackground) {
+    	this.reloadBackground = reloadBackground;
+    }
+
+    /**
+	 * httl.properties: jmx.enabled=true
+	 */
+    public void setJmxEnabled(boolean jmxEnabled) {
+    	this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+	 * httl.properties: statistics=httl.spi.engines.EngineStatistics
+	 */
+    public void setStatistics(EngineStatistics statistics) {
+    	this.statistics = statistics;
+    }
+
+    /**
+     * Get the cache and compile statistics, null if disabled.
+     */
+    public EngineStatistics getStatistics() {
+    	return statistics;
+    }
+
     /**
 	 * httl.properties: precompiled=true
 	 */
@@ -358,6 +795,41 @@ public class DefaultEngine extends Engine {
     	this.precompiled = precompiled;
     }
 
+    /**
+	 * httl.properties: precompile.threads=4
+	 */
+    public void setPrecompileThreads(int precompileThreads) {
+    	this.precompileThreads = precompileThreads;
+    }
+
+    /**
+	 * httl.properties: precompile.background=true
+	 */
+    public void setPrecompileBackground(boolean precompileBackground) {
+    	this.precompileBackground = precompileBackground;
+    }
+
+    /**
+	 * httl.properties: warmup.file=/var/cache/httl/hot-templates.txt
+	 */
+    public void setWarmupFile(String warmupFile) {
+    	this.warmupFile = warmupFile;
+    }
+
+    /**
+	 * httl.properties: warmup.interval=60000
+	 */
+    public void setWarmupInterval(long warmupInterval) {
+    	this.warmupInterval = warmupInterval;
+    }
+
+    /**
+	 * httl.properties: warmup.limit=100
+	 */
+    public void setWarmupLimit(int warmupLimit) {
+    	this.warmupLimit = warmupLimit;
+    }
+
     /**
 	 * httl.properties: loggers=httl.spi.loggers.Log4jLogger
 	 */
@@ -371,7 +843,42 @@ public class DefaultEngine extends Engine {
     public void setExpressionCache(Map<Object, Object> cache) {
         this.expressionCache = cache;
 	}
+
+    /**
+	 * httl.properties: expression.cache.variants=8
+	 */
+    public void setExpressionCacheVariants(int expressionCacheVariants) {
+        this.expressionCacheVariants = expressionCacheVariants;
+	}
     
+    /**
+	 * httl.properties: fragment.cache=httl.spi.caches.FragmentCache
+	 */
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+	}
+
+    /**
+     * Get the cache of the #cache blocks.
+     */
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+	}
+
+    /**
+	 * httl.properties: page.cache=httl.spi.caches.PageCache
+	 */
+    public void setPageCache(PageCache pageCache) {
+        this.pageCache = pageCache;
+	}
+
+    /**
+     * Get the cache of the whole rendered pages, null if disabled.
+     */
+    public PageCache getPageCache() {
+        return pageCache;
+	}
+
     /**
 	 * httl.properties: template.cache=java.util.concurrent.ConcurrentHashMap
 	 */
@@ -0,0 +1,301 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.engines;
+
+import httl.Engine;
+import httl.spi.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * EngineStatistics. (SPI, Singleton, ThreadSafe)
+ * 
+ * Count the cache hits and the compiles of an engine, registered in JMX instead of the engine,
+ * and only weakly reference the engine, so the MBean server does not keep the engine and its caches alive.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setStatistics(EngineStatistics)
+ * @see httl.spi.compilers.AbstractCompiler#setStatistics(EngineStatistics)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class EngineStatistics implements EngineStatisticsMBean {
+
+	// The upper bounds of the compile latency histogram buckets, in milliseconds
+	private static final long[] COMPILE_LATENCY_BOUNDS = { 10, 50, 100, 500, 1000, 5000 };
+
+	// The statistics registered by this class, by the object name
+	private static final Map<ObjectName, EngineStatistics> REGISTERED = new HashMap<ObjectName, EngineStatistics>();
+
+	private final AtomicLong templateHitCount = new AtomicLong();
+
+	private final AtomicLong templateMissCount = new AtomicLong();
+
+	private final AtomicLong expressionHitCount = new AtomicLong();
+
+	private final AtomicLong expressionMissCount = new AtomicLong();
+
+	private final AtomicLong compileCount = new AtomicLong();
+
+	private final AtomicLong compileFailedCount = new AtomicLong();
+
+	private final AtomicLong compileTime = new AtomicLong();
+
+	private final AtomicLong compileTimeMax = new AtomicLong();
+
+	private final AtomicLongArray compileLatencies = new AtomicLongArray(COMPILE_LATENCY_BOUNDS.length + 1);
+
+	private volatile WeakReference<Engine> engine;
+
+	private Logger logger;
+
+	private volatile ObjectName objectName;
+
+	/**
+	 * httl.properties: engine=httl.spi.engines.DefaultEngine
+	 */
+	public void setEngine(Engine engine) {
+		this.engine = new WeakReference<Engine>(engine);
+	}
+
+	/**
+	 * httl.properties: loggers=httl.spi.loggers.Log4jLogger
+	 */
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	public void recordTemplate(boolean hit) {
+		(hit ? templateHitCount : templateMissCount).incrementAndGet();
+	}
+
+	public void recordExpression(boolean hit) {
+		(hit ? expressionHitCount : expressionMissCount).incrementAndGet();
+	}
+
+	/**
+	 * Record the compiles, a batch is recorded as its classes with the average time.
+	 * 
+	 * @param count - the count of the compiled classes
+	 * @param time - the milliseconds spent in compiling
+	 * @param success - compiled successfully
+	 */
+	public void recordCompile(int count, long time, boolean success) {
+		if (count <= 0) {
+			return;
+		}
+		compileCount.addAndGet(count);
+		if (! success) {
+			compileFailedCount.addAndGet(count);
+		}
+		compileTime.addAndGet(time);
+		long average = time / count;
+		long max;
+		while (average > (max = compileTimeMax.get()) && ! compileTimeMax.compareAndSet(max, average)) {
+		}
+		int i = 0;
+		while (i < COMPILE_LATENCY_BOUNDS.length && average >= COMPILE_LATENCY_BOUNDS[i]) {
+			i ++;
+		}
+		compileLatencies.addAndGet(i, count);
+	}
+
+	// 同名的引擎重新创建时，替换之前注册的MBean
+	void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			String name = getName();
+			ObjectName objectName = new ObjectName("httl:type=Engine,name=" + ObjectName.quote(name == null || name.length() == 0 ? "default" : name));
+			synchronized (REGISTERED) {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+				server.registerMBean(this, objectName);
+				REGISTERED.put(objectName, this);
+			}
+			this.objectName = objectName;
+		} catch (Throwable t) { // 不支持JMX的环境
+			if (logger != null && logger.isWarnEnabled()) {
+				logger.warn("Failed to register the httl engine mbean, cause: " + t.getMessage(), t);
+			}
+		}
+	}
+
+	// 只注销自己注册的MBean，不注销同名的新引擎替换后注册的
+	void unregisterMBean() {
+		ObjectName objectName = this.objectName;
+		if (objectName == null) {
+			return;
+		}
+		this.objectName = null;
+		try {
+			synchronized (REGISTERED) {
+				if (REGISTERED.get(objectName) == this) {
+					REGISTERED.remove(objectName);
+					MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+					if (server.isRegistered(objectName)) {
+						server.unregisterMBean(objectName);
+					}
+				}
+			}
+		} catch (Throwable t) {
+			if (logger != null && logger.isWarnEnabled()) {
+				logger.warn("Failed to unregister the httl engine mbean, cause: " + t.getMessage(), t);
+			}
+		}
+	}
+
+	private DefaultEngine getDefaultEngine() {
+		WeakReference<Engine> reference = engine;
+		Engine e = reference == null ? null : reference.get();
+		return e instanceof DefaultEngine ? (DefaultEngine) e : null;
+	}
+
+	public String getName() {
+		WeakReference<Engine> reference = engine;
+		Engine e = reference == null ? null : reference.get();
+		return e == null ? null : e.getName();
+	}
+
+	public long getTemplateHitCount() {
+		return templateHitCount.get();
+	}
+
+	public long getTemplateMissCount() {
+		return templateMissCount.get();
+	}
+
+	public double getTemplateHitRatio() {
+		return getHitRatio(templateHitCount.get(), templateMissCount.get());
+	}
+
+	public int getTemplateCacheSize() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? -1 : e.getTemplateCacheSize();
+	}
+
+	public long getTemplateEvictionCount() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? -1 : e.getTemplateEvictionCount();
+	}
+
+	public long getExpressionHitCount() {
+		return expressionHitCount.get();
+	}
+
+	public long getExpressionMissCount() {
+		return expressionMissCount.get();
+	}
+
+	public double getExpressionHitRatio() {
+		return getHitRatio(expressionHitCount.get(), expressionMissCount.get());
+	}
+
+	public int getExpressionCacheSize() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? -1 : e.getExpressionCacheSize();
+	}
+
+	public long getExpressionEvictionCount() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? -1 : e.getExpressionEvictionCount();
+	}
+
+	public long getCompileCount() {
+		return compileCount.get();
+	}
+
+	public long getCompileFailedCount() {
+		return compileFailedCount.get();
+	}
+
+	public long getCompileTime() {
+		return compileTime.get();
+	}
+
+	public long getCompileTimeMax() {
+		return compileTimeMax.get();
+	}
+
+	public long[] getCompileLatencyBounds() {
+		return COMPILE_LATENCY_BOUNDS.clone();
+	}
+
+	public long[] getCompileLatencyHistogram() {
+		long[] histogram = new long[compileLatencies.length()];
+		for (int i = 0; i < histogram.length; i ++) {
+			histogram[i] = compileLatencies.get(i);
+		}
+		return histogram;
+	}
+
+	public int getPrecompileTotal() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? 0 : e.getPrecompileTotal();
+	}
+
+	public int getPrecompiledCount() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? 0 : e.getPrecompiledCount();
+	}
+
+	public int getPrecompileFailedCount() {
+		DefaultEngine e = getDefaultEngine();
+		return e == null ? 0 : e.getPrecompileFailedCount();
+	}
+
+	public void invalidateTemplate(String name) {
+		DefaultEngine e = getDefaultEngine();
+		if (e != null) {
+			e.invalidateTemplate(name);
+		}
+	}
+
+	public void invalidateTemplates() {
+		DefaultEngine e = getDefaultEngine();
+		if (e != null) {
+			e.invalidateTemplates();
+		}
+	}
+
+	public void resetStatistics() {
+		templateHitCount.set(0);
+		templateMissCount.set(0);
+		expressionHitCount.set(0);
+		expressionMissCount.set(0);
+		compileCount.set(0);
+		compileFailedCount.set(0);
+		compileTime.set(0);
+		compileTimeMax.set(0);
+		for (int i = 0; i < compileLatencies.length(); i ++) {
+			compileLatencies.set(i, 0);
+		}
+	}
+
+	private static double getHitRatio(long hits, long misses) {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.engines;
+
+/**
+ * EngineStatisticsMBean. (API, Singleton, ThreadSafe)
+ * 
+ * The JMX management interface of the engine statistics, registered as httl:type=Engine,name=&lt;config path&gt;.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setJmxEnabled(boolean)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public interface EngineStatisticsMBean {
+
+	/**
+	 * Get the engine config path.
+	 */
+	String getName();
+
+	/**
+	 * Get the count of the templates got from the cache.
+	 */
+	long getTemplateHitCount();
+
+	/**
+	 * Get the count of the templates not in the cache, or modified.
+	 */
+	long getTemplateMissCount();
+
+	double getTemplateHitRatio();
+
+	/**
+	 * Get the count of the template cache entries, -1 if the cache is disabled.
+	 */
+	int getTemplateCacheSize();
+
+	/**
+	 * Get the count of the evicted templates, -1 if unknown.
+	 */
+	long getTemplateEvictionCount();
+
+	long getExpressionHitCount();
+
+	long getExpressionMissCount();
+
+	double getExpressionHitRatio();
+
+	int getExpressionCacheSize();
+
+	long getExpressionEvictionCount();
+
+	/**
+	 * Get the count of the classes compiled by the compiler, including the lazy and the background compiles.
+	 */
+	long getCompileCount();
+
+	long getCompileFailedCount();
+
+	/**
+	 * Get the total milliseconds spent in compiling the classes.
+	 */
+	long getCompileTime();
+
+	long getCompileTimeMax();
+
+	/**
+	 * Get the upper bounds of the compile latency histogram buckets, in milliseconds.
+	 */
+	long[] getCompileLatencyBounds();
+
+	/**
+	 * Get the count of the compiles in each latency bucket, the last bucket is the compiles over the last bound.
+	 */
+	long[] getCompileLatencyHistogram();
+
+	int getPrecompileTotal();
+
+	int getPrecompiledCount();
+
+	int getPrecompileFailedCount();
+
+	/**
+	 * Invalidate the template, it is parsed again on the next request.
+	 * 
+	 * @param name - template name
+	 */
+	void invalidateTemplate(String name);
+
+	/**
+	 * Invalidate all cached templates.
+	 */
+	void invalidateTemplates();
+
+	/**
+	 * Reset the hit, miss and compile statistics.
+	 */
+	void resetStatistics();
+
+}
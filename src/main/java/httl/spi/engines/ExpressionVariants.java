@@ -0,0 +1,135 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.engines;
+
+import httl.Engine;
+import httl.Expression;
+import httl.spi.Translator;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expression Variants. (SPI, Prototype, ThreadSafe)
+ * 
+ * Keep the type specialized expressions of the same source, up to the max variants,
+ * the other parameter types share the generic expression.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setExpressionCacheVariants(int)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ExpressionVariants {
+
+	private static final Variant[] EMPTY_VARIANTS = new Variant[0];
+
+	private final String source;
+
+	private final Translator translator;
+
+	private final Engine engine;
+
+	private final int maxVariants;
+
+	// 写时复制，读取时无锁
+	private volatile Variant[] variants = EMPTY_VARIANTS;
+
+	private volatile GenericExpression generic;
+
+	public ExpressionVariants(String source, Translator translator, Engine engine, int maxVariants) {
+		this.source = source;
+		this.translator = translator;
+		this.engine = engine;
+		this.maxVariants = maxVariants;
+	}
+
+	public Expression getExpression(Map<String, Class<?>> parameterTypes) throws ParseException {
+		Expression expression = findVariant(variants, parameterTypes);
+		if (expression != null) {
+			return expression;
+		}
+		synchronized (this) {
+			Variant[] current = variants;
+			expression = findVariant(current, parameterTypes); // double check
+			if (expression != null) {
+				return expression;
+			}
+			if (current.length >= maxVariants) {
+				if (generic == null) {
+					generic = new GenericExpression(source, translator, engine, current[0].expression, parameterTypes);
+				}
+				return generic;
+			}
+			expression = translator.translate(source, parameterTypes, 0); // slowly
+			Variant[] added = new Variant[current.length + 1];
+			System.arraycopy(current, 0, added, 0, current.length);
+			added[current.length] = new Variant(parameterTypes, expression);
+			variants = added;
+			return expression;
+		}
+	}
+
+	public int getVariantCount() {
+		return variants.length;
+	}
+
+	/**
+	 * Get the type specialized expressions, and the generic expression if created.
+	 * 
+	 * @return the expressions
+	 */
+	public List<Expression> getExpressions() {
+		Variant[] current = variants;
+		List<Expression> expressions = new ArrayList<Expression>(current.length + 1);
+		for (Variant variant : current) {
+			expressions.add(variant.expression);
+		}
+		if (generic != null) {
+			expressions.add(generic);
+		}
+		return expressions;
+	}
+
+	private static Expression findVariant(Variant[] variants, Map<String, Class<?>> parameterTypes) {
+		Map<?, ?> types = parameterTypes == null ? Collections.emptyMap() : parameterTypes;
+		for (Variant variant : variants) {
+			if (variant.parameterTypes.equals(types)) {
+				return variant.expression;
+			}
+		}
+		return null;
+	}
+
+	private static final class Variant {
+
+		final Map<String, Class<?>> parameterTypes;
+
+		final Expression expression;
+
+		// 复制类型表，调用者修改传入的类型表不影响已缓存的变体
+		Variant(Map<String, Class<?>> parameterTypes, Expression expression) {
+			this.parameterTypes = parameterTypes == null ? new HashMap<String, Class<?>>() : new HashMap<String, Class<?>>(parameterTypes);
+			this.expression = expression;
+		}
+
+	}
+
+}
@@ -0,0 +1,220 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.engines;
+
+import httl.Engine;
+import httl.Expression;
+import httl.spi.Translator;
+import httl.spi.translators.expression.BinaryOperator;
+import httl.spi.translators.expression.ExpressionImpl;
+import httl.spi.translators.expression.Node;
+import httl.spi.translators.expression.UnaryOperator;
+import httl.spi.translators.expression.Variable;
+import httl.util.ClassUtils;
+
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generic Expression. (SPI, Prototype, ThreadSafe)
+ * 
+ * Object typed expression, dispatch to the expression specialized by the runtime classes of the parameters,
+ * the recently used specializations are kept in an inline cache.
+ * 
+ * @see httl.spi.engines.ExpressionVariants
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class GenericExpression implements Expression {
+
+	private static final int INLINE_CACHE_SIZE = 4;
+
+	private static final Entry[] EMPTY_ENTRIES = new Entry[0];
+
+	private final String source;
+
+	private final Translator translator;
+
+	private final Engine engine;
+
+	private final String[] names;
+
+	private final Map<String, Class<?>> parameterTypes;
+
+	// 写时复制，读取时无锁
+	private volatile Entry[] entries = EMPTY_ENTRIES;
+
+	private int evicted;
+
+	public GenericExpression(String source, Translator translator, Engine engine, Expression expression, Map<String, Class<?>> parameterTypes) {
+		this.source = source;
+		this.translator = translator;
+		this.engine = engine;
+		Set<String> variables = new LinkedHashSet<String>();
+		if (expression instanceof ExpressionImpl) {
+			collectVariables(((ExpressionImpl) expression).getNode(), variables);
+		} else if (parameterTypes != null) {
+			for (String name : parameterTypes.keySet()) {
+				if (name.indexOf(':') < 0) { // 泛型类型，如：list:0
+					variables.add(name);
+				}
+			}
+		}
+		this.names = variables.toArray(new String[variables.size()]);
+		Map<String, Class<?>> types = new LinkedHashMap<String, Class<?>>();
+		for (String name : names) {
+			types.put(name, Object.class);
+		}
+		this.parameterTypes = Collections.unmodifiableMap(types);
+	}
+
+	public Object evaluate(Map<String, Object> parameters) {
+		Class<?>[] types = new Class<?>[names.length];
+		for (int i = 0; i < names.length; i ++) {
+			Object value = parameters == null ? null : parameters.get(names[i]);
+			types[i] = value == null ? null : getPublicClass(value.getClass());
+		}
+		Expression expression = findEntry(entries, types);
+		if (expression == null) {
+			expression = addEntry(types);
+		}
+		return expression.evaluate(parameters);
+	}
+
+	private synchronized Expression addEntry(Class<?>[] types) {
+		Entry[] current = entries;
+		Expression expression = findEntry(current, types); // double check
+		if (expression != null) {
+			return expression;
+		}
+		Map<String, Class<?>> specialized = new LinkedHashMap<String, Class<?>>();
+		for (int i = 0; i < names.length; i ++) {
+			if (types[i] == null) {
+				types[i] = Object.class;
+			}
+			specialized.put(names[i], types[i]);
+		}
+		try {
+			expression = translator.translate(source, specialized, 0);
+		} catch (ParseException e) {
+			throw new IllegalStateException("Failed to specialize expression " + source + " with parameter types " + specialized + ", cause: " + ClassUtils.toString(e));
+		}
+		Entry entry = new Entry(types, expression);
+		Entry[] changed;
+		if (current.length < INLINE_CACHE_SIZE) {
+			changed = new Entry[current.length + 1];
+			System.arraycopy(current, 0, changed, 0, current.length);
+			changed[current.length] = entry;
+		} else { // 超过缓存大小时轮流替换
+			changed = current.clone();
+			changed[evicted ++ % INLINE_CACHE_SIZE] = entry;
+		}
+		entries = changed;
+		return expression;
+	}
+
+	// 参数为null时与任意类型匹配，与特化表达式中null参数的处理一致
+	private static Expression findEntry(Entry[] entries, Class<?>[] types) {
+		for (Entry entry : entries) {
+			boolean match = true;
+			for (int i = 0; i < types.length; i ++) {
+				if (types[i] != null && types[i] != entry.types[i]) {
+					match = false;
+					break;
+				}
+			}
+			if (match) {
+				return entry.expression;
+			}
+		}
+		return null;
+	}
+
+	// 包装类型按基本类型特化，非公开类型取其公开的父类或接口
+	private static Class<?> getPublicClass(Class<?> type) {
+		Class<?> unboxed = ClassUtils.getUnboxedClass(type);
+		if (unboxed.isPrimitive()) {
+			return unboxed;
+		}
+		for (Class<?> cls = type; cls != null; cls = cls.getSuperclass()) {
+			if (Modifier.isPublic(cls.getModifiers())) {
+				return cls;
+			}
+			for (Class<?> i : cls.getInterfaces()) {
+				if (Modifier.isPublic(i.getModifiers()) && i.getMethods().length > 0) { // 跳过RandomAccess等标记接口
+					return i;
+				}
+			}
+		}
+		return Object.class;
+	}
+
+	private static void collectVariables(Node node, Set<String> variables) {
+		if (node instanceof Variable) {
+			variables.add(((Variable) node).getName());
+		} else if (node instanceof BinaryOperator) {
+			collectVariables(((BinaryOperator) node).getLeftParameter(), variables);
+			collectVariables(((BinaryOperator) node).getRightParameter(), variables);
+		} else if (node instanceof UnaryOperator) {
+			collectVariables(((UnaryOperator) node).getParameter(), variables);
+		}
+	}
+
+	public Map<String, Class<?>> getParameterTypes() {
+		return parameterTypes;
+	}
+
+	public Class<?> getReturnType() {
+		return Object.class;
+	}
+
+	public String getCode() {
+		Entry[] current = entries;
+		return current.length == 0 ? source : current[current.length - 1].expression.getCode();
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public int getOffset() {
+		return 0;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	private static final class Entry {
+
+		final Class<?>[] types;
+
+		final Expression expression;
+
+		Entry(Class<?>[] types, Expression expression) {
+			this.types = types;
+			this.expression = expression;
+		}
+
+	}
+
+}
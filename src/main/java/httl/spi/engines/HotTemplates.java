@@ -0,0 +1,153 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.engines;
+
+import httl.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HotTemplates. (Tool, Prototype, ThreadSafe)
+ * 
+ * Count the requested templates, and persist the counts to a local file,
+ * one "count name" per line, the most requested first.
+ * 
+ * @see httl.spi.engines.DefaultEngine#setWarmupFile(String)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+final class HotTemplates {
+
+	private static final String ENCODING = "UTF-8";
+
+	private final File file;
+
+	private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+	HotTemplates(File file) {
+		this.file = file;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	void increment(String name) {
+		AtomicLong count = counts.get(name);
+		if (count == null) {
+			count = new AtomicLong();
+			AtomicLong old = counts.putIfAbsent(name, count);
+			if (old != null) {
+				count = old;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Load the counts of the last run, halved, so the templates no longer requested fade out.
+	 * 
+	 * @return the template names, the most requested first
+	 */
+	List<String> load() throws IOException {
+		if (! file.exists()) {
+			return Collections.emptyList();
+		}
+		String content = IOUtils.readToString(new InputStreamReader(new FileInputStream(file), ENCODING));
+		for (String line : content.split("\n")) {
+			line = line.trim();
+			int i = line.indexOf(' ');
+			if (line.length() == 0 || line.startsWith("#") || i <= 0) {
+				continue;
+			}
+			try {
+				long count = Long.parseLong(line.substring(0, i)) / 2;
+				String name = line.substring(i + 1).trim();
+				if (count > 0 && name.length() > 0) {
+					counts.putIfAbsent(name, new AtomicLong(count));
+				}
+			} catch (NumberFormatException e) { // 忽略损坏的行
+			}
+		}
+		return getNames(Integer.MAX_VALUE);
+	}
+
+	// 先写临时文件再改名，进程中断时不损坏上次的记录
+	void save() throws IOException {
+		List<Map.Entry<String, Long>> entries = getEntries();
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && ! dir.exists() && ! dir.mkdirs()) {
+			throw new IOException("Failed to create directory " + dir.getAbsolutePath());
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(temp), ENCODING);
+		try {
+			writer.write("# httl hot templates, count name\n");
+			for (Map.Entry<String, Long> entry : entries) {
+				writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+			}
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+		if (! temp.renameTo(file)) {
+			if (! file.delete() || ! temp.renameTo(file)) {
+				throw new IOException("Failed to rename " + temp.getAbsolutePath() + " to " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	List<String> getNames(int limit) {
+		List<Map.Entry<String, Long>> entries = getEntries();
+		List<String> names = new ArrayList<String>(Math.min(entries.size(), limit));
+		for (int i = 0; i < entries.size() && i < limit; i ++) {
+			names.add(entries.get(i).getKey());
+		}
+		return names;
+	}
+
+	private List<Map.Entry<String, Long>> getEntries() {
+		Map<String, Long> snapshot = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(snapshot.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+				int c = o2.getValue().compareTo(o1.getValue());
+				return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+			}
+		});
+		return entries;
+	}
+
+}
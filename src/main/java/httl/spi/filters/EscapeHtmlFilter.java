@@ -16,9 +16,11 @@
  */
 package httl.spi.filters;
 
-import httl.spi.Filter;
+import httl.spi.StreamFilter;
 import httl.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * EscapeHtmlFilter. (SPI, Singleton, ThreadSafe)
  * 
@@ -26,10 +28,14 @@ import httl.util.StringUtils;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public class EscapeHtmlFilter implements Filter {
+public class EscapeHtmlFilter implements StreamFilter {
 
     public String filter(String value) {
         return StringUtils.escapeHtml(value);
     }
 
+    public void filter(CharSequence value, Appendable output) throws IOException {
+        StringUtils.escapeHtml(value, output);
+    }
+
 }
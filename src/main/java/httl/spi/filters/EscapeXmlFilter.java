@@ -16,9 +16,11 @@
  */
 package httl.spi.filters;
 
-import httl.spi.Filter;
+import httl.spi.StreamFilter;
 import httl.util.StringUtils;
 
+import java.io.IOException;
+
 /**
  * EscapeXmlFilter. (SPI, Singleton, ThreadSafe)
  * 
@@ -26,10 +28,14 @@ import httl.util.StringUtils;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public class EscapeXmlFilter implements Filter {
+public class EscapeXmlFilter implements StreamFilter {
 
     public String filter(String value) {
         return StringUtils.escapeXml(value);
     }
 
+    public void filter(CharSequence value, Appendable output) throws IOException {
+        StringUtils.escapeXml(value, output);
+    }
+
 }
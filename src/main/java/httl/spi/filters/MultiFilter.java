@@ -17,6 +17,9 @@
 package httl.spi.filters;
 
 import httl.spi.Filter;
+import httl.spi.StreamFilter;
+
+import java.io.IOException;
 
 /**
  * MultiFilter. (SPI, Singleton, ThreadSafe)
@@ -26,7 +29,7 @@ import httl.spi.Filter;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public abstract class MultiFilter implements Filter {
+public abstract class MultiFilter implements StreamFilter {
     
     private Filter[] filters;
     
@@ -42,6 +45,10 @@ public abstract class MultiFilter implements Filter {
     	}
     }
 
+    public Filter[] getFilters() {
+    	return filters;
+    }
+
     public String filter(String value) {
     	if (filters == null || filters.length == 0) {
     		return value;
@@ -55,4 +62,30 @@ public abstract class MultiFilter implements Filter {
         return value;
     }
 
+    public void filter(CharSequence value, Appendable output) throws IOException {
+    	if (filters == null || filters.length == 0) {
+    		if (value != null) {
+    			output.append(value);
+    		}
+    		return;
+    	}
+    	// 只有最后一个过滤器可以直接写入输出，前面的过滤器仍需生成中间串
+    	Filter last = filters[filters.length - 1];
+    	if (filters.length > 1 || ! (last instanceof StreamFilter)) {
+    		String str = value == null ? null : value.toString();
+    		for (int i = 0; i < filters.length - 1; i ++) {
+    			str = filters[i].filter(str);
+    		}
+    		if (! (last instanceof StreamFilter)) {
+    			str = last.filter(str);
+    			if (str != null) {
+    				output.append(str);
+    			}
+    			return;
+    		}
+    		value = str;
+    	}
+    	((StreamFilter) last).filter(value, output);
+    }
+
 }
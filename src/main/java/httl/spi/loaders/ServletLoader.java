@@ -21,6 +21,7 @@ import httl.Resource;
 import httl.spi.Loader;
 import httl.spi.Logger;
 import httl.util.UrlUtils;
+import httl.web.WebEngine;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -62,6 +63,7 @@ public class ServletLoader extends AbstractLoader implements ServletContextListe
     }
 
     public void contextDestroyed(ServletContextEvent sce) {
+    	WebEngine.destroy();
         SERVLET_CONTEXT = null;
     }
     
@@ -52,6 +52,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Array;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
@@ -229,24 +230,59 @@ public class DefaultMethod {
     }
 
     public Object include(String name) throws IOException, ParseException {
-        return include(name, null, null);
+        return include(name, (String) null, (Map<String, Object>) null);
     }
 
     public Object include(String name, String encoding) throws IOException, ParseException {
-    	return include(name, encoding, null);
+    	return include(name, encoding, (Map<String, Object>) null);
     }
 
     public Object include(String name, Map<String, Object> parameters) throws IOException, ParseException {
-    	return include(name, null, parameters);
+    	return include(name, (String) null, parameters);
     }
 
     public Object include(String name, String encoding, Map<String, Object> parameters) throws IOException, ParseException {
-        Template template = parse(name, encoding);
+        return parse(name, encoding).evaluate(getIncludeParameters(parameters));
+    }
+
+    public void include(String name, Writer output) throws IOException, ParseException {
+        include(name, null, null, output);
+    }
+
+    public void include(String name, String encoding, Writer output) throws IOException, ParseException {
+    	include(name, encoding, null, output);
+    }
+
+    public void include(String name, Map<String, Object> parameters, Writer output) throws IOException, ParseException {
+    	include(name, null, parameters, output);
+    }
+
+    public void include(String name, String encoding, Map<String, Object> parameters, Writer output) throws IOException, ParseException {
+        parse(name, encoding).render(getIncludeParameters(parameters), output);
+    }
+
+    public void include(String name, OutputStream output) throws IOException, ParseException {
+        include(name, null, null, output);
+    }
+
+    public void include(String name, String encoding, OutputStream output) throws IOException, ParseException {
+    	include(name, encoding, null, output);
+    }
+
+    public void include(String name, Map<String, Object> parameters, OutputStream output) throws IOException, ParseException {
+    	include(name, null, parameters, output);
+    }
+
+    public void include(String name, String encoding, Map<String, Object> parameters, OutputStream output) throws IOException, ParseException {
+        parse(name, encoding).render(getIncludeParameters(parameters), output);
+    }
+
+    private Map<String, Object> getIncludeParameters(Map<String, Object> parameters) {
         Map<String, Object> map = Context.getContext().getParameters();
         if (parameters != null) {
         	map = new WrappedMap<String, Object>(map, parameters);
         }
-        return template.evaluate(map);
+        return map;
     }
 
     public String locale(String name) {
@@ -21,20 +21,30 @@ import httl.Engine;
 import httl.Expression;
 import httl.Resource;
 import httl.Template;
+import httl.spi.BatchCompiler;
+import httl.spi.BatchParser;
 import httl.spi.Compiler;
 import httl.spi.Filter;
 import httl.spi.Formatter;
 import httl.spi.Logger;
 import httl.spi.Parser;
+import httl.spi.StreamFilter;
 import httl.spi.Translator;
+import httl.spi.loaders.StringResource;
 import httl.spi.parsers.template.AbstractTemplate;
 import httl.spi.parsers.template.AdaptiveTemplate;
 import httl.spi.parsers.template.ForeachStatus;
+import httl.spi.parsers.template.InterpretedTemplate;
+import httl.spi.parsers.template.InterpretedTemplate.Statement;
 import httl.spi.parsers.template.OutputStreamTemplate;
+import httl.spi.parsers.template.TieredTemplate;
 import httl.spi.parsers.template.WriterTemplate;
+import httl.spi.sequences.IntegerSequence;
 import httl.spi.translators.expression.ExpressionImpl;
+import httl.spi.translators.expression.Interpreter;
 import httl.util.ByteCache;
 import httl.util.ClassUtils;
+import httl.util.LinkedStack;
 import httl.util.OrderedMap;
 import httl.util.StringCache;
 import httl.util.StringUtils;
@@ -46,13 +56,21 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -64,7 +82,7 @@ import java.util.regex.Pattern;
  * 
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  */
-public abstract class AbstractParser implements Parser {
+public abstract class AbstractParser implements BatchParser {
     
     protected static final char SPECIAL = '\27';
 
@@ -120,8 +138,18 @@ public abstract class AbstractParser implements Parser {
 
     protected static final String MACRO = "macro";
 
+    protected static final String CACHE = "cache";
+
     protected static final String END = "end";
 
+    protected static final String STATUS_BEGIN = "/*status:begin*/";
+
+    protected static final String STATUS_END = "/*status:end*/";
+
+    protected static final String STATUS_RESTORE = "/*status:restore*/";
+
+    protected static final Pattern STATUS_PATTERN = Pattern.compile("/\\*status:(begin|end|restore)\\*/([^\n]*)\n");
+
     protected String varName = VAR;
 
     protected String setName = SET;
@@ -138,6 +166,8 @@ public abstract class AbstractParser implements Parser {
 
     protected String macroName = MACRO;
 
+    protected String cacheName = CACHE;
+
     protected String endName = END;
 
     protected String foreachStatus = FOREACH;
@@ -160,6 +190,8 @@ public abstract class AbstractParser implements Parser {
     
     protected final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
 
+    private volatile boolean inited;
+
 	protected String[] importPackages;
 
     protected Set<String> importPackageSet;
@@ -168,6 +200,20 @@ public abstract class AbstractParser implements Parser {
 
     protected static final String TEMPLATE_CLASS_PREFIX = AbstractTemplate.class.getPackage().getName() + ".Template_";
     
+    // 批量编译时收集的源码，包括各模板的宏类
+    private static final ThreadLocal<List<String>> BATCH_SOURCES = new ThreadLocal<List<String>>();
+
+    // 模板类只按名称引用宏类，模板实例化前持有已编译的宏类，避免其类加载器被回收
+    private static final ThreadLocal<List<Class<?>>> MACRO_CLASSES = new ThreadLocal<List<Class<?>>>();
+
+    // 生成#cache块的结束代码时，取出块开始时的片段变量和过期时间
+    private static final ThreadLocal<CacheBlocks> CACHE_BLOCKS = new ThreadLocal<CacheBlocks>();
+
+    // 解释执行时记录的指令，生成的代码中只保留指令序号
+    private static final ThreadLocal<List<Object[]>> INTERPRETED_DIRECTIVES = new ThreadLocal<List<Object[]>>();
+
+    protected static final Pattern INTERPRETED_PATTERN = Pattern.compile("\\{([0-9]+)\\}");
+
     protected static final Pattern SYMBOL_PATTERN = Pattern.compile("[^(_a-zA-Z0-9)]");
 
     protected final AtomicInteger TMP_VAR_SEQ = new AtomicInteger();
@@ -179,8 +225,20 @@ public abstract class AbstractParser implements Parser {
     protected boolean sourceInClass;
 
 	protected boolean textInClass;
+
+	private boolean compileToDirectory;
 	
 	protected boolean removeDirectiveBlank;
+
+	protected int splitMethodLength;
+
+	protected int compileBatchSize;
+
+	protected int templateCompileThreshold;
+
+	private volatile ExecutorService compileExecutor;
+
+	private volatile boolean destroyed;
 	
 	protected String outputEncoding;
 	
@@ -277,6 +335,13 @@ public abstract class AbstractParser implements Parser {
 		this.textInClass = textInClass;
 	}
 
+	/**
+	 * httl.properties: compile.directory=classes
+	 */
+	public void setCompileDirectory(String compileDirectory) {
+		this.compileToDirectory = compileDirectory != null && compileDirectory.trim().length() > 0;
+	}
+
 	/**
      * httl.properties: remove.directive.blank=true
      */
@@ -284,6 +349,27 @@ public abstract class AbstractParser implements Parser {
 		this.removeDirectiveBlank = removeDirectiveBlank;
 	}
 
+    /**
+     * httl.properties: split.method.length=10000
+     */
+	public void setSplitMethodLength(int splitMethodLength) {
+		this.splitMethodLength = splitMethodLength;
+	}
+
+    /**
+     * httl.properties: compile.batch.size=200
+     */
+	public void setCompileBatchSize(int compileBatchSize) {
+		this.compileBatchSize = compileBatchSize;
+	}
+
+    /**
+     * httl.properties: template.compile.threshold=1000
+     */
+	public void setTemplateCompileThreshold(int templateCompileThreshold) {
+		this.templateCompileThreshold = templateCompileThreshold;
+	}
+
     /**
      * httl.properties: attribute.namespace=httl
      */
@@ -298,6 +384,7 @@ public abstract class AbstractParser implements Parser {
             setName = namespace + SET;
             varName = namespace + VAR;
             macroName = namespace + MACRO;
+            cacheName = namespace + CACHE;
         }
 	}
 
@@ -352,230 +439,632 @@ public abstract class AbstractParser implements Parser {
         		}
         	}
         }
+    	inited = true;
     }
 
     protected abstract String doParse(Resource resoure, boolean stream, String source, Translator translator, 
                                       List<String> parameters, List<Class<?>> parameterTypes, 
-                                      Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, Class<?>> macros) throws IOException, ParseException;
+                                      Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, String> macros) throws IOException, ParseException;
 
-    public Template parse(Resource resource) throws IOException, ParseException {
+    public Template parse(Resource source) throws IOException, ParseException {
     	try {
-    		Template writerTemplate = null;
-	    	Template streamTemplate = null;
-	    	if (isOutputWriter || ! isOutputStream) {
-	    		Class<?> clazz = parseClass(resource, false, 0);
-	        	writerTemplate = (Template) clazz.getConstructor(Engine.class, Filter.class, Formatter.class, Map.class, Map.class)
-						.newInstance(engine, valueFilter, formatter, functions, importMacroTemplates);
-	    	}
-	    	if (isOutputStream) {
-	    		Class<?> clazz = parseClass(resource, true, 0);
-	    		streamTemplate = (Template) clazz.getConstructor(Engine.class, Filter.class, Formatter.class, Map.class, Map.class)
-						.newInstance(engine, valueFilter, formatter, functions, importMacroTemplates);
+    		final Resource resource = snapshot(source);
+    		if (templateCompileThreshold > 0 && inited) {
+    			// 先解释执行，渲染次数达到阈值后再后台编译，不能解释的模板直接编译
+    			Template template = interpretTemplate(resource);
+    			if (template != null) {
+    				return new TieredTemplate(template, templateCompileThreshold, getCompileExecutor(), new Callable<Template>() {
+						public Template call() throws Exception {
+							return compileTemplate(resource);
+						}
+					}, logger);
+    			}
+    		}
+	    	if (isOutputWriter && isOutputStream && ! inited) { // 导入宏时，importMacroTemplates还未完成，两种输出类型都立即编译
+	    		return new AdaptiveTemplate(parseTemplate(resource, false), parseTemplate(resource, true));
 	    	}
-	    	if (writerTemplate != null && streamTemplate != null) {
-	    		return new AdaptiveTemplate(writerTemplate, streamTemplate);
-	    	} else if (streamTemplate != null) {
-	    		return streamTemplate;
-	    	} else {
-	    		return writerTemplate;
+	    	if (isOutputWriter && isOutputStream) {
+	    		// 先只编译当前输出类型的模板，另一种输出类型在首次使用时再编译
+	    		final boolean stream = isPreferredStream();
+	    		Template template = parseTemplate(resource, stream);
+	    		return new AdaptiveTemplate(template, stream, new Callable<Template>() {
+					public Template call() throws Exception {
+						try {
+							return parseTemplate(resource, ! stream);
+						} catch (Exception e) {
+							throw new ParseException("Filed to parse template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
+						}
+					}
+				});
 	    	}
+	    	return parseTemplate(resource, isOutputStream);
     	} catch (Exception e) {
-			throw new ParseException("Filed to parse template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
+			throw new ParseException("Filed to parse template: " + source.getName() + ", cause: " + ClassUtils.toString(e), 0);
 		}
     }
+
+    // 两种输出类型的模板在不同时间编译，使用同一版本的源码和修改时间，不重复读取资源
+    private static Resource snapshot(final Resource resource) {
+    	if (resource instanceof StringResource) {
+    		return resource;
+    	}
+    	long lastModified = resource.getLastModified();
+    	final long length = resource.getLength();
+    	return new StringResource(resource.getEngine(), resource.getName(), resource.getEncoding(), lastModified, resource.getSource()) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public long getLength() {
+				return length;
+			}
+		};
+    }
+
+    // 没有当前的输出时，如Engine.getTemplate()和后台编译，按output.stream配置先编译流输出的模板，与WebEngine的输出类型一致
+    private boolean isPreferredStream() {
+    	Object output = Context.getContext().getOutput();
+    	if (output != null) {
+    		return output instanceof OutputStream;
+    	}
+    	return isOutputStream;
+    }
+
+    /**
+     * Compile the template classes in batches, so the following parse(resource) need not to invoke the compiler for each class.
+     * 
+     * @param resources - template resources
+     */
+    public void precompile(List<Resource> resources) {
+    	if (compileBatchSize <= 0 || ! (compiler instanceof BatchCompiler) 
+    			|| resources == null || resources.size() == 0) {
+    		return;
+    	}
+    	// 与parse(resource)编译相同的输出类型
+    	List<Boolean> streams = new ArrayList<Boolean>();
+    	if (isOutputWriter && isOutputStream) {
+    		boolean stream = isPreferredStream();
+    		streams.add(stream);
+    		if (! inited) {
+    			streams.add(! stream);
+    		}
+    	} else {
+    		streams.add(isOutputStream);
+    	}
+    	List<String> batch = new ArrayList<String>();
+    	BATCH_SOURCES.set(batch);
+    	try {
+	    	for (Resource resource : resources) {
+	    		for (boolean stream : streams) {
+	    			String name = getClassName(resource, stream);
+	    			try {
+	    				Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+	    				continue;
+	    			} catch (ClassNotFoundException e) {
+	    			}
+	    			int size = batch.size();
+	    			try {
+	    				batch.add(parseSource(name, resource, stream, 0));
+	    			} catch (Exception e) { // 解析错误由parse(resource)报告
+	    				batch.subList(size, batch.size()).clear();
+	    			}
+	    		}
+	    		if (batch.size() >= compileBatchSize) {
+	    			compileBatch(batch);
+	    			batch.clear();
+	    		}
+	    	}
+	    	compileBatch(batch);
+    	} finally {
+    		BATCH_SOURCES.remove();
+    	}
+    }
+
+    private void compileBatch(List<String> batch) {
+    	if (batch.size() == 0) {
+    		return;
+    	}
+    	try {
+    		((BatchCompiler) compiler).compile(batch.toArray(new String[batch.size()]));
+    	} catch (ParseException e) { // 编译错误由parse(resource)报告
+    		if (logger != null && logger.isDebugEnabled()) {
+    			logger.debug("Failed to compile template classes in batch, cause: " + e.getMessage(), e);
+    		}
+    	}
+    }
+
+    // 后台编译时先编译首选输出类型的模板，另一种输出类型在首次使用时再编译
+    private Template compileTemplate(final Resource resource) throws Exception {
+    	if (isOutputWriter && isOutputStream) {
+    		final boolean stream = isPreferredStream();
+    		return new AdaptiveTemplate(parseTemplate(resource, stream), stream, new Callable<Template>() {
+				public Template call() throws Exception {
+					return parseTemplate(resource, ! stream);
+				}
+			});
+    	}
+    	return parseTemplate(resource, isOutputStream);
+    }
+
+    private ExecutorService getCompileExecutor() {
+    	ExecutorService executor = compileExecutor;
+    	if (executor == null) {
+    		synchronized (this) {
+    			executor = compileExecutor;
+    			if (executor == null) {
+    				executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "httl-compile");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+    				if (destroyed) { // 已销毁，不再接受编译任务
+    					executor.shutdown();
+    				}
+    				compileExecutor = executor;
+    			}
+    		}
+    	}
+    	return executor;
+    }
+
+    /**
+     * Stop the background compile thread.
+     * 
+     * @see httl.spi.engines.DefaultEngine#destroy()
+     */
+    public void destroy() {
+    	synchronized (this) {
+    		destroyed = true;
+    		if (compileExecutor != null) {
+    			compileExecutor.shutdownNow();
+    		}
+    	}
+    }
+
+    private Template parseTemplate(Resource resource, boolean stream) throws Exception {
+    	boolean outermost = MACRO_CLASSES.get() == null;
+    	if (outermost) {
+    		MACRO_CLASSES.set(new ArrayList<Class<?>>());
+    	}
+    	try {
+	    	Class<?> clazz = parseClass(resource, stream, 0);
+	    	return (Template) clazz.getConstructor(Engine.class, Filter.class, Formatter.class, Map.class, Map.class)
+					.newInstance(engine, valueFilter, formatter, functions, importMacroTemplates);
+    	} finally {
+    		if (outermost) {
+    			MACRO_CLASSES.remove();
+    		}
+    	}
+    }
     
     protected Class<?> parseClass(Resource resource, boolean stream, int offset) throws IOException, ParseException {
-        String name = TEMPLATE_CLASS_PREFIX + SYMBOL_PATTERN.matcher(resource.getName() + "_" + resource.getEncoding() + "_" + resource.getLastModified() + "_" + (stream ? "stream" : "writer")).replaceAll("_");
+        String name = getClassName(resource, stream);
         try {
             return Class.forName(name, true, Thread.currentThread().getContextClassLoader());
         } catch (ClassNotFoundException e) {
-        	Set<String> variables = new HashSet<String>();
-        	Map<String, Class<?>> types = new HashMap<String, Class<?>>();
-        	Map<String, Class<?>> returnTypes = new HashMap<String, Class<?>>();
-        	StringBuilder statusInit = new StringBuilder();
-            types.put(foreachStatus, ForeachStatus.class);
-            for (String macro : importMacroTemplates.keySet()) {
-            	types.put(macro, Template.class);
-            	statusInit.append(Template.class.getName() + " " + macro + " = getImportMacros().get(\"" + macro + "\");\n");
-            }
-            statusInit.append(ForeachStatus.class.getName() + " " + foreachStatus + " = null;\n");
-            List<String> parameters = new ArrayList<String>();
-            List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
-            Map<String, Class<?>> macros = new HashMap<String, Class<?>>();
-            StringBuilder textFields = new StringBuilder();
-            StringBuilder textInits = new StringBuilder();
-            String source = resource.getSource();
-            String src = source;
-            src = filterCData(src);
-            src = filterComment(src);
-            src = filterEscape(src);
-            src = doParse(resource, stream, src, translator, parameters, parameterTypes, variables, types, returnTypes, macros);
-            String code = filterStatement(src, textFilter, translator, textFields, textInits, types, new AtomicInteger(), stream);
-            int i = name.lastIndexOf('.');
-            String packageName = i < 0 ? "" : name.substring(0, i);
-            String className = i < 0 ? name : name.substring(i + 1);
-            StringBuilder imports = new StringBuilder();
-            String[] packages = importPackages;
-            if (packages != null && packages.length > 0) {
-                for (String pkg : packages) {
-                    imports.append("import ");
-                    imports.append(pkg);
-                    imports.append(".*;\n");
-                }
+            return compiler.compile(parseSource(name, resource, stream, offset));
+        } catch (Exception e) {
+            throw new ParseException("Filed to parse template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
+        }
+    }
+
+    // 批量编译时，宏的源码与模板加入同一批编译，只需要类名
+    protected String parseMacro(Resource resource, boolean stream, int offset) throws IOException, ParseException {
+        if (INTERPRETED_DIRECTIVES.get() != null) {
+            throw new ParseException("Unsupported interpreting macro " + resource.getName(), offset);
+        }
+        List<String> batch = BATCH_SOURCES.get();
+        if (batch == null) {
+            Class<?> macroClass = parseClass(resource, stream, offset);
+            List<Class<?>> macroClasses = MACRO_CLASSES.get();
+            if (macroClasses != null) {
+            	macroClasses.add(macroClass);
             }
-            StringBuilder declare = new StringBuilder();
-            for (String var : variables) {
-            	if (! parameters.contains(var)) {
-	                Class<?> type = types.get(var);
-	                String pkgName = type.getPackage() == null ? null : type.getPackage().getName();
-	                String typeName;
-	                if (pkgName != null && ("java.lang".equals(pkgName) 
-	                        || (importPackageSet != null && importPackageSet.contains(pkgName)))) {
-	                    typeName = type.getSimpleName();
-	                } else {
-	                    typeName = type.getCanonicalName();
-	                }
-	                declare.append(typeName + " " + var + " = " + ClassUtils.getInitCode(type) + ";\n");
-            	}
+            return macroClass.getName();
+        }
+        String name = getClassName(resource, stream);
+        batch.add(parseSource(name, resource, stream, offset));
+        return name;
+    }
+
+    private String getClassName(Resource resource, boolean stream) {
+        return TEMPLATE_CLASS_PREFIX + SYMBOL_PATTERN.matcher(resource.getName() + "_" + resource.getEncoding() + "_" + resource.getLastModified() + "_" + (stream ? "stream" : "writer")).replaceAll("_");
+    }
+
+    private String parseSource(String name, Resource resource, boolean stream, int offset) throws IOException, ParseException {
+    	Set<String> variables = new HashSet<String>();
+    	Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+    	Map<String, Class<?>> returnTypes = new HashMap<String, Class<?>>();
+    	StringBuilder statusInit = new StringBuilder();
+        types.put(foreachStatus, ForeachStatus.class);
+        for (String macro : importMacroTemplates.keySet()) {
+        	types.put(macro, Template.class);
+        	statusInit.append(Template.class.getName() + " " + macro + " = getImportMacros().get(\"" + macro + "\");\n");
+        }
+        statusInit.append(ForeachStatus.class.getName() + " " + foreachStatus + " = null;\n");
+        List<String> parameters = new ArrayList<String>();
+        List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+        Map<String, String> macros = new HashMap<String, String>();
+        StringBuilder textFields = new StringBuilder();
+        StringBuilder textInits = new StringBuilder();
+        String source = resource.getSource();
+        String src = source;
+        src = filterCData(src);
+        src = filterComment(src);
+        src = filterEscape(src);
+        CacheBlocks cacheBlocks = CACHE_BLOCKS.get(); // 宏在模板的解析过程中解析
+        CACHE_BLOCKS.set(new CacheBlocks(resource.getName() + "@" + resource.getLastModified() + (stream ? ":stream" : ":writer")));
+        try {
+        	src = doParse(resource, stream, src, translator, parameters, parameterTypes, variables, types, returnTypes, macros);
+        } finally {
+        	if (cacheBlocks == null) {
+        		CACHE_BLOCKS.remove();
+        	} else {
+        		CACHE_BLOCKS.set(cacheBlocks);
+        	}
+        }
+        String code = filterStatement(src, textFilter, translator, textFields, textInits, types, new AtomicInteger(), stream);
+        code = filterForeachStatus(code);
+        int i = name.lastIndexOf('.');
+        String packageName = i < 0 ? "" : name.substring(0, i);
+        String className = i < 0 ? name : name.substring(i + 1);
+        StringBuilder imports = new StringBuilder();
+        String[] packages = importPackages;
+        if (packages != null && packages.length > 0) {
+            for (String pkg : packages) {
+                imports.append("import ");
+                imports.append(pkg);
+                imports.append(".*;\n");
             }
-            StringBuilder funtionFileds = new StringBuilder();
-            StringBuilder functionInits = new StringBuilder();
-            for (Map.Entry<Class<?>, Object> function : functions.entrySet()) {
-            	Class<?> functionType = function.getKey();
-            	if (function.getValue() instanceof Class) {
-            		continue;
-            	}
-            	String pkgName = functionType.getPackage() == null ? null : functionType.getPackage().getName();
+        }
+        StringBuilder declare = new StringBuilder();
+        for (String var : variables) {
+        	if (! parameters.contains(var)) {
+                Class<?> type = types.get(var);
+                String pkgName = type.getPackage() == null ? null : type.getPackage().getName();
                 String typeName;
                 if (pkgName != null && ("java.lang".equals(pkgName) 
                         || (importPackageSet != null && importPackageSet.contains(pkgName)))) {
-                    typeName = functionType.getSimpleName();
+                    typeName = type.getSimpleName();
                 } else {
-                    typeName = functionType.getCanonicalName();
+                    typeName = type.getCanonicalName();
                 }
-                funtionFileds.append("private final ");
-            	funtionFileds.append(typeName);
-            	funtionFileds.append(" _");
-            	funtionFileds.append(functionType.getName().replace('.','_'));
-            	funtionFileds.append(";\n");
-            	
-            	functionInits.append("	this._");
-            	functionInits.append(functionType.getName().replace('.','_'));
-            	functionInits.append(" = (");
-            	functionInits.append(typeName);
-            	functionInits.append(") functions.get(");
-            	functionInits.append(typeName);
-            	functionInits.append(".class);\n");
-            }
-            
-            // TODO 将ForeachStatus中的Stack改成直接生成局部变量，使用JVM的线程栈
-            String methodCode = statusInit.toString() + declare + code;
-            
-            if (sourceInClass) {
-        		textFields.append("private static final String $SRC = \"" + StringUtils.escapeString(source) + "\";\n");
-        		textFields.append("private static final String $CODE = \"" + StringUtils.escapeString(methodCode) + "\";\n");
-        	} else {
-        		String sourceCodeId = StringCache.put(source);
-        		textFields.append("private static final String $SRC = " + StringCache.class.getName() +  ".getAndRemove(\"" + sourceCodeId + "\");\n");
-        		String methodCodeId = StringCache.put(methodCode);
-        		textFields.append("private static final String $CODE = " + StringCache.class.getName() +  ".getAndRemove(\"" + methodCodeId + "\");\n");
+                declare.append(typeName + " " + var + " = " + ClassUtils.getInitCode(type) + ";\n");
+        	}
+        }
+        StringBuilder funtionFileds = new StringBuilder();
+        StringBuilder functionInits = new StringBuilder();
+        for (Map.Entry<Class<?>, Object> function : functions.entrySet()) {
+        	Class<?> functionType = function.getKey();
+        	if (function.getValue() instanceof Class) {
+        		continue;
         	}
-            
-            textFields.append("private static final Map $PTS = " + toTypeCode(parameters, parameterTypes) + ";\n");
-            textFields.append("private static final Map $CTS = " + toTypeCode(returnTypes) + ";\n");
-            
-            String sorceCode = "package " + packageName + ";\n" 
-                    + "\n"
-                    + imports.toString()
-                    + "\n"
-                    + "public final class " + className + " extends " + (stream ? OutputStreamTemplate.class.getName() : WriterTemplate.class.getName()) + " {\n" 
-                    + "\n"
-                    + textFields
-                    + "\n"
-                    + funtionFileds
-                    + "\n"
-                    + "public " + className + "("
-                    + Engine.class.getName() + " engine, " 
-                    + Filter.class.getName() + " filter, "
-                    + Formatter.class.getName() + " formatter, "
-                    + Map.class.getName() + " functions, " 
-                    + Map.class.getName() + " importMacros) {\n" 
-                    + "	super(engine, filter, formatter, functions, importMacros);\n"
-                    + functionInits
-                    + textInits
-                    + "}\n"
-                    + "\n"
-                    + "protected void doRender(" + Context.class.getName() + " $context, " + Map.class.getName() + " $parameters, " 
-                    + (stream ? OutputStream.class.getName() : Writer.class.getName())
-                    + " $output) throws " + Exception.class.getName() + " {\n" 
-                    + methodCode
-                    + "}\n"
-                    + "\n"
-    				+ "public " + String.class.getSimpleName() + " getName() {\n"
-    				+ "	return \"" + resource.getName() + "\";\n"
-    				+ "}\n"
-                    + "\n"
-    			    + "public " + String.class.getSimpleName() + " getEncoding() {\n"
-    			    + "	return \"" + resource.getEncoding() + "\";\n"
-    			    + "}\n"
-                    + "\n"
-    			    + "public long getLastModified() {\n"
-    			    + "	return " + resource.getLastModified() + "L;\n"
-    			    + "}\n"
-                    + "\n"
-    			    + "public long getLength() {\n"
-    			    + "	return " + resource.getLength() + "L;\n"
-    			    + "}\n"
-                    + "\n"
-    			    + "public " + String.class.getSimpleName() + " getSource() {\n"
-    			    + "	return $SRC;\n"
-    			    + "}\n"
-                    + "\n"
-                    + "public " + String.class.getSimpleName() + " getCode() {\n"
-                    + "	return $CODE;\n"
-                    + "}\n"
-                    + "\n"
-                    + "public " + Map.class.getName() + " getParameterTypes() {\n"
-                    + "	return $PTS;\n"
-                    + "}\n"
-                    + "\n"
-                    + "public " + Map.class.getName() + " getContextTypes() {\n"
-                    + "	return $CTS;\n"
-                    + "}\n"
-                    + "\n"
-                    + "public " + Map.class.getName() + " getMacroTypes() {\n"
-                    + "	return " + toTypeCode(macros) + ";\n"
-                    + "}\n"
-                    + "\n"
-                    + "public boolean isMacro() {\n"
-                    + "	return " + (offset > 0 || resource.getName().indexOf(POUND) >= 0) + ";\n"
-                    + "}\n"
-                    + "\n"
-                    + "public int getOffset() {\n"
-                    + "	return " + offset + ";\n"
-                    + "}\n"
-                    + "\n"
-                    + "}\n";
-            if (logger != null && logger.isDebugEnabled()) {
-            	logger.debug("\n================================\n" + resource.getName() + "\n================================\n" + sorceCode + "\n================================\n");
+        	String pkgName = functionType.getPackage() == null ? null : functionType.getPackage().getName();
+            String typeName;
+            if (pkgName != null && ("java.lang".equals(pkgName) 
+                    || (importPackageSet != null && importPackageSet.contains(pkgName)))) {
+                typeName = functionType.getSimpleName();
+            } else {
+                typeName = functionType.getCanonicalName();
+            }
+            funtionFileds.append("private final ");
+        	funtionFileds.append(typeName);
+        	funtionFileds.append(" _");
+        	funtionFileds.append(functionType.getName().replace('.','_'));
+        	funtionFileds.append(";\n");
+        	
+        	functionInits.append("	this._");
+        	functionInits.append(functionType.getName().replace('.','_'));
+        	functionInits.append(" = (");
+        	functionInits.append(typeName);
+        	functionInits.append(") functions.get(");
+        	functionInits.append(typeName);
+        	functionInits.append(".class);\n");
+        }
+        
+        String methodCode = statusInit.toString() + declare + code;
+        String renderCode = methodCode;
+        String splitCode = "";
+        if (splitMethodLength > 0) {
+        	// 大模板拆分成多个方法，防止超过JIT的HugeMethodLimit(8000字节)，导致一直解释执行
+        	Map<String, String> renderParameters = new LinkedHashMap<String, String>();
+        	renderParameters.put("$context", Context.class.getName());
+        	renderParameters.put("$parameters", Map.class.getName());
+        	renderParameters.put("$output", (stream ? OutputStream.class : Writer.class).getName());
+        	MethodSplitter splitter = new MethodSplitter("doRender", Exception.class.getName(), splitMethodLength, Collections.singleton(foreachStatus));
+        	renderCode = splitter.split(methodCode, renderParameters);
+        	splitCode = splitter.getMethods();
+        }
+        
+        if (sourceInClass || (compileToDirectory && isConstant(source) && isConstant(methodCode))) {
+    		textFields.append("private static final String $SRC = \"" + StringUtils.escapeString(source) + "\";\n");
+    		textFields.append("private static final String $CODE = \"" + StringUtils.escapeString(methodCode) + "\";\n");
+    	} else {
+    		String sourceCodeId = StringCache.put(source);
+    		textFields.append("private static final String $SRC = " + StringCache.class.getName() +  ".getAndRemove(\"" + sourceCodeId + "\");\n");
+    		String methodCodeId = StringCache.put(methodCode);
+    		textFields.append("private static final String $CODE = " + StringCache.class.getName() +  ".getAndRemove(\"" + methodCodeId + "\");\n");
+    	}
+        
+        textFields.append("private static final Map $PTS = " + toTypeCode(parameters, parameterTypes) + ";\n");
+        textFields.append("private static final Map $CTS = " + toTypeCode(returnTypes) + ";\n");
+        
+        String sorceCode = "package " + packageName + ";\n" 
+                + "\n"
+                + imports.toString()
+                + "\n"
+                + "public final class " + className + " extends " + (stream ? OutputStreamTemplate.class.getName() : WriterTemplate.class.getName()) + " {\n" 
+                + "\n"
+                + textFields
+                + "\n"
+                + funtionFileds
+                + "\n"
+                + "public " + className + "("
+                + Engine.class.getName() + " engine, " 
+                + Filter.class.getName() + " filter, "
+                + Formatter.class.getName() + " formatter, "
+                + Map.class.getName() + " functions, " 
+                + Map.class.getName() + " importMacros) {\n" 
+                + "	super(engine, filter, formatter, functions, importMacros);\n"
+                + functionInits
+                + textInits
+                + "}\n"
+                + "\n"
+                + splitCode
+                + "protected void doRender(" + Context.class.getName() + " $context, " + Map.class.getName() + " $parameters, " 
+                + (stream ? OutputStream.class.getName() : Writer.class.getName())
+                + " $output) throws " + Exception.class.getName() + " {\n" 
+                + renderCode
+                + "}\n"
+                + "\n"
+				+ "public " + String.class.getSimpleName() + " getName() {\n"
+				+ "	return \"" + resource.getName() + "\";\n"
+				+ "}\n"
+                + "\n"
+			    + "public " + String.class.getSimpleName() + " getEncoding() {\n"
+			    + "	return \"" + resource.getEncoding() + "\";\n"
+			    + "}\n"
+                + "\n"
+			    + "public long getLastModified() {\n"
+			    + "	return " + resource.getLastModified() + "L;\n"
+			    + "}\n"
+                + "\n"
+			    + "public long getLength() {\n"
+			    + "	return " + resource.getLength() + "L;\n"
+			    + "}\n"
+                + "\n"
+			    + "public " + String.class.getSimpleName() + " getSource() {\n"
+			    + "	return $SRC;\n"
+			    + "}\n"
+                + "\n"
+                + "public " + String.class.getSimpleName() + " getCode() {\n"
+                + "	return $CODE;\n"
+                + "}\n"
+                + "\n"
+                + "public " + Map.class.getName() + " getParameterTypes() {\n"
+                + "	return $PTS;\n"
+                + "}\n"
+                + "\n"
+                + "public " + Map.class.getName() + " getContextTypes() {\n"
+                + "	return $CTS;\n"
+                + "}\n"
+                + "\n"
+                + "public " + Map.class.getName() + " getMacroTypes() {\n"
+                + "	return " + toMacroClassCode(macros) + ";\n"
+                + "}\n"
+                + "\n"
+                + "public boolean isMacro() {\n"
+                + "	return " + (offset > 0 || resource.getName().indexOf(POUND) >= 0) + ";\n"
+                + "}\n"
+                + "\n"
+                + "public int getOffset() {\n"
+                + "	return " + offset + ";\n"
+                + "}\n"
+                + "\n"
+                + "}\n";
+        if (logger != null && logger.isDebugEnabled()) {
+        	logger.debug("\n================================\n" + resource.getName() + "\n================================\n" + sorceCode + "\n================================\n");
+        }
+        return sorceCode;
+    }
+
+    // 解释执行只支持注释语法的指令，不支持宏，不能解释时返回null，由编译报告错误
+    private Template interpretTemplate(Resource resource) {
+    	try {
+	    	Set<String> variables = new HashSet<String>();
+	    	Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+	    	Map<String, Class<?>> returnTypes = new HashMap<String, Class<?>>();
+	    	Map<String, Object> values = new HashMap<String, Object>();
+	        types.put(foreachStatus, ForeachStatus.class);
+	        for (Map.Entry<String, Template> macro : importMacroTemplates.entrySet()) {
+	        	types.put(macro.getKey(), Template.class);
+	        	values.put(macro.getKey(), macro.getValue());
+	        }
+	        List<String> parameters = new ArrayList<String>();
+	        List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+	        Map<String, String> macros = new HashMap<String, String>();
+	        String src = resource.getSource();
+	        src = filterCData(src);
+	        src = filterComment(src);
+	        src = filterEscape(src);
+	        List<Object[]> directives = new ArrayList<Object[]>();
+	        INTERPRETED_DIRECTIVES.set(directives);
+	        try {
+	        	src = doParse(resource, false, src, translator, parameters, parameterTypes, variables, types, returnTypes, macros);
+	        } finally {
+	        	INTERPRETED_DIRECTIVES.remove();
+	        }
+	        List<Statement> statements = interpretStatement(src, directives, types);
+	        for (String var : variables) {
+	        	if (! parameters.contains(var)) {
+	        		values.put(var, Interpreter.cast(null, types.get(var)));
+	        	}
+	        }
+	        return new InterpretedTemplate(engine, valueFilter, formatter, functions, importMacroTemplates, resource, isOutputStream, isOutputWriter, 
+	        		new OrderedMap<String, Class<?>>(parameters.toArray(new String[parameters.size()]), parameterTypes.toArray(new Class<?>[parameterTypes.size()])), 
+	        		Collections.unmodifiableMap(returnTypes), values, statements);
+    	} catch (Exception e) {
+    		if (logger != null && logger.isDebugEnabled()) {
+    			logger.debug("Compile the uninterpretable template " + resource.getName() + ", cause: " + e.getMessage());
+    		}
+    		return null;
+    	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Statement> interpretStatement(String message, List<Object[]> directives, Map<String, Class<?>> types) throws ParseException {
+        List<Statement> statements = new ArrayList<Statement>();
+        List<Statement> current = statements;
+        LinkedStack<List<Statement>> blocks = new LinkedStack<List<Statement>>();
+        LinkedStack<Statement> owners = new LinkedStack<Statement>();
+        int offset = 0;
+        int last = -1;
+        message = RIGHT + message + LEFT;
+        Matcher matcher = DIRECTIVE_PATTERN.matcher(message);
+        while (matcher.find()) {
+            // 上一个指令的代码
+            String code = last < 0 ? "" : message.substring(last, matcher.start());
+            if (code.length() > 0) {
+                Matcher m = INTERPRETED_PATTERN.matcher(code);
+                if (! m.matches()) {
+                    throw new ParseException("Unsupported interpreting code " + code, offset);
+                }
+                Object[] directive = directives.get(Integer.parseInt(m.group(1)));
+                String name = (String) directive[0];
+                if (IF.equals(name)) {
+                    InterpretedTemplate.IfStatement statement = new InterpretedTemplate.IfStatement();
+                    current.add(statement);
+                    blocks.push(current);
+                    owners.push(statement);
+                    current = statement.addBranch((Interpreter) directive[1]);
+                } else if (ELSEIF.equals(name) || ELSE.equals(name)) {
+                    if (! (owners.peek() instanceof InterpretedTemplate.IfStatement)) {
+                        throw new ParseException("The " + name + " directive without if", offset);
+                    }
+                    current = ((InterpretedTemplate.IfStatement) owners.peek()).addBranch((Interpreter) directive[1]);
+                } else if (FOREACH.equals(name)) {
+                    InterpretedTemplate.ForeachStatement statement = (InterpretedTemplate.ForeachStatement) directive[1];
+                    current.add(statement);
+                    blocks.push(current);
+                    owners.push(statement);
+                    current = statement.getStatements();
+                } else if (END.equals(name)) {
+                    if (owners.isEmpty()) {
+                        throw new ParseException("The end directive without start", offset);
+                    }
+                    owners.pop();
+                    current = blocks.pop();
+                } else if (BREAKIF.equals(name)) {
+                    boolean loop = false;
+                    for (Statement owner : owners.toList()) {
+                        if (owner instanceof InterpretedTemplate.ForeachStatement) {
+                            loop = true;
+                        }
+                    }
+                    if (! loop) {
+                        throw new ParseException("The breakif directive outside foreach", offset);
+                    }
+                    current.add(new InterpretedTemplate.BreakifStatement((Interpreter) directive[1]));
+                } else {
+                    current.addAll((List<Statement>) directive[1]);
+                }
+            }
+            String text = matcher.group(1);
+            String len = matcher.group(2);
+            String next = matcher.group(3);
+            if (next != null && next.length() > 0) {
+                throw new ParseException("Unsupported interpreting code " + next, offset);
+            }
+            interpretExpression(text, current, types, offset);
+            if (text != null) {
+                offset += text.length();
+            }
+            if (len != null && len.length() > 0) {
+                offset += Integer.parseInt(len);
+            }
+            last = matcher.end();
+        }
+        if (! owners.isEmpty()) {
+            throw new ParseException("The directive without end", offset);
+        }
+        return statements;
+    }
+
+    private void interpretExpression(String message, List<Statement> statements, Map<String, Class<?>> types, int offset) throws ParseException {
+        if (message == null || message.length() == 0) {
+            return;
+        }
+        if (removeDirectiveBlank) {
+        	message = StringUtils.trimBlankLine(message);
+        	if (message == null || message.length() == 0) {
+                return;
+            }
+        }
+        Matcher matcher = EXPRESSION_PATTERN.matcher(message);
+        int last = 0;
+        while (matcher.find()) {
+            Expression expr = translator.translate(matcher.group(2), types, matcher.start(2) + offset);
+            interpretText(message.substring(last, matcher.start()), statements);
+            statements.add(new InterpretedTemplate.ValueStatement(interpret(expr), ! "$!".equals(matcher.group(1))));
+            last = matcher.end();
+        }
+        interpretText(message.substring(last), statements);
+    }
+
+    private void interpretText(String txt, List<Statement> statements) {
+        if (txt != null && txt.length() > 0) {
+            txt = txt.replace(POUND_SPECIAL, POUND);
+            txt = txt.replace(DOLLAR_SPECIAL, DOLLAR);
+            if (textFilter != null) {
+            	txt = textFilter.filter(txt);
+            }
+            if (txt != null && txt.length() > 0) {
+                statements.add(new InterpretedTemplate.TextStatement(txt));
             }
-            return compiler.compile(sorceCode);
-        } catch (Exception e) {
-            throw new ParseException("Filed to parse template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
         }
     }
 
     protected String toTypeCode(Map<String, Class<?>> types) {
+    	Map<String, String> classes = new LinkedHashMap<String, String>();
+    	if (types != null) {
+	    	for (Map.Entry<String, Class<?>> entry : types.entrySet()) {
+	    		classes.put(entry.getKey(), entry.getValue().getCanonicalName());
+	    	}
+    	}
+    	return toClassCode(classes);
+    }
+
+    // 宏类按名称加载，不用类字面量，编译模板时不需要宏类的字节码
+    private String toMacroClassCode(Map<String, String> macros) {
+    	StringBuilder keyBuf = new StringBuilder("new String[] {");
+    	StringBuilder valueBuf = new StringBuilder("new Class[] {");
+    	boolean first = true;
+    	for (Map.Entry<String, String> entry : macros.entrySet()) {
+    		if (first) {
+    			first = false;
+    		} else {
+    			keyBuf.append(", ");
+    			valueBuf.append(", ");
+    		}
+    		keyBuf.append("\"" + StringUtils.escapeString(entry.getKey()) + "\"");
+    		valueBuf.append("getMacroClass(\"" + StringUtils.escapeString(entry.getValue()) + "\")");
+    	}
+    	keyBuf.append("}");
+    	valueBuf.append("}");
+    	return "new " + OrderedMap.class.getName() + "(" + keyBuf + ", " + valueBuf + ")";
+    }
+
+    protected String toClassCode(Map<String, String> classes) {
     	StringBuilder keyBuf = new StringBuilder();
     	StringBuilder valueBuf = new StringBuilder();
-    	if (types == null || types.size() == 0) {
+    	if (classes == null || classes.size() == 0) {
     		keyBuf.append("new String[0]");
     		valueBuf.append("new Class[0]");
     	} else {
     		keyBuf.append("new String[] {");
     		valueBuf.append("new Class[] {");
     		boolean first = true;
-	    	for (Map.Entry<String, Class<?>> entry : types.entrySet()) {
+	    	for (Map.Entry<String, String> entry : classes.entrySet()) {
 	    		if (first) {
                     first = false;
                 } else {
@@ -586,7 +1075,7 @@ public abstract class AbstractParser implements Parser {
 	    		keyBuf.append(StringUtils.escapeString(entry.getKey()));
 	    		keyBuf.append("\"");
 	    		
-	    		valueBuf.append(entry.getValue().getCanonicalName());
+	    		valueBuf.append(entry.getValue());
 	    		valueBuf.append(".class");;
 	    	}
 	    	keyBuf.append("}");
@@ -747,12 +1236,26 @@ public abstract class AbstractParser implements Parser {
             	}
             }
             String pre = "";
-            if (! direct) {
+            String statement = null;
+            if ((nofilter || valueFilter == null) && expr instanceof ExpressionImpl) {
+            	// 宏和include()直接渲染到输出，防止先evaluate()到临时缓冲区，再复制到输出。
+            	String render = ((ExpressionImpl) expr).getNode().getRenderCode("$output", stream ? OutputStream.class : Writer.class);
+            	if (render != null) {
+            		statement = render + ";\n";
+            	}
+            }
+            if (statement == null && ! direct) {
             	if (nofilter && stream && Object.class.equals(returnType)) {
             		String var = "__obj" + TMP_VAR_SEQ.getAndIncrement();
             		pre = "Object " + var + " = " + code + ";\n";
             		// 如果是byte[]类型，防止先format()成String，再serialize()回byte[]，浪费转换性能。
             		code = var + " instanceof byte[] ? (byte[]) " + var + " : serialize(format(" + var + "))";
+            	} else if (isPrimitiveType(returnType)) {
+            		// 基本类型直接写入输出，防止先format()成String，再filter()和serialize()，浪费内存分配。
+            		statement = "write($output, " + code + ", " + (! nofilter) + ");\n";
+                } else if (stream || (! nofilter && valueFilter instanceof StreamFilter)) {
+                	// 过滤器直接写入输出，防止先filter()成转义后的新串，再复制或serialize()到输出。
+                	statement = "write($output, format(" + code + "), " + (! nofilter) + ");\n";
                 } else {
                 	code = "format(" + code + ")";
                     if (! nofilter) {
@@ -765,7 +1268,11 @@ public abstract class AbstractParser implements Parser {
             }
             String txt = message.substring(last, matcher.start());
             appendText(buf, txt, filter, textFields, textInits, seq, stream);
-            buf.append(");\n" + pre + "$output.write(" + code + ");\n$output.write(");
+            if (statement != null) {
+            	buf.append(");\n" + statement + "$output.write(");
+            } else {
+            	buf.append(");\n" + pre + "$output.write(" + code + ");\n$output.write(");
+            }
             last = matcher.end();
         }
         String txt;
@@ -780,6 +1287,12 @@ public abstract class AbstractParser implements Parser {
         return buf.toString();
     }
     
+    // The primitive or boxed primitive type, can be written to output directly.
+    private static boolean isPrimitiveType(Class<?> type) {
+    	return (type.isPrimitive() && type != void.class)
+    			|| (type != ClassUtils.getUnboxedClass(type));
+    }
+
     private void appendText(StringBuffer buf, String txt, Filter filter, StringBuilder textFields, StringBuilder textInits, AtomicInteger seq, boolean stream) {
         if (txt != null && txt.length() > 0) {
             txt = txt.replace(POUND_SPECIAL, POUND);
@@ -792,12 +1305,14 @@ public abstract class AbstractParser implements Parser {
                 if (stream) {
                 	if (textInClass) {
                 		textFields.append("private static final byte[] " + var + " = new byte[] {" + StringUtils.toByteString(StringUtils.toBytes(txt, outputEncoding)) + "};\n");
+                	} else if (compileToDirectory && outputEncoding != null && isConstant(txt)) {
+                		textFields.append("private static final byte[] " + var + " = " + StringUtils.class.getName() + ".toBytes(\"" + StringUtils.escapeString(txt) + "\", \"" + outputEncoding + "\");\n");
                 	} else {
                 		String txtId = ByteCache.put(StringUtils.toBytes(txt, outputEncoding));
                 		textFields.append("private static final byte[] " + var + " = " + ByteCache.class.getName() +  ".getAndRemove(\"" + txtId + "\");\n");
                 	}
                 } else {
-                	if (textInClass) {
+                	if (textInClass || (compileToDirectory && isConstant(txt))) {
                 		textFields.append("private static final String " + var + " = \"" + StringUtils.escapeString(txt) + "\";\n");
                 	} else {
                 		String txtId = StringCache.put(txt);
@@ -809,11 +1324,34 @@ public abstract class AbstractParser implements Parser {
         }
     }
     
+    // 编译到compile.directory的类不能依赖进程内存中的StringCache和ByteCache，
+    // 常量池中字符串的UTF-8编码不能超过65535字节，超长的文本仍放在缓存中，该类不持久化
+    private static boolean isConstant(String value) {
+    	int length = value.length();
+    	if (length > 65535 / 3) {
+    		int size = 0;
+    		for (int i = 0; i < length; i ++) {
+    			char ch = value.charAt(i);
+    			size += ch != 0 && ch < 0x80 ? 1 : (ch < 0x800 ? 2 : 3);
+    		}
+    		return size <= 65535;
+    	}
+    	return true;
+    }
+
     protected String getStatementEndCode(String name) throws ParseException {
+        List<Object[]> directives = INTERPRETED_DIRECTIVES.get();
+        if (directives != null && (ifName.equals(name) || elseifName.equals(name) 
+                || elseName.equals(name) || foreachName.equals(name))) {
+            return addDirective(directives, END, null);
+        }
         if (ifName.equals(name) || elseifName.equals(name) || elseName.equals(name)) {
             return "}\n"; // 插入结束指令
+        } else if (cacheName.equals(name)) {
+        	String[] block = CACHE_BLOCKS.get().blocks.pop();
+        	return "cacheFragment($output, \"" + block[1] + "\", " + block[0] + ", " + block[2] + ");\n} finally {\n$output = endFragment($output);\n}\n}\n"; // 插入结束指令
         } else if (foreachName.equals(name)) {
-            return foreachStatus + ".increment();\n}\n" + foreachStatus + " = " + foreachStatus + ".getParent();\n"; // 插入结束指令
+            return STATUS_END + foreachStatus + ".increment();\n}\n" + STATUS_RESTORE + foreachStatus + " = " + foreachStatus + ".getParent();\n}\n"; // 插入结束指令
         }
         return null;
     }
@@ -823,28 +1361,44 @@ public abstract class AbstractParser implements Parser {
                                     List<String> parameters, List<Class<?>> parameterTypes, boolean comment) throws ParseException {
         name = name == null ? null : name.trim();
         value = value == null ? null : value.trim();
+        List<Object[]> directives = INTERPRETED_DIRECTIVES.get();
+        if (directives != null && ! comment) {
+            throw new ParseException("Unsupported interpreting attribute directive " + name, begin);
+        }
+        List<Statement> statements = new ArrayList<Statement>();
         StringBuilder buf = new StringBuilder();
         if (ifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The if expression == null!", begin);
             }
+            Expression expression = translator.translate(value, types, offset);
+            if (directives != null) {
+                return addDirective(directives, IF, interpret(expression));
+            }
             buf.append("if (");
-            buf.append(getConditionCode(translator.translate(value, types, offset)));
+            buf.append(getConditionCode(expression));
             buf.append(") {\n");
         } else if (elseifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The elseif expression == null!", begin);
             }
+            Expression expression = translator.translate(value, types, offset);
+            if (directives != null) {
+                return addDirective(directives, ELSEIF, interpret(expression));
+            }
             if (comment) {
                 buf.append("} ");
             }
             buf.append("else if (");
-            buf.append(getConditionCode(translator.translate(value, types, offset)));
+            buf.append(getConditionCode(expression));
             buf.append(") {\n");
         } else if (elseName.equals(name)) {
             if (value != null && value.length() > 0) {
                 throw new ParseException("Unsupported else expression " + value, begin);
             }
+            if (directives != null) {
+                return addDirective(directives, ELSE, null);
+            }
             if (comment) {
                 buf.append("} ");
             }
@@ -876,6 +1430,8 @@ public abstract class AbstractParser implements Parser {
                 // TODO 获取in参数List的泛型
                 if (returnType.isArray()) {
                     type = returnType.getComponentType().getName();
+                } else if (IntegerSequence.class.isAssignableFrom(returnType)) {
+                    type = int.class.getName();
                 } else if (Map.class.isAssignableFrom(returnType)) {
                     type = Map.class.getName() + ".Entry";
                 } else if (Collection.class.isAssignableFrom(returnType)
@@ -904,13 +1460,51 @@ public abstract class AbstractParser implements Parser {
             	}
                 code = ClassUtils.class.getName() + ".entrySet(" + code + ")";
             }
-            buf.append(getForeachCode(type, clazz, var, code));
+            if (directives != null) {
+                return addDirective(directives, FOREACH, new InterpretedTemplate.ForeachStatement(var, clazz, 
+                        interpret(expression), Map.class.isAssignableFrom(returnType), foreachStatus));
+            }
+            buf.append(getForeachCode(type, clazz, var, code, returnType));
+        } else if (cacheName.equals(name)) {
+            if (directives != null) {
+                throw new ParseException("Unsupported interpreting cache directive", begin);
+            }
+            if (value == null || value.length() == 0) {
+                throw new ParseException("The cache key == null!", begin);
+            }
+            int i = getLastComma(value);
+            String key = i < 0 ? value : value.substring(0, i).trim();
+            String ttl = "0L";
+            if (i >= 0) {
+            	Expression expression = translator.translate(value.substring(i + 1).trim(), types, offset + i + 1);
+            	Class<?> type = expression.getReturnType();
+            	if (type.isPrimitive() && type != boolean.class && type != char.class) {
+            		ttl = "(long) (" + expression.getCode() + ")";
+            	} else if (Number.class.isAssignableFrom(type)) {
+            		ttl = "((" + Number.class.getName() + ") " + expression.getCode() + ").longValue()";
+            	} else {
+            		throw new ParseException("The cache ttl type: " + type.getName() + " must be number!", offset + i + 1);
+            	}
+            }
+            Expression expression = translator.translate(key, types, offset);
+            CacheBlocks cacheBlocks = CACHE_BLOCKS.get();
+            String var = "$fragment" + (cacheBlocks.count ++);
+            String fragment = StringUtils.escapeString(cacheBlocks.template + "#" + begin);
+            cacheBlocks.blocks.push(new String[] { var, fragment, ttl });
+            buf.append(Object.class.getSimpleName() + " " + var + " = " + ClassUtils.class.getName() + ".boxed(" + expression.getCode() + ");\n");
+            buf.append("if (! writeFragment($output, \"" + fragment + "\", " + var + ")) {\n");
+            buf.append("$output = beginFragment($output);\n");
+            buf.append("try {\n");
         } else if (breakifName.equals(name)) {
             if (value == null || value.length() == 0) {
                 throw new ParseException("The breakif expression == null!", begin);
             }
+            Expression expression = translator.translate(value, types, offset);
+            if (directives != null) {
+                return addDirective(directives, BREAKIF, interpret(expression));
+            }
             buf.append("if (");
-            buf.append(getConditionCode(translator.translate(value, types, offset)));
+            buf.append(getConditionCode(expression));
             buf.append(") break;");
         } else if (setName.equals(name)) {
             Matcher matcher = ASSIGN_PATTERN.matcher(";" + value);
@@ -956,6 +1550,9 @@ public abstract class AbstractParser implements Parser {
                 }
                 variables.add(var);
                 types.put(var, clazz);
+                if (directives != null) {
+                    statements.add(new InterpretedTemplate.SetStatement(var, clazz, interpret(expression), ":=".equals(oper)));
+                }
                 buf.append(var + " = (" + type + ")(" + expression.getCode() + ");\n");
                 if (":=".equals(oper)) {
     	            buf.append("$context.getParameters().put(\"");
@@ -998,6 +1595,9 @@ public abstract class AbstractParser implements Parser {
                 parameters.add(var);
                 parameterTypes.add(ClassUtils.forName(importPackages, type));
                 types.put(var, ClassUtils.forName(importPackages, type));
+                if (directives != null) {
+                    statements.add(new InterpretedTemplate.VarStatement(var, ClassUtils.forName(importPackages, type)));
+                }
                 buf.append(type);
                 buf.append(" ");
                 buf.append(var);
@@ -1010,8 +1610,63 @@ public abstract class AbstractParser implements Parser {
         }else {
             throw new ParseException("Unsupported directive " + name, begin);
         }
+        if (directives != null) {
+            return addDirective(directives, name, statements);
+        }
         return buf.toString();
     }
+
+    // 括号和字符串外的最后一个逗号，分隔#cache的键和过期时间
+    private static int getLastComma(String value) {
+    	int depth = 0;
+    	char quote = 0;
+    	int comma = -1;
+    	for (int i = 0; i < value.length(); i ++) {
+    		char ch = value.charAt(i);
+    		if (quote != 0) {
+    			if (ch == '\\') {
+    				i ++;
+    			} else if (ch == quote) {
+    				quote = 0;
+    			}
+    		} else if (ch == '"' || ch == '\'') {
+    			quote = ch;
+    		} else if (ch == '(' || ch == '[' || ch == '{') {
+    			depth ++;
+    		} else if (ch == ')' || ch == ']' || ch == '}') {
+    			depth --;
+    		} else if (ch == ',' && depth == 0) {
+    			comma = i;
+    		}
+    	}
+    	return comma;
+    }
+
+    private static final class CacheBlocks {
+
+    	final String template;
+
+    	final LinkedStack<String[]> blocks = new LinkedStack<String[]>();
+
+    	int count;
+
+    	CacheBlocks(String template) {
+    		this.template = template;
+    	}
+
+    }
+
+    private String addDirective(List<Object[]> directives, String name, Object directive) {
+        directives.add(new Object[] { name, directive });
+        return "{" + (directives.size() - 1) + "}";
+    }
+
+    private Interpreter interpret(Expression expression) throws ParseException {
+        if (! (expression instanceof ExpressionImpl)) {
+            throw new ParseException("Unsupported interpreting expression " + expression.getSource(), expression.getOffset());
+        }
+        return new Interpreter(((ExpressionImpl) expression).getNode(), functions);
+    }
     
     private void parseGenericTypeString(String type, int offset, List<String> types, List<Integer> offsets) throws ParseException {
     	StringBuilder buf = new StringBuilder();
@@ -1070,18 +1725,132 @@ public abstract class AbstractParser implements Parser {
         return StringUtils.getConditionCode(expression.getReturnType(), expression.getCode());
     }
 
-    protected String getForeachCode(String type, Class<?> clazz, String var, String code) {
+    protected String getForeachCode(String type, Class<?> clazz, String var, String code, Class<?> returnType) {
+        // 静态类型已知时，生成下标循环，防止Iterator和基本类型装箱
         StringBuilder buf = new StringBuilder();
-        String name = "_i_" + var;
-        buf.append("for (" + Iterator.class.getName() + " " + name + " = " + ClassUtils.class.getName() + ".toIterator((" + foreachStatus + " = new " + ForeachStatus.class.getName() + "(" + foreachStatus + ", " + code + ")).getData()); " + name + ".hasNext();) {\n");
-        if (clazz.isPrimitive()) {
-            buf.append(type + " " + var + " = " + ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(clazz).getSimpleName() + ")" + name + ".next());\n");
+        buf.append("{\n");
+        String index = "_i_" + var;
+        String size = "_s_" + var;
+        String element;
+        Class<?> elementType;
+        if (returnType.isArray()) {
+            String array = "_a_" + var;
+            buf.append(returnType.getCanonicalName() + " " + array + " = " + code + ";\n");
+            buf.append(getStatusCode(array, array + " == null ? 0 : " + array + ".length"));
+            buf.append("for (int " + index + " = 0, " + size + " = " + array + " == null ? 0 : " + array + ".length; " + index + " < " + size + "; " + index + " ++) {\n");
+            element = array + "[" + index + "]";
+            elementType = returnType.getComponentType();
+        } else if (IntegerSequence.class.isAssignableFrom(returnType)) {
+            String sequence = "_q_" + var;
+            String value = "_v_" + var;
+            String step = "_d_" + var;
+            buf.append(IntegerSequence.class.getName() + " " + sequence + " = " + code + ";\n");
+            buf.append(getStatusCode(sequence, sequence + " == null ? 0 : " + sequence + ".size()"));
+            buf.append("for (int " + index + " = 0, " + size + " = " + sequence + " == null ? 0 : " + sequence + ".size(), " 
+                    + value + " = " + sequence + " == null ? 0 : " + sequence + ".getBegin(), " 
+                    + step + " = " + sequence + " == null || " + sequence + ".isAsc() ? 1 : -1; " 
+                    + index + " < " + size + "; " + index + " ++, " + value + " += " + step + ") {\n");
+            element = value;
+            elementType = int.class;
+        } else if (List.class.isAssignableFrom(returnType)) {
+            String list = "_l_" + var;
+            String iterator = "_it_" + var;
+            buf.append(List.class.getName() + " " + list + " = " + code + ";\n");
+            buf.append(getStatusCode(list, list + " == null ? 0 : " + list + ".size()"));
+            // 非RandomAccess的List，如LinkedList，仍用Iterator遍历
+            buf.append(Iterator.class.getName() + " " + iterator + " = " + list + " == null || " + list + " instanceof " + RandomAccess.class.getName() + " ? null : " + list + ".iterator();\n");
+            buf.append("for (int " + index + " = 0, " + size + " = " + list + " == null ? 0 : " + list + ".size(); " + index + " < " + size + "; " + index + " ++) {\n");
+            element = "(" + iterator + " == null ? " + list + ".get(" + index + ") : " + iterator + ".next())";
+            elementType = Object.class;
         } else {
-            buf.append(type + " " + var + " = (" + type + ") " + name + ".next();\n");
+            String data = "_o_" + var;
+            buf.append("Object " + data + " = " + code + ";\n");
+            buf.append(getStatusCode(data, null));
+            buf.append("for (" + Iterator.class.getName() + " " + index + " = " + ClassUtils.class.getName() + ".toIterator(" + data + "); " + index + ".hasNext();) {\n");
+            element = index + ".next()";
+            elementType = Object.class;
         }
+        buf.append(type + " " + var + " = " + getElementCode(element, elementType, type, clazz) + ";\n");
         return buf.toString();
     }
 
+    // 状态语句带有标记，由filterForeachStatus()决定保留或删除
+    private String getStatusCode(String data, String size) {
+        return STATUS_BEGIN + foreachStatus + " = new " + ForeachStatus.class.getName() + "(" + foreachStatus + ", " + data 
+                + (size == null ? "" : ", " + size) + ");\n";
+    }
+
+    // 只在循环体内用到foreach状态时，才创建ForeachStatus对象，否则删除状态的创建、计数和恢复语句，
+    // 用到内层循环状态时(如foreach.parent)，外层循环也需要保留状态
+    protected String filterForeachStatus(String code) {
+        Pattern usedPattern = Pattern.compile("(?<![_$a-zA-Z0-9.])" + Pattern.quote(foreachStatus) + "(?![_$a-zA-Z0-9])");
+        List<boolean[]> loops = new ArrayList<boolean[]>();
+        LinkedList<boolean[]> stack = new LinkedList<boolean[]>();
+        Matcher matcher = STATUS_PATTERN.matcher(code);
+        int last = 0;
+        while (matcher.find()) {
+            if (usedPattern.matcher(code.substring(last, matcher.start())).find()) {
+                for (boolean[] used : stack) {
+                    used[0] = true;
+                }
+            }
+            String type = matcher.group(1);
+            if ("begin".equals(type)) {
+                boolean[] used = new boolean[1];
+                loops.add(used);
+                stack.addLast(used);
+            } else if ("restore".equals(type)) {
+                if (stack.isEmpty()) { // 不匹配时保留所有状态
+                    return STATUS_PATTERN.matcher(code).replaceAll("$2\n");
+                }
+                stack.removeLast();
+            }
+            last = matcher.end();
+        }
+        if (loops.isEmpty()) {
+            return code;
+        }
+        StringBuffer buf = new StringBuffer();
+        matcher = STATUS_PATTERN.matcher(code);
+        int index = 0;
+        while (matcher.find()) {
+            String type = matcher.group(1);
+            boolean[] used;
+            if ("begin".equals(type)) {
+                used = loops.get(index ++);
+                stack.addLast(used);
+            } else if ("restore".equals(type)) {
+                used = stack.removeLast();
+            } else {
+                used = stack.getLast();
+            }
+            matcher.appendReplacement(buf, used[0] ? Matcher.quoteReplacement(matcher.group(2) + "\n") : "");
+        }
+        matcher.appendTail(buf);
+        return buf.toString();
+    }
+
+    // 元素类型到循环变量类型的转换，类型兼容时不做转换
+    private String getElementCode(String code, Class<?> from, String type, Class<?> to) {
+        if (from == to || (! from.isPrimitive() && ! to.isPrimitive() && to.isAssignableFrom(from))) {
+            return code;
+        }
+        if (from.isPrimitive()) {
+            if (to.isPrimitive()) {
+                return "(" + type + ") " + code;
+            }
+            String boxed = ClassUtils.class.getName() + ".boxed(" + code + ")";
+            if (to.isAssignableFrom(ClassUtils.getBoxedClass(from))) {
+                return boxed;
+            }
+            return "(" + type + ") (Object) " + boxed;
+        }
+        if (to.isPrimitive()) {
+            return ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(to).getSimpleName() + ") " + code + ")";
+        }
+        return "(" + type + ") " + code;
+    }
+
     protected String getMacroPath(String template, String value) {
         if (value == null) {
             value = "";
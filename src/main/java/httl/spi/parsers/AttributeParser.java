@@ -54,7 +54,7 @@ public class AttributeParser extends AbstractParser {
 
     protected String doParse(Resource resource, boolean stream, String reader, Translator translator, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, Class<?>> macros) throws IOException, ParseException {
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, String> macros) throws IOException, ParseException {
     	Source source = new Source(reader);
         OutputDocument document = new OutputDocument(source);
         parseAttribute(resource, stream, source, source, document, translator, parameters, parameterTypes, variables, types, returnTypes, macros);
@@ -67,7 +67,7 @@ public class AttributeParser extends AbstractParser {
                                  Translator translator, 
                                  List<String> parameters, List<Class<?>> parameterTypes, 
                                  Set<String> variables, Map<String, Class<?>> types, Map<String, 
-                                 Class<?>> returnTypes, Map<String, Class<?>> macros) throws IOException, ParseException {
+                                 Class<?>> returnTypes, Map<String, String> macros) throws IOException, ParseException {
         List<Element> elements = segment.getChildElements();
         if (elements == null) {
             return;
@@ -129,7 +129,7 @@ public class AttributeParser extends AbstractParser {
                             }
                             es.append(source.subSequence(macro.getEnd(), element.getBegin()));
                             document.remove(new Segment(source, macro.getEnd(), element.getBegin())); // 移除宏块
-                            macros.put(var, parseClass(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es.toString()), stream, macro.getBegin()));
+                            macros.put(var, parseMacro(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es.toString()), stream, macro.getBegin()));
                             Class<?> cls = types.get(var);
                             if (cls != null && ! cls.equals(Template.class)) {
                                 throw new ParseException("Duplicate macro variable " + var + ", conflict types: " + cls.getName() + ", " + Template.class.getName(), macro.getBegin());
@@ -158,7 +158,8 @@ public class AttributeParser extends AbstractParser {
             		}
             		if (! ifName.equals(name) && ! elseifName.equals(name) && ! elseName.equals(name)
                             && ! foreachName.equals(name) && ! breakifName.equals(name)
-                            && ! setName.equals(name) && ! varName.equals(name)) {
+                            && ! setName.equals(name) && ! varName.equals(name)
+                            && ! cacheName.equals(name)) {
                         continue;
                     }
                     if (value == null) {
@@ -202,7 +203,8 @@ public class AttributeParser extends AbstractParser {
                 }
                 if (! ifName.equals(name) && ! elseifName.equals(name) && ! elseName.equals(name)
                         && ! foreachName.equals(name) && ! breakifName.equals(name)
-                        && ! setName.equals(name) && ! varName.equals(name)) {
+                        && ! setName.equals(name) && ! varName.equals(name)
+                        && ! cacheName.equals(name)) {
                     continue;
                 }
                 statements.add(attribute);
@@ -237,7 +239,7 @@ public class AttributeParser extends AbstractParser {
                 es = es.substring(0, macro.getBegin() - 1 - element.getBegin()) 
                     + (param == null || param.length() == 0 ? "" : " var=\"" + param + "\"")
                     + es.substring(macro.getEnd() - element.getBegin()); // 去掉macro属性
-                macros.put(var, parseClass(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es), stream, macro.getBegin()));
+                macros.put(var, parseMacro(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es), stream, macro.getBegin()));
                 Class<?> cls = types.get(var);
                 if (cls != null && ! cls.equals(Template.class)) {
                     throw new ParseException("Duplicate macro variable " + var + ", conflict types: " + cls.getName() + ", " + Template.class.getName(), macro.getBegin());
@@ -52,7 +52,7 @@ public class CommentParser extends AbstractParser {
     
     protected String doParse(Resource resource, boolean stream, String source, Translator translator, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, Class<?>> macros) throws IOException, ParseException {
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, String> macros) throws IOException, ParseException {
         LinkedStack<String> nameStack = new LinkedStack<String>();
         LinkedStack<String> valueStack = new LinkedStack<String>();
         StringBuffer macro = null;
@@ -97,7 +97,7 @@ public class CommentParser extends AbstractParser {
                         if (param != null && param.length() > 0) {
                             es = getDiretive(varName, param) + es;
                         }
-                        macros.put(var, parseClass(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es), stream, macroParameterStart));
+                        macros.put(var, parseMacro(new StringResource(engine, key, resource.getEncoding(), resource.getLastModified(), es), stream, macroParameterStart));
                         Class<?> cls = types.get(var);
                         if (cls != null && ! cls.equals(Template.class)) {
                             throw new ParseException("Duplicate macro variable " + var + ", conflict types: " + cls.getName() + ", " + Template.class.getName(), macroParameterStart);
@@ -125,7 +125,7 @@ public class CommentParser extends AbstractParser {
             } else {
                 if (ifName.equals(name) || elseifName.equals(name) 
                         || elseName.equals(name) || foreachName.equals(name)
-                        || macroName.equals(name)) {
+                        || macroName.equals(name) || cacheName.equals(name)) {
                     nameStack.push(name);
                     valueStack.push(value);
                 }
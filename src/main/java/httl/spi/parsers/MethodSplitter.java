@@ -0,0 +1,529 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.parsers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MethodSplitter. (Tool, Prototype, ThreadUnsafe)
+ *
+ * Split the generated method body into private methods at the statement boundaries,
+ * the local variables used by the extracted statements are passed as parameters.
+ *
+ * A statement is never extracted if it declares a local variable used by the following statements,
+ * assigns a local variable of the caller, or contains a break/continue/return leaving it.
+ * The restored variables, e.g. the foreach status, are assigned and restored in the same block,
+ * so the block is extracted as a whole, but the assignments in it are kept in place.
+ *
+ * @see httl.spi.parsers.AbstractParser#setSplitMethodLength(int)
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+final class MethodSplitter {
+
+	// JVM方法参数最多255个slot，留出long/double和this的余量
+	private static final int MAX_PARAMETERS = 100;
+
+	private static final Pattern DECLARE_PATTERN = Pattern.compile("^([_$a-zA-Z][_$a-zA-Z0-9]*(?:\\s*\\.\\s*[_$a-zA-Z][_$a-zA-Z0-9]*)*(?:\\s*\\[\\s*\\])*)\\s+([_$a-zA-Z][_$a-zA-Z0-9]*)\\s*=[^=]");
+
+	private static final Pattern ASSIGN_PATTERN = Pattern.compile("(?<![_$a-zA-Z0-9.])([_$a-zA-Z][_$a-zA-Z0-9]*)\\s*(?:\\+\\+|--|(?:[-+*/%&|^]|<<|>>>?)?=(?!=))");
+
+	private static final Pattern INCREMENT_PATTERN = Pattern.compile("(?:\\+\\+|--)\\s*([_$a-zA-Z][_$a-zA-Z0-9]*)");
+
+	private static final Pattern JUMP_PATTERN = Pattern.compile("(?<![_$a-zA-Z0-9.])(break|continue)(?![_$a-zA-Z0-9])");
+
+	private static final Pattern RETURN_PATTERN = Pattern.compile("(?<![_$a-zA-Z0-9.])return(?![_$a-zA-Z0-9])");
+
+	private static final Pattern LOOP_PATTERN = Pattern.compile("^(for|while|do|switch)(?![_$a-zA-Z0-9])");
+
+	// if的else分支，以及try的finally块，与前面的块作为一个整体
+	private static final Pattern ELSE_PATTERN = Pattern.compile("^(else|finally)(?![_$a-zA-Z0-9])");
+
+	private final String methodName;
+
+	private final String exceptionType;
+
+	private final int length;
+
+	private final Set<String> restored;
+
+	private final StringBuilder methods = new StringBuilder();
+
+	private int seq;
+
+	/**
+	 * @param methodName - the name prefix of the extracted methods
+	 * @param exceptionType - the exception type thrown by the extracted methods
+	 * @param length - the max code length of a method
+	 * @param restored - the local variables always restored in the same block, e.g. the foreach status
+	 */
+	MethodSplitter(String methodName, String exceptionType, int length, Set<String> restored) {
+		this.methodName = methodName;
+		this.exceptionType = exceptionType;
+		this.length = length;
+		this.restored = restored;
+	}
+
+	/**
+	 * Split the method body.
+	 *
+	 * @param code - the method body
+	 * @param parameters - the method parameter names and types
+	 * @return the new method body, the extracted methods in getMethods()
+	 */
+	String split(String code, Map<String, String> parameters) {
+		if (code.length() <= length) {
+			return code;
+		}
+		int mark = methods.length();
+		int count = seq;
+		try {
+			int[] pos = new int[1];
+			List<Statement> statements = parseStatements(code, pos, false);
+			return process(statements, new LinkedHashMap<String, String>(parameters));
+		} catch (IllegalStateException e) {
+			// 不能识别的代码，保持原样
+			methods.setLength(mark);
+			seq = count;
+			return code;
+		}
+	}
+
+	/**
+	 * Get the extracted methods code, the callees are before the callers.
+	 *
+	 * @return methods code
+	 */
+	String getMethods() {
+		return methods.toString();
+	}
+
+	private String process(List<Statement> statements, Map<String, String> scope) {
+		Map<String, String> current = new LinkedHashMap<String, String>(scope);
+		List<String> texts = new ArrayList<String>(statements.size());
+		int total = 0;
+		for (Statement statement : statements) {
+			String text = statement.isBlock() ? processBlock(statement, current) : statement.code + "\n";
+			texts.add(text);
+			total += text.length();
+			if (statement.declareName != null) {
+				current.put(statement.declareName, statement.declareType);
+			}
+		}
+		StringBuilder buf = new StringBuilder(total);
+		if (total <= length) {
+			for (String text : texts) {
+				buf.append(text);
+			}
+			return buf.toString();
+		}
+		// 声明语句之间的连续语句，按长度分组抽取成方法
+		current = new LinkedHashMap<String, String>(scope);
+		StringBuilder group = new StringBuilder();
+		for (int i = 0; i < statements.size(); i ++) {
+			Statement statement = statements.get(i);
+			String text = texts.get(i);
+			if (! statement.pinned && ! statement.isJump()
+					&& ! isAssigned(text, current)) {
+				if (group.length() > 0 && group.length() + text.length() > length) {
+					buf.append(extract(group.toString(), current));
+					group.setLength(0);
+				}
+				group.append(text);
+			} else {
+				if (group.length() > 0) {
+					buf.append(extract(group.toString(), current));
+					group.setLength(0);
+				}
+				buf.append(text);
+			}
+			if (statement.declareName != null) {
+				current.put(statement.declareName, statement.declareType);
+			}
+		}
+		if (group.length() > 0) {
+			buf.append(extract(group.toString(), current));
+		}
+		return buf.toString();
+	}
+
+	private String processBlock(Statement statement, Map<String, String> scope) {
+		int size = statement.headers.size();
+		List<Map<String, String>> scopes = new ArrayList<Map<String, String>>(size);
+		String[] bodies = new String[size];
+		int total = 0;
+		for (int i = 0; i < size; i ++) {
+			Map<String, String> bodyScope = new LinkedHashMap<String, String>(scope);
+			parseHeaderDeclares(statement.headers.get(i), bodyScope);
+			scopes.add(bodyScope);
+			bodies[i] = process(statement.bodies.get(i), bodyScope);
+			total += bodies[i].length();
+		}
+		// 大的foreach循环体和if分支，整体抽取成方法
+		boolean[] visited = new boolean[size];
+		while (total > length) {
+			int max = -1;
+			for (int i = 0; i < size; i ++) {
+				if (! visited[i] && (max < 0 || bodies[i].length() > bodies[max].length())) {
+					max = i;
+				}
+			}
+			if (max < 0) {
+				break;
+			}
+			visited[max] = true;
+			String body = bodies[max];
+			if (! isJump(statement.bodies.get(max)) && ! isAssigned(body, scopes.get(max))) {
+				bodies[max] = extract(body, scopes.get(max));
+				total -= body.length() - bodies[max].length();
+			}
+		}
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < size; i ++) {
+			if (i > 0) {
+				buf.append(" ");
+			}
+			buf.append(statement.headers.get(i));
+			buf.append(" {\n");
+			buf.append(bodies[i]);
+			buf.append("}");
+		}
+		buf.append("\n");
+		return buf.toString();
+	}
+
+	private String extract(String code, Map<String, String> scope) {
+		Set<String> names = getIdentifiers(code);
+		StringBuilder parameters = new StringBuilder();
+		StringBuilder arguments = new StringBuilder();
+		int count = 0;
+		for (Map.Entry<String, String> entry : scope.entrySet()) {
+			if (names.contains(entry.getKey())) {
+				if (count > 0) {
+					parameters.append(", ");
+					arguments.append(", ");
+				}
+				parameters.append(entry.getValue());
+				parameters.append(" ");
+				parameters.append(entry.getKey());
+				arguments.append(entry.getKey());
+				count ++;
+			}
+		}
+		if (count > MAX_PARAMETERS) {
+			return code;
+		}
+		String name = methodName + "_" + (++ seq);
+		methods.append("private void " + name + "(" + parameters + ") throws " + exceptionType + " {\n");
+		methods.append(code);
+		methods.append("}\n");
+		methods.append("\n");
+		return name + "(" + arguments + ");\n";
+	}
+
+	private boolean isJump(List<Statement> statements) {
+		for (Statement statement : statements) {
+			if (statement.isJump()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isAssigned(String code, Map<String, String> scope) {
+		if (scope.isEmpty()) {
+			return false;
+		}
+		String stripped = strip(code);
+		Matcher matcher = ASSIGN_PATTERN.matcher(stripped);
+		while (matcher.find()) {
+			String name = matcher.group(1);
+			if (scope.containsKey(name) && ! restored.contains(name)) {
+				return true;
+			}
+		}
+		matcher = INCREMENT_PATTERN.matcher(stripped);
+		while (matcher.find()) {
+			String name = matcher.group(1);
+			if (scope.containsKey(name) && ! restored.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isRestoredAssigned(String stripped) {
+		Matcher matcher = ASSIGN_PATTERN.matcher(stripped);
+		while (matcher.find()) {
+			if (restored.contains(matcher.group(1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// 如：for (int _i_item = 0, _s_item = ...; ...)
+	private void parseHeaderDeclares(String header, Map<String, String> scope) {
+		if (! header.startsWith("for")) {
+			return;
+		}
+		int i = header.indexOf('(');
+		if (i < 0) {
+			return;
+		}
+		String init = strip(header.substring(i + 1));
+		int end = indexOf(init, ';', 0);
+		if (end < 0) {
+			return;
+		}
+		init = init.substring(0, end).trim();
+		Matcher matcher = DECLARE_PATTERN.matcher(init + " ");
+		if (! matcher.find()) {
+			return;
+		}
+		String type = matcher.group(1);
+		// 多个变量声明，如：int i = 0, n = list.size()
+		int begin = 0;
+		do {
+			int comma = indexOf(init, ',', begin);
+			String declare = comma < 0 ? init.substring(begin) : init.substring(begin, comma);
+			int assign = declare.indexOf('=');
+			String name = (assign < 0 ? declare : declare.substring(0, assign)).trim();
+			int blank = name.lastIndexOf(' ');
+			if (blank >= 0) {
+				name = name.substring(blank + 1);
+			}
+			scope.put(name, type);
+			begin = comma < 0 ? -1 : comma + 1;
+		} while (begin >= 0);
+	}
+
+	// 查找不在括号内的字符
+	private static int indexOf(String code, char ch, int from) {
+		int depth = 0;
+		for (int i = from; i < code.length(); i ++) {
+			char c = code.charAt(i);
+			if (c == '(' || c == '[' || c == '{') {
+				depth ++;
+			} else if (c == ')' || c == ']' || c == '}') {
+				depth --;
+			} else if (c == ch && depth == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static Set<String> getIdentifiers(String code) {
+		Set<String> names = new HashSet<String>();
+		String stripped = strip(code);
+		int len = stripped.length();
+		int i = 0;
+		while (i < len) {
+			char ch = stripped.charAt(i);
+			if (Character.isJavaIdentifierStart(ch)) {
+				int begin = i;
+				while (i < len && Character.isJavaIdentifierPart(stripped.charAt(i))) {
+					i ++;
+				}
+				int prev = begin - 1;
+				while (prev >= 0 && Character.isWhitespace(stripped.charAt(prev))) {
+					prev --;
+				}
+				if (prev < 0 || stripped.charAt(prev) != '.') {
+					names.add(stripped.substring(begin, i));
+				}
+			} else if (Character.isJavaIdentifierPart(ch)) {
+				// 跳过数字字面量，如：10L
+				while (i < len && Character.isJavaIdentifierPart(stripped.charAt(i))) {
+					i ++;
+				}
+			} else {
+				i ++;
+			}
+		}
+		return names;
+	}
+
+	// 将字符串和字符字面量的内容替换为空格，保持长度不变
+	private static String strip(String code) {
+		if (code.indexOf('"') < 0 && code.indexOf('\'') < 0) {
+			return code;
+		}
+		char[] chars = code.toCharArray();
+		for (int i = 0; i < chars.length; i ++) {
+			char quote = chars[i];
+			if (quote == '"' || quote == '\'') {
+				int end = skipLiteral(code, i);
+				for (int j = i + 1; j < end - 1; j ++) {
+					chars[j] = ' ';
+				}
+				i = end - 1;
+			}
+		}
+		return new String(chars);
+	}
+
+	private static int skipLiteral(String code, int begin) {
+		char quote = code.charAt(begin);
+		for (int i = begin + 1; i < code.length(); i ++) {
+			char ch = code.charAt(i);
+			if (ch == '\\') {
+				i ++;
+			} else if (ch == quote) {
+				return i + 1;
+			}
+		}
+		throw new IllegalStateException("Unclosed literal at " + begin);
+	}
+
+	private List<Statement> parseStatements(String code, int[] pos, boolean nested) {
+		List<Statement> statements = new ArrayList<Statement>();
+		int len = code.length();
+		while (true) {
+			int i = skipBlank(code, pos[0]);
+			if (i >= len) {
+				if (nested) {
+					throw new IllegalStateException("Unclosed block");
+				}
+				pos[0] = i;
+				return statements;
+			}
+			if (code.charAt(i) == '}') {
+				if (! nested) {
+					throw new IllegalStateException("Unexpected } at " + i);
+				}
+				pos[0] = i + 1;
+				return statements;
+			}
+			pos[0] = i;
+			Statement statement = new Statement();
+			int end = scanStatement(code, pos[0]);
+			if (code.charAt(end) == ';') {
+				statement.code = code.substring(pos[0], end + 1).trim();
+				pos[0] = end + 1;
+				String stripped = strip(statement.code);
+				Matcher matcher = DECLARE_PATTERN.matcher(stripped);
+				if (matcher.find() && ! "return".equals(matcher.group(1))
+						&& ! "else".equals(matcher.group(1))) {
+					statement.declareType = matcher.group(1);
+					statement.declareName = matcher.group(2);
+				}
+				statement.jump = JUMP_PATTERN.matcher(stripped).find();
+				statement.escape = RETURN_PATTERN.matcher(stripped).find();
+				statement.pinned = statement.declareName != null || isRestoredAssigned(stripped);
+			} else {
+				statement.headers = new ArrayList<String>();
+				statement.bodies = new ArrayList<List<Statement>>();
+				while (true) {
+					String header = code.substring(pos[0], end).trim();
+					statement.headers.add(header);
+					if (isRestoredAssigned(strip(header))) {
+						statement.pinned = true;
+					}
+					pos[0] = end + 1;
+					List<Statement> body = parseStatements(code, pos, true);
+					statement.bodies.add(body);
+					boolean loop = LOOP_PATTERN.matcher(header).find();
+					for (Statement s : body) {
+						if (s.escape) {
+							statement.escape = true;
+						}
+						if (s.jump && ! loop) {
+							statement.jump = true;
+						}
+					}
+					i = skipBlank(code, pos[0]);
+					if (! ELSE_PATTERN.matcher(code.substring(i, Math.min(i + 8, len))).find()) {
+						break;
+					}
+					pos[0] = i;
+					end = scanStatement(code, i);
+					if (code.charAt(end) != '{') {
+						throw new IllegalStateException("Unsupported else statement at " + i);
+					}
+				}
+			}
+			statements.add(statement);
+		}
+	}
+
+	// 返回语句结束的';'或块开始的'{'的位置
+	private static int scanStatement(String code, int begin) {
+		int depth = 0;
+		for (int i = begin; i < code.length(); i ++) {
+			char ch = code.charAt(i);
+			if (ch == '"' || ch == '\'') {
+				i = skipLiteral(code, i) - 1;
+			} else if (ch == '(' || ch == '[') {
+				depth ++;
+			} else if (ch == ')' || ch == ']') {
+				depth --;
+			} else if (depth == 0 && (ch == ';' || ch == '{')) {
+				return i;
+			} else if (depth == 0 && ch == '}') {
+				break;
+			}
+		}
+		throw new IllegalStateException("Unterminated statement at " + begin);
+	}
+
+	private static int skipBlank(String code, int i) {
+		while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+			i ++;
+		}
+		return i;
+	}
+
+	private static final class Statement {
+
+		// 简单语句的代码
+		String code;
+
+		List<String> headers;
+
+		List<List<Statement>> bodies;
+
+		String declareType;
+
+		String declareName;
+
+		boolean jump;
+
+		boolean escape;
+
+		// 声明变量或赋值恢复变量的语句，保持在原位置
+		boolean pinned;
+
+		boolean isBlock() {
+			return headers != null;
+		}
+
+		boolean isJump() {
+			return jump || escape;
+		}
+
+	}
+
+}
@@ -43,7 +43,7 @@ public class MultiParser extends AbstractParser {
 
     protected String doParse(Resource resource, boolean stream, String source, Translator translator, 
                              List<String> parameters, List<Class<?>> parameterTypes, 
-                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, Class<?>> macros) throws IOException, ParseException {
+                             Set<String> variables, Map<String, Class<?>> types, Map<String, Class<?>> returnTypes, Map<String, String> macros) throws IOException, ParseException {
         if (parsers == null || parsers.length == 0) {
         	throw new IllegalStateException("parsers == null");
         }
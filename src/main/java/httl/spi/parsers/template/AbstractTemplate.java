@@ -21,7 +21,12 @@ import httl.Engine;
 import httl.Template;
 import httl.spi.Filter;
 import httl.spi.Formatter;
+import httl.spi.StreamFilter;
+import httl.spi.caches.FragmentCache;
+import httl.spi.caches.PageCache;
+import httl.spi.engines.DefaultEngine;
 import httl.spi.formatters.MultiFormatter;
+import httl.util.NumberUtils;
 import httl.util.StringUtils;
 import httl.util.UnsafeByteArrayInputStream;
 
@@ -30,11 +35,16 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Abstract template. (SPI, Prototype, ThreadSafe)
@@ -55,9 +65,41 @@ public abstract class AbstractTemplate implements Template, Serializable {
 
     private static final String OUTPUT_ENCODING     = "output.encoding";
 
+    // The chars of the default number format, see String.valueOf(double)
+    protected static final String NUMBER_CHARS      = "-0123456789.EInfinityNaN";
+
+    // The buffer length of the default number format, see NumberUtils.getChars(double, char[], int)
+    protected static final int NUMBER_LENGTH        = NumberUtils.MAX_LONG_LENGTH + 2;
+
+    private static final String[] ASCII_VALUES      = new String[128];
+
+    static {
+    	for (int i = 0; i < ASCII_VALUES.length; i ++) {
+    		ASCII_VALUES[i] = String.valueOf((char) i);
+    	}
+    }
+
+    // The immutable value types with value equality, can be the key of the page cache
+    private static final Set<Class<?>> PAGE_KEY_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+    		String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, 
+    		Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class));
+
+    private static final int MIN_BUFFER_SIZE        = 64;
+
+    // The max size of the pooled buffer, the larger buffer is not reused
+    protected static final int MAX_BUFFER_SIZE      = 64 * 1024;
+
     private transient final Engine engine;
+
+    private transient final FragmentCache fragmentCache;
+
+    private transient final PageCache pageCache;
+
+    private transient volatile String pageId;
     
     private transient final Filter filter;
+
+    private transient final StreamFilter streamFilter;
     
     private transient final Formatter<Object> formatter;
     
@@ -91,6 +133,18 @@ public abstract class AbstractTemplate implements Template, Serializable {
 
     private transient final Charset outputCharset;
 
+    // The filter does not change the default formatted numbers
+    private transient final boolean numberFilterable;
+
+    private transient final String filteredTrueValue;
+
+    private transient final String filteredFalseValue;
+
+    private transient final String[] filteredAsciiValues;
+
+    // The learned output size of evaluate(), as the initial buffer capacity
+    private transient volatile int bufferSize = MIN_BUFFER_SIZE;
+
 	private final Map<String, Template> importMacros;
 
 	private final Map<String, Template> macros;
@@ -100,7 +154,10 @@ public abstract class AbstractTemplate implements Template, Serializable {
     		Formatter<?> formatter, Map<Class<?>, Object> functions,
     		Map<String, Template> importMacros) {
 		this.engine = engine;
+		this.fragmentCache = engine instanceof DefaultEngine ? ((DefaultEngine) engine).getFragmentCache() : null;
+		this.pageCache = engine instanceof DefaultEngine ? ((DefaultEngine) engine).getPageCache() : null;
 		this.filter = filter;
+		this.streamFilter = filter instanceof StreamFilter ? (StreamFilter) filter : null;
 		this.formatter = (Formatter<Object>) formatter;
 		this.importMacros = importMacros;
 		this.macros = initMacros(engine, filter, formatter, functions, importMacros);
@@ -133,6 +190,35 @@ public abstract class AbstractTemplate implements Template, Serializable {
 		this.falseValue = engine.getProperty(FALSE_VALUE, "false");
 		this.outputEncoding = engine.getProperty(OUTPUT_ENCODING);
 		this.outputCharset = outputEncoding == null || outputEncoding.length() == 0 ? null : Charset.forName(outputEncoding);
+		this.numberFilterable = filter == null || NUMBER_CHARS.equals(filter.filter(NUMBER_CHARS));
+		this.filteredTrueValue = filter(trueValue);
+		this.filteredFalseValue = filter(falseValue);
+		if (filter == null) {
+			this.filteredAsciiValues = ASCII_VALUES;
+		} else {
+			this.filteredAsciiValues = new String[ASCII_VALUES.length];
+			for (int i = 0; i < ASCII_VALUES.length; i ++) {
+				filteredAsciiValues[i] = filter(ASCII_VALUES[i]);
+			}
+		}
+	}
+
+	protected int getBufferSize() {
+		return bufferSize;
+	}
+
+	// 输出变大时立即扩大，变小时缓慢收缩，防止偶尔的小输出导致反复扩容
+	protected void learnBufferSize(int size) {
+		int oldSize = bufferSize;
+		int newSize;
+		if (size > oldSize) {
+			newSize = Math.min(size, MAX_BUFFER_SIZE);
+		} else {
+			newSize = Math.max(oldSize - ((oldSize - size) >> 3), MIN_BUFFER_SIZE);
+		}
+		if (newSize != oldSize) {
+			bufferSize = newSize;
+		}
 	}
 
 	public Reader getReader() throws IOException {
@@ -147,6 +233,20 @@ public abstract class AbstractTemplate implements Template, Serializable {
 		return importMacros;
 	}
 
+	/**
+	 * Load the macro class by the class loader of this template.
+	 * 
+	 * @param name - macro class name
+	 * @return macro class
+	 */
+	protected Class<?> getMacroClass(String name) {
+		try {
+			return Class.forName(name, false, getClass().getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Not found macro class " + name + " of template " + getName(), e);
+		}
+	}
+
 	private Map<String, Template> initMacros(Engine engine, Filter filter, 
 			Formatter<?> formatter, Map<Class<?>, Object> functions,
 			Map<String, Template> importMacros) {
@@ -181,6 +281,62 @@ public abstract class AbstractTemplate implements Template, Serializable {
 		return engine;
 	}
 
+	protected Charset getOutputCharset() {
+		return outputCharset;
+	}
+
+	// #cache块的片段，未配置缓存时总是重新渲染
+	protected Object getFragment(String fragment, Object key) {
+		return fragmentCache == null ? null : fragmentCache.get(fragment, key);
+	}
+
+	protected void putFragment(String fragment, Object key, Object value, long ttl) {
+		if (fragmentCache != null) {
+			fragmentCache.put(fragment, key, value, ttl);
+		}
+	}
+
+	/**
+	 * Get the key values of the page cache.
+	 * 
+	 * @param parameters - render parameters
+	 * @return the declared parameter values, null if the page is not cacheable
+	 */
+	protected Object[] getPageValues(Map<String, Object> parameters) {
+		// 只缓存最外层的模板，被包含的模板和宏可能依赖外层的上下文
+		if (pageCache == null || isMacro() || Context.getContext().getTemplate() != null) {
+			return null;
+		}
+		Map<String, Class<?>> types = getParameterTypes();
+		Object[] values = new Object[types.size()];
+		int i = 0;
+		for (String name : types.keySet()) {
+			Object value = parameters.get(name);
+			if (value != null && ! PAGE_KEY_TYPES.contains(value.getClass()) && ! (value instanceof Enum)) {
+				return null;
+			}
+			values[i ++] = value;
+		}
+		return values;
+	}
+
+	protected Object getPage(Object[] values) {
+		return pageCache.get(getPageId(), values);
+	}
+
+	protected void putPage(Object[] values, Object value) {
+		pageCache.put(getPageId(), values, value);
+	}
+
+	private String getPageId() {
+		String id = pageId;
+		if (id == null) {
+			id = getName() + "@" + getLastModified() + ":" + getEncoding() + (getReturnType() == byte[].class ? ":stream" : ":writer");
+			pageId = id;
+		}
+		return id;
+	}
+
 	public Map<String, Template> getMacros() {
 		return macros;
 	}
@@ -225,6 +381,16 @@ public abstract class AbstractTemplate implements Template, Serializable {
         return value;
     }
 
+    protected void filter(String value, Appendable output) throws IOException {
+        if (streamFilter != null) {
+            streamFilter.filter(value, output);
+        } else {
+            value = filter(value);
+            if (value != null)
+                output.append(value);
+        }
+    }
+
     protected String format(boolean value) {
         if (booleanFormatter != null)
             return booleanFormatter.format(value);
@@ -321,6 +487,14 @@ public abstract class AbstractTemplate implements Template, Serializable {
         return value.toString();
     }
     
+    protected String format(Float value) {
+    	if (value == null)
+            return nullValue;
+        if (floatFormatter != null) 
+            return floatFormatter.format(value);
+        return value.toString();
+    }
+    
     protected String format(Double value) {
     	if (value == null)
             return nullValue;
@@ -393,6 +567,70 @@ public abstract class AbstractTemplate implements Template, Serializable {
         return StringUtils.toString(value);
     }
 
+    /**
+     * Format the value to the tail of the buffer without allocation.
+     * 
+     * @param value - int value
+     * @param filtered - filter the formatted value
+     * @param buf - buffer, the length must be at least NUMBER_LENGTH
+     * @return the begin index in the buffer, or -1 if required format(value).
+     */
+    protected int format(int value, boolean filtered, char[] buf) {
+        if (intFormatter != null || (filtered && ! numberFilterable))
+            return -1;
+        return NumberUtils.getChars(value, buf, buf.length);
+    }
+
+    // byte和short的格式化器与int相同时（默认都未配置），按int输出
+    protected boolean isByteAsInt() {
+        return byteFormatter == intFormatter;
+    }
+
+    protected boolean isShortAsInt() {
+        return shortFormatter == intFormatter;
+    }
+
+    protected int format(long value, boolean filtered, char[] buf) {
+        if (longFormatter != null || (filtered && ! numberFilterable))
+            return -1;
+        return NumberUtils.getChars(value, buf, buf.length);
+    }
+
+    protected int format(float value, boolean filtered, char[] buf) {
+        if (floatFormatter != null || (filtered && ! numberFilterable))
+            return -1;
+        return NumberUtils.getChars(value, buf, buf.length);
+    }
+
+    protected int format(double value, boolean filtered, char[] buf) {
+        if (doubleFormatter != null || (filtered && ! numberFilterable))
+            return -1;
+        return NumberUtils.getChars(value, buf, buf.length);
+    }
+
+    /**
+     * Get the formatted value without allocation.
+     * 
+     * @param value - boolean value
+     * @param filtered - filter the formatted value
+     * @return the formatted value, or null if required format(value).
+     */
+    protected String getText(boolean value, boolean filtered) {
+        if (booleanFormatter != null)
+            return null;
+        if (filtered)
+            return value ? filteredTrueValue : filteredFalseValue;
+        return value ? trueValue : falseValue;
+    }
+
+    protected String getText(char value, boolean filtered) {
+        if (charFormatter != null || value >= ASCII_VALUES.length)
+            return null;
+        if (filtered)
+            return filteredAsciiValues[value];
+        return ASCII_VALUES[value];
+    }
+
     protected byte[] serialize(String value) {
     	if (value == null)
     		return null;
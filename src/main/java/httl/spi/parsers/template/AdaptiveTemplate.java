@@ -26,7 +26,10 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Adaptive Template. (SPI, Prototype, ThreadSafe)
@@ -39,99 +42,216 @@ public class AdaptiveTemplate implements Template, Serializable {
 
 	private static final long serialVersionUID = 3094907176375413567L;
 
-	private final Template writerTemplate;
+	private final Template template;
 
-	private final Template streamTemplate;
+	private final boolean stream;
+
+	private transient final Callable<Template> loader;
+
+	private volatile Template writerTemplate;
+
+	private volatile Template streamTemplate;
+
+	private final Map<String, Template> macros;
 
 	public AdaptiveTemplate(Template writerTemplate, Template streamTemplate) {
 		if (writerTemplate == null)
 			throw new IllegalArgumentException("writer template == null");
 		if (streamTemplate == null)
 			throw new IllegalArgumentException("stream template == null");
+		this.template = writerTemplate;
+		this.stream = false;
+		this.loader = null;
 		this.writerTemplate = writerTemplate;
 		this.streamTemplate = streamTemplate;
+		this.macros = initMacros(writerTemplate.getMacros(), streamTemplate.getMacros());
+	}
+
+	/**
+	 * Create the adaptive template with one compiled variant, the other variant is loaded on first use.
+	 * 
+	 * @param template - the compiled variant
+	 * @param stream - the compiled variant is the stream template
+	 * @param loader - load the other variant
+	 */
+	public AdaptiveTemplate(Template template, boolean stream, Callable<Template> loader) {
+		if (template == null)
+			throw new IllegalArgumentException("template == null");
+		if (loader == null)
+			throw new IllegalArgumentException("loader == null");
+		this.template = template;
+		this.stream = stream;
+		this.loader = loader;
+		if (stream) {
+			this.streamTemplate = template;
+		} else {
+			this.writerTemplate = template;
+		}
+		this.macros = initMacros(this, template.getMacros(), stream);
+	}
+
+	// 延迟加载时，宏的另一种输出类型也在首次使用时，从所属模板的另一种输出类型中获取
+	private static Map<String, Template> initMacros(final AdaptiveTemplate template, Map<String, Template> templateMacros, final boolean stream) {
+		if (templateMacros == null || templateMacros.size() == 0) {
+			return templateMacros;
+		}
+		Map<String, Template> macros = new HashMap<String, Template>();
+		for (Map.Entry<String, Template> entry : templateMacros.entrySet()) {
+			final String name = entry.getKey();
+			macros.put(name, new AdaptiveTemplate(entry.getValue(), stream, new Callable<Template>() {
+				public Template call() throws Exception {
+					Template other = stream ? template.getWriterTemplate() : template.getStreamTemplate();
+					Map<String, Template> otherMacros = other.getMacros();
+					Template macro = otherMacros == null ? null : otherMacros.get(name);
+					if (macro == null) {
+						throw new IllegalStateException("Not found macro " + name + " in template " + other.getName());
+					}
+					return macro;
+				}
+			}));
+		}
+		return Collections.unmodifiableMap(macros);
+	}
+
+	// 宏也按输出类型选择，使render()直接写入同类型的输出
+	private static Map<String, Template> initMacros(Map<String, Template> writerMacros, Map<String, Template> streamMacros) {
+		if (writerMacros == null || writerMacros.size() == 0) {
+			return writerMacros;
+		}
+		Map<String, Template> macros = new HashMap<String, Template>();
+		for (Map.Entry<String, Template> entry : writerMacros.entrySet()) {
+			Template writerMacro = entry.getValue();
+			Template streamMacro = streamMacros == null ? null : streamMacros.get(entry.getKey());
+			if (streamMacro == null || streamMacro == writerMacro) {
+				macros.put(entry.getKey(), writerMacro);
+			} else {
+				macros.put(entry.getKey(), new AdaptiveTemplate(writerMacro, streamMacro));
+			}
+		}
+		return Collections.unmodifiableMap(macros);
+	}
+
+	private Template getWriterTemplate() {
+		Template template = writerTemplate;
+		if (template == null) {
+			synchronized (this) {
+				template = writerTemplate;
+				if (template == null) {
+					template = load();
+					writerTemplate = template;
+				}
+			}
+		}
+		return template;
+	}
+
+	private Template getStreamTemplate() {
+		Template template = streamTemplate;
+		if (template == null) {
+			synchronized (this) {
+				template = streamTemplate;
+				if (template == null) {
+					template = load();
+					streamTemplate = template;
+				}
+			}
+		}
+		return template;
+	}
+
+	private Template load() {
+		if (loader == null) {
+			throw new IllegalStateException("Can not load the " + (stream ? "writer" : "stream") + " template " + template.getName() + " after serialization.");
+		}
+		try {
+			return loader.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
 	}
 
 	public String getName() {
-		return writerTemplate.getName();
+		return template.getName();
 	}
 
 	public String getEncoding() {
-		return writerTemplate.getEncoding();
+		return template.getEncoding();
 	}
 
 	public long getLastModified() {
-		return writerTemplate.getLastModified();
+		return template.getLastModified();
 	}
 
 	public long getLength() {
-		return writerTemplate.getLength();
+		return template.getLength();
 	}
 
 	public String getSource() {
-		return writerTemplate.getSource();
+		return template.getSource();
 	}
 
 	public Reader getReader() throws IOException {
-		return writerTemplate.getReader();
+		return template.getReader();
 	}
 
 	public InputStream getInputStream() throws IOException {
-		return streamTemplate.getInputStream();
+		return template.getInputStream();
 	}
 
 	public Engine getEngine() {
-		return writerTemplate.getEngine();
+		return template.getEngine();
 	}
 
     public Class<?> getReturnType() {
     	if (Context.getContext().getOutput() instanceof OutputStream) {
-			return streamTemplate.getReturnType();
+			return getStreamTemplate().getReturnType();
 		} else {
-			return writerTemplate.getReturnType();
+			return getWriterTemplate().getReturnType();
 		}
     }
 
 	public Object evaluate(Map<String, Object> parameters) {
 		if (Context.getContext().getOutput() instanceof OutputStream) {
-			return streamTemplate.evaluate(parameters);
+			return getStreamTemplate().evaluate(parameters);
 		} else {
-			return writerTemplate.evaluate(parameters);
+			return getWriterTemplate().evaluate(parameters);
 		}
 	}
 
 	public void render(Map<String, Object> parameters, OutputStream output)
 			throws IOException {
-		streamTemplate.render(parameters, output);
+		getStreamTemplate().render(parameters, output);
 	}
 
 	public void render(Map<String, Object> parameters, Writer writer)
 			throws IOException {
-		writerTemplate.render(parameters, writer);
+		getWriterTemplate().render(parameters, writer);
 	}
 
 	public Map<String, Class<?>> getParameterTypes() {
-		return writerTemplate.getParameterTypes();
+		return template.getParameterTypes();
 	}
 
 	public Map<String, Class<?>> getContextTypes() {
-		return writerTemplate.getContextTypes();
+		return template.getContextTypes();
 	}
 
 	public Map<String, Template> getMacros() {
-		return writerTemplate.getMacros();
+		return macros;
 	}
 
 	public String getCode() {
-		return writerTemplate.getCode();
+		return template.getCode();
 	}
 
 	public int getOffset() {
-		return writerTemplate.getOffset();
+		return template.getOffset();
 	}
 
 	public boolean isMacro() {
-		return writerTemplate.isMacro();
+		return template.isMacro();
 	}
 
 }
@@ -40,9 +40,13 @@ public class ForeachStatus implements Serializable {
     private int index = 0;
 
     public ForeachStatus(ForeachStatus parent, Object data) {
+        this(parent, data, ClassUtils.getSize(data));
+    }
+
+    public ForeachStatus(ForeachStatus parent, Object data, int size) {
         this.parent = parent;
         this.data = data;
-        this.size = ClassUtils.getSize(data);
+        this.size = size;
         this.level = parent == null ? 0 : parent.getLevel() + 1;
     }
 
@@ -0,0 +1,386 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.parsers.template;
+
+import httl.Context;
+import httl.Engine;
+import httl.Resource;
+import httl.Template;
+import httl.spi.Filter;
+import httl.spi.Formatter;
+import httl.spi.translators.expression.Interpreter;
+import httl.util.ClassUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreted Template. (SPI, Prototype, ThreadSafe)
+ * 
+ * Render the statements parsed from the template directly, without generating and compiling the template class.
+ * 
+ * @see httl.spi.parsers.AbstractParser#setTemplateCompileThreshold(int)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class InterpretedTemplate extends WriterTemplate {
+
+	private static final long serialVersionUID = -2893457290371462203L;
+
+	private final Resource resource;
+
+	private final boolean outputStream;
+
+	private final boolean outputWriter;
+
+	private final Map<String, Class<?>> parameterTypes;
+
+	private final Map<String, Class<?>> contextTypes;
+
+	private transient final Map<String, Object> variables;
+
+	private transient final List<Statement> statements;
+
+	/**
+	 * Create the interpreted template.
+	 * 
+	 * @param resource - template resource
+	 * @param outputStream - the stream output is enabled
+	 * @param outputWriter - the writer output is enabled
+	 * @param parameterTypes - the #var parameter types
+	 * @param contextTypes - the := exported variable types
+	 * @param variables - the initial values of the template variables
+	 * @param statements - the template statements
+	 */
+	public InterpretedTemplate(Engine engine, Filter filter, 
+			Formatter<?> formatter, Map<Class<?>, Object> functions,
+			Map<String, Template> importMacros, Resource resource, boolean outputStream, boolean outputWriter, 
+			Map<String, Class<?>> parameterTypes, Map<String, Class<?>> contextTypes, 
+			Map<String, Object> variables, List<Statement> statements) {
+		super(engine, filter, formatter, functions, importMacros);
+		this.resource = resource;
+		this.outputStream = outputStream;
+		this.outputWriter = outputWriter;
+		this.parameterTypes = parameterTypes;
+		this.contextTypes = contextTypes;
+		this.variables = variables;
+		this.statements = statements;
+	}
+
+	public Class<?> getReturnType() {
+		return isStream() ? byte[].class : String.class;
+	}
+
+	public Object evaluate(Map<String, Object> parameters) {
+		Object result = super.evaluate(parameters);
+		return isStream() ? serialize((String) result) : result;
+	}
+
+	// 与编译的模板一致，流输出时求值为byte[]
+	private boolean isStream() {
+		return outputStream && (! outputWriter || Context.getContext().getOutput() instanceof OutputStream);
+	}
+
+	public void render(Map<String, Object> parameters, OutputStream output) throws IOException {
+		if (output == null) 
+			throw new IllegalArgumentException("output == null");
+		Writer writer = getOutputCharset() == null ? new OutputStreamWriter(output) : new OutputStreamWriter(output, getOutputCharset());
+		render(parameters, writer);
+		writer.flush();
+	}
+
+	protected void doRender(Context context, Map<String, Object> parameters, Writer output) throws Exception {
+		execute(statements, parameters, new HashMap<String, Object>(variables), output);
+	}
+
+	// 返回true表示跳出循环
+	private boolean execute(List<Statement> statements, Map<String, Object> parameters, Map<String, Object> variables, Writer output) throws IOException {
+		for (Statement statement : statements) {
+			if (statement.execute(this, parameters, variables, output)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getName() {
+		return resource.getName();
+	}
+
+	public String getEncoding() {
+		return resource.getEncoding();
+	}
+
+	public long getLastModified() {
+		return resource.getLastModified();
+	}
+
+	public long getLength() {
+		return resource.getLength();
+	}
+
+	public String getSource() {
+		return resource.getSource();
+	}
+
+	public String getCode() {
+		return resource.getSource();
+	}
+
+	public Map<String, Class<?>> getParameterTypes() {
+		return parameterTypes;
+	}
+
+	public Map<String, Class<?>> getContextTypes() {
+		return contextTypes;
+	}
+
+	protected Map<String, Class<?>> getMacroTypes() {
+		return Collections.emptyMap();
+	}
+
+	public boolean isMacro() {
+		return resource.getName().indexOf('#') >= 0;
+	}
+
+	public int getOffset() {
+		return 0;
+	}
+
+	/**
+	 * Template statement.
+	 */
+	public static abstract class Statement {
+
+		/**
+		 * Execute the statement.
+		 * 
+		 * @return break the loop
+		 */
+		protected abstract boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException;
+
+	}
+
+	/**
+	 * The filtered text.
+	 */
+	public static class TextStatement extends Statement {
+
+		private final String text;
+
+		public TextStatement(String text) {
+			this.text = text;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			output.write(text);
+			return false;
+		}
+
+	}
+
+	/**
+	 * ${expression} or $!{expression}
+	 */
+	public static class ValueStatement extends Statement {
+
+		private final Interpreter expression;
+
+		private final boolean filtered;
+
+		public ValueStatement(Interpreter expression, boolean filtered) {
+			this.expression = expression;
+			this.filtered = filtered;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			template.write(output, template.format(expression.evaluate(variables)), filtered);
+			return false;
+		}
+
+	}
+
+	/**
+	 * #if(condition) ... #elseif(condition) ... #else ... #end
+	 */
+	public static class IfStatement extends Statement {
+
+		private final List<Interpreter> conditions = new ArrayList<Interpreter>();
+
+		private final List<List<Statement>> branches = new ArrayList<List<Statement>>();
+
+		/**
+		 * Add the elseif branch, or the else branch if the condition is null.
+		 * 
+		 * @return the statements of the branch
+		 */
+		public List<Statement> addBranch(Interpreter condition) {
+			List<Statement> branch = new ArrayList<Statement>();
+			conditions.add(condition);
+			branches.add(branch);
+			return branch;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			for (int i = 0; i < conditions.size(); i ++) {
+				Interpreter condition = conditions.get(i);
+				if (condition == null || condition.evaluateCondition(variables)) {
+					return template.execute(branches.get(i), parameters, variables, output);
+				}
+			}
+			return false;
+		}
+
+	}
+
+	/**
+	 * #foreach(type var in expression) ... #end
+	 */
+	public static class ForeachStatement extends Statement {
+
+		private final String var;
+
+		private final Class<?> type;
+
+		private final Interpreter expression;
+
+		private final boolean map;
+
+		private final String status;
+
+		private final List<Statement> statements = new ArrayList<Statement>();
+
+		public ForeachStatement(String var, Class<?> type, Interpreter expression, boolean map, String status) {
+			this.var = var;
+			this.type = type;
+			this.expression = expression;
+			this.map = map;
+			this.status = status;
+		}
+
+		public List<Statement> getStatements() {
+			return statements;
+		}
+
+		@SuppressWarnings("unchecked")
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			Object data = expression.evaluate(variables);
+			if (map) {
+				data = ClassUtils.entrySet((Map<Object, Object>) data);
+			}
+			ForeachStatus parent = (ForeachStatus) variables.get(status);
+			ForeachStatus foreach = new ForeachStatus(parent, data);
+			variables.put(status, foreach);
+			for (Iterator<?> iterator = ClassUtils.toIterator(data); iterator.hasNext();) {
+				variables.put(var, Interpreter.cast(iterator.next(), type));
+				if (template.execute(statements, parameters, variables, output)) {
+					break;
+				}
+				foreach.increment();
+			}
+			variables.put(status, parent);
+			return false;
+		}
+
+	}
+
+	/**
+	 * #breakif(condition)
+	 */
+	public static class BreakifStatement extends Statement {
+
+		private final Interpreter condition;
+
+		public BreakifStatement(Interpreter condition) {
+			this.condition = condition;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			return condition.evaluateCondition(variables);
+		}
+
+	}
+
+	/**
+	 * #set(type var = expression) or #set(type var := expression)
+	 */
+	public static class SetStatement extends Statement {
+
+		private final String var;
+
+		private final Class<?> type;
+
+		private final Interpreter expression;
+
+		private final boolean export;
+
+		public SetStatement(String var, Class<?> type, Interpreter expression, boolean export) {
+			this.var = var;
+			this.type = type;
+			this.expression = expression;
+			this.export = export;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			Object value = Interpreter.cast(expression.evaluate(variables), type);
+			variables.put(var, value);
+			if (export) {
+				Context.getContext().getParameters().put(var, value);
+			}
+			return false;
+		}
+
+	}
+
+	/**
+	 * #var(type var)
+	 */
+	public static class VarStatement extends Statement {
+
+		private final String var;
+
+		private final Class<?> type;
+
+		public VarStatement(String var, Class<?> type) {
+			this.var = var;
+			this.type = type;
+		}
+
+		protected boolean execute(InterpretedTemplate template, Map<String, Object> parameters, 
+				Map<String, Object> variables, Writer output) throws IOException {
+			variables.put(var, Interpreter.cast(parameters.get(var), type));
+			return false;
+		}
+
+	}
+
+}
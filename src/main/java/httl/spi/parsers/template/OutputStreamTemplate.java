@@ -21,14 +21,21 @@ import httl.Engine;
 import httl.Template;
 import httl.spi.Filter;
 import httl.spi.Formatter;
+import httl.spi.filters.EscapeHtmlFilter;
+import httl.spi.filters.EscapeXmlFilter;
+import httl.spi.filters.MultiFilter;
 import httl.util.ClassUtils;
+import httl.util.StringUtils;
 import httl.util.UnsafeByteArrayOutputStream;
 import httl.util.WriterOutputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -42,10 +49,99 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
 
     private static final long serialVersionUID = 7127901461769617745L;
 
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<Buffer> NUMBER_BUFFER = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer(NUMBER_LENGTH, BUFFER_SIZE);
+		}
+    };
+
+    private static final int MAX_POOL_SIZE = 8;
+
+    // The reusable buffers of evaluate() in the current thread
+    private static final ThreadLocal<List<UnsafeByteArrayOutputStream>> BUFFER_POOL = new ThreadLocal<List<UnsafeByteArrayOutputStream>>() {
+		@Override
+		protected List<UnsafeByteArrayOutputStream> initialValue() {
+			return new ArrayList<UnsafeByteArrayOutputStream>(MAX_POOL_SIZE);
+		}
+    };
+
+    // The escaped bytes of the ascii chars, same as StringUtils.escapeXml()
+    private static final byte[][] XML_ESCAPES = new byte[128][];
+
+    static {
+    	for (int i = 0; i < XML_ESCAPES.length; i ++) {
+    		String value = String.valueOf((char) i);
+    		String escaped = StringUtils.escapeXml(value);
+    		if (! value.equals(escaped)) {
+    			XML_ESCAPES[i] = escaped.getBytes();
+    		}
+    	}
+    }
+
+    private static final int OTHER_CHARSET = 0;
+
+    private static final int UTF_8_CHARSET = 1;
+
+    private static final int ISO_8859_1_CHARSET = 2;
+
+    private static final int US_ASCII_CHARSET = 3;
+
+    // The output charset encode the ascii chars to the same bytes
+    private transient final boolean asciiCompatible;
+
+    // The output charset has a hand-written encoder
+    private transient final int charsetType;
+
+    // The filter is the xml escape, can be fused with the encoder
+    private transient final boolean xmlEscaped;
+
     public OutputStreamTemplate(Engine engine, Filter filter, 
     		Formatter<?> formatter, Map<Class<?>, Object> functions,
     		Map<String, Template> importMacros){
         super(engine, filter, formatter, functions, importMacros);
+        this.asciiCompatible = isAsciiCompatible(serialize(NUMBER_CHARS));
+        this.charsetType = getCharsetType(getOutputCharset());
+        this.xmlEscaped = isXmlEscaped(filter);
+    }
+
+    private static int getCharsetType(Charset charset) {
+    	if (charset == null) {
+    		charset = Charset.defaultCharset();
+    	}
+    	if ("UTF-8".equals(charset.name())) {
+    		return UTF_8_CHARSET;
+    	}
+    	if ("ISO-8859-1".equals(charset.name())) {
+    		return ISO_8859_1_CHARSET;
+    	}
+    	if ("US-ASCII".equals(charset.name())) {
+    		return US_ASCII_CHARSET;
+    	}
+    	return OTHER_CHARSET;
+    }
+
+    private static boolean isXmlEscaped(Filter filter) {
+    	if (filter instanceof MultiFilter) {
+    		Filter[] filters = ((MultiFilter) filter).getFilters();
+    		return filters != null && filters.length == 1 && isXmlEscaped(filters[0]);
+    	}
+    	return filter != null && (filter.getClass() == EscapeXmlFilter.class
+    			|| filter.getClass() == EscapeHtmlFilter.class);
+    }
+
+    private static boolean isAsciiCompatible(byte[] bytes) {
+    	if (bytes.length != NUMBER_CHARS.length()) {
+    		return false;
+    	}
+    	for (int i = 0; i < bytes.length; i ++) {
+    		if (bytes[i] != NUMBER_CHARS.charAt(i)) {
+    			return false;
+    		}
+    	}
+    	return true;
     }
     
     public Class<?> getReturnType() {
@@ -53,13 +149,26 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
     }
 
     public Object evaluate(Map<String, Object> parameters) {
-        UnsafeByteArrayOutputStream output = new UnsafeByteArrayOutputStream();
+        List<UnsafeByteArrayOutputStream> pool = BUFFER_POOL.get();
+        UnsafeByteArrayOutputStream output;
+        if (pool.isEmpty()) {
+            output = new UnsafeByteArrayOutputStream(getBufferSize());
+        } else { // 嵌套的evaluate()使用池中的下一个缓冲区
+            output = pool.remove(pool.size() - 1);
+            output.ensureCapacity(getBufferSize());
+        }
         try {
             render(parameters, output);
+            learnBufferSize(output.size());
+            return output.toByteArray();
         } catch (IOException e) {
             throw new IllegalStateException(e);
+        } finally {
+            if (output.size() <= MAX_BUFFER_SIZE && pool.size() < MAX_POOL_SIZE) {
+                output.reset();
+                pool.add(output);
+            }
         }
-        return output.toByteArray();
     }
 
     public void render(Map<String, Object> parameters, OutputStream output) throws IOException {
@@ -67,6 +176,30 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
         	throw new IllegalArgumentException("output == null");
         if (parameters == null)
     		parameters = new HashMap<String, Object>();
+        Object[] page = getPageValues(parameters);
+        if (page == null) {
+        	renderContext(parameters, output);
+        	return;
+        }
+        byte[] value = (byte[]) getPage(page);
+        if (value != null) {
+        	output.write(value); // 整页命中，跳过渲染
+        	return;
+        }
+        FragmentOutputStream buffer = new FragmentOutputStream(output);
+        try {
+        	PageParameters pageParameters = new PageParameters(parameters, getParameterTypes().keySet());
+        	renderContext(pageParameters, buffer);
+        	buffer.value = buffer.toByteArray();
+        	if (! pageParameters.isDependent()) { // 读取了声明以外的参数，如包含的模板，不能按声明的参数缓存
+        		putPage(page, buffer.value);
+        	}
+        } finally {
+        	endFragment(buffer);
+        }
+    }
+
+    private void renderContext(Map<String, Object> parameters, OutputStream output) throws IOException {
         Context context = Context.pushContext(this, parameters, output);
         try {
             doRender(context, parameters, output);
@@ -85,6 +218,418 @@ public abstract class OutputStreamTemplate extends AbstractTemplate {
         render(parameters, new WriterOutputStream(writer));
     }
 
+    /**
+     * Write the cached fragment of the #cache block.
+     * 
+     * @param output - output stream
+     * @param fragment - fragment id
+     * @param key - fragment key
+     * @return true if the fragment is cached and written
+     * @throws IOException - If an I/O error occurs
+     */
+    protected boolean writeFragment(OutputStream output, String fragment, Object key) throws IOException {
+    	byte[] value = (byte[]) getFragment(fragment, key);
+    	if (value == null) {
+    		return false;
+    	}
+    	output.write(value);
+    	return true;
+    }
+
+    protected OutputStream beginFragment(OutputStream output) {
+    	return new FragmentOutputStream(output);
+    }
+
+    protected void cacheFragment(OutputStream output, String fragment, Object key, long ttl) {
+    	FragmentOutputStream stream = (FragmentOutputStream) output;
+    	byte[] value = stream.toByteArray();
+    	putFragment(fragment, key, value, ttl);
+    	stream.value = value;
+    }
+
+    // 渲染中断时，如breakif，也写出已渲染的内容，但不缓存
+    protected OutputStream endFragment(OutputStream output) throws IOException {
+    	FragmentOutputStream stream = (FragmentOutputStream) output;
+    	if (stream.value != null) {
+    		stream.output.write(stream.value);
+    	} else {
+    		stream.writeTo(stream.output);
+    	}
+    	return stream.output;
+    }
+
+    private static final class FragmentOutputStream extends UnsafeByteArrayOutputStream {
+
+    	final OutputStream output;
+
+    	byte[] value;
+
+    	FragmentOutputStream(OutputStream output) {
+    		this.output = output;
+    	}
+
+    }
+
+    /**
+     * Write the value to the output without intermediate string and bytes.
+     * 
+     * @param output - output stream
+     * @param value - value
+     * @param filtered - filter the value
+     * @throws IOException - If an I/O error occurs
+     */
+    protected void write(OutputStream output, boolean value, boolean filtered) throws IOException {
+    	String text = getText(value, filtered);
+    	if (text == null) {
+    		writeText(output, format(value), filtered);
+    	} else {
+    		writeAscii(output, text);
+    	}
+    }
+
+    // Escape and encode the string in one pass, without the filtered copy and its bytes.
+    protected void write(OutputStream output, String value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		return;
+    	}
+    	if (charsetType == OTHER_CHARSET) {
+    		output.write(serialize(filtered ? filter(value) : value));
+    		return;
+    	}
+    	// 转义和编码在同一个循环中完成，不生成转义后的中间串和byte[]
+    	Buffer buf = NUMBER_BUFFER.get();
+    	buf.open(output, charsetType == UTF_8_CHARSET, charsetType == ISO_8859_1_CHARSET ? 0x100 : 0x80);
+    	try {
+    		if (! filtered) {
+    			buf.append(value);
+    		} else if (xmlEscaped) {
+    			buf.escape(value);
+    		} else {
+    			filter(value, buf);
+    		}
+    		buf.flush();
+    	} finally {
+    		buf.close();
+    	}
+    }
+
+    protected void write(OutputStream output, char value, boolean filtered) throws IOException {
+    	String text = getText(value, filtered);
+    	if (text == null) {
+    		writeText(output, format(value), filtered);
+    	} else {
+    		writeAscii(output, text);
+    	}
+    }
+
+    protected void write(OutputStream output, byte value, boolean filtered) throws IOException {
+    	if (isByteAsInt()) {
+    		write(output, (int) value, filtered);
+    	} else {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, short value, boolean filtered) throws IOException {
+    	if (isShortAsInt()) {
+    		write(output, (int) value, filtered);
+    	} else {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, int value, boolean filtered) throws IOException {
+    	Buffer buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf.chars))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, long value, boolean filtered) throws IOException {
+    	Buffer buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf.chars))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, float value, boolean filtered) throws IOException {
+    	Buffer buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf.chars))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, double value, boolean filtered) throws IOException {
+    	Buffer buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf.chars))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Boolean value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.booleanValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Character value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.charValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Byte value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.byteValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Short value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.shortValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Integer value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.intValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Long value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.longValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Float value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.floatValue(), filtered);
+    	}
+    }
+
+    protected void write(OutputStream output, Double value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.doubleValue(), filtered);
+    	}
+    }
+
+    // The number formatted into the buffer, or false if required format(value).
+    private boolean writeNumber(OutputStream output, Buffer buf, int begin) throws IOException {
+    	if (begin < 0 || ! asciiCompatible) {
+    		return false;
+    	}
+    	buf.write(output, begin, buf.chars.length);
+    	return true;
+    }
+
+    private void writeNull(OutputStream output, boolean filtered) throws IOException {
+    	writeText(output, format((Object) null), filtered);
+    }
+
+    private void writeText(OutputStream output, String text, boolean filtered) throws IOException {
+    	writeAscii(output, filtered ? filter(text) : text);
+    }
+
+    // Write the short text, encode the ascii chars in place.
+    private void writeAscii(OutputStream output, String text) throws IOException {
+    	int len = text.length();
+    	if (asciiCompatible && len <= NUMBER_LENGTH) {
+    		Buffer buf = NUMBER_BUFFER.get();
+    		int i = 0;
+    		for (; i < len; i ++) {
+    			char ch = text.charAt(i);
+    			if (ch >= 128) {
+    				break;
+    			}
+    			buf.bytes[i] = (byte) ch;
+    		}
+    		if (i == len) {
+    			output.write(buf.bytes, 0, len);
+    			return;
+    		}
+    	}
+    	output.write(serialize(text));
+    }
+
+    // The thread local buffer for the numbers, and the encoder for the strings.
+    private static final class Buffer implements Appendable {
+
+    	final char[] chars;
+
+    	final byte[] bytes;
+
+    	private OutputStream output;
+
+    	private boolean utf8;
+
+    	// The chars less than the limit are encoded to one byte, if not utf8
+    	private char limit;
+
+    	private int count;
+
+    	// The high surrogate waiting for the low surrogate
+    	private char surrogate;
+
+    	Buffer(int size, int capacity) {
+    		chars = new char[size];
+    		bytes = new byte[capacity];
+    	}
+
+    	// Encode the ascii chars, and write to output.
+    	void write(OutputStream output, int begin, int end) throws IOException {
+    		for (int i = begin; i < end; i ++) {
+    			bytes[i] = (byte) chars[i];
+    		}
+    		output.write(bytes, begin, end - begin);
+    	}
+
+    	void open(OutputStream output, boolean utf8, int limit) {
+    		this.output = output;
+    		this.utf8 = utf8;
+    		this.limit = (char) limit;
+    		this.count = 0;
+    		this.surrogate = 0;
+    	}
+
+    	void flush() throws IOException {
+    		if (surrogate != 0) {
+    			surrogate = 0;
+    			put('?');
+    		}
+    		if (count > 0) {
+    			output.write(bytes, 0, count);
+    			count = 0;
+    		}
+    	}
+
+    	void close() {
+    		output = null;
+    	}
+
+    	// Escape the xml special chars and encode the value in one pass.
+    	void escape(String value) throws IOException {
+    		int len = value.length();
+    		for (int i = 0; i < len; i ++) {
+    			char ch = value.charAt(i);
+    			if (surrogate != 0 && ! Character.isLowSurrogate(ch)) {
+    				// 孤立的高代理项写为'?'，其后的字符仍需转义
+    				surrogate = 0;
+    				put('?');
+    			}
+    			if (ch < 0x80 && surrogate == 0) {
+    				if (count + 6 > bytes.length) {
+    					output.write(bytes, 0, count);
+    					count = 0;
+    				}
+    				byte[] escaped = XML_ESCAPES[ch];
+    				if (escaped == null) {
+    					bytes[count ++] = (byte) ch;
+    				} else {
+    					System.arraycopy(escaped, 0, bytes, count, escaped.length);
+    					count += escaped.length;
+    				}
+    			} else {
+    				encode(ch);
+    			}
+    		}
+    	}
+
+    	public Appendable append(CharSequence value) throws IOException {
+    		if (value == null) {
+    			value = "null";
+    		}
+    		return append(value, 0, value.length());
+    	}
+
+    	public Appendable append(CharSequence value, int start, int end) throws IOException {
+    		for (int i = start; i < end; i ++) {
+    			char ch = value.charAt(i);
+    			if (ch < 0x80 && surrogate == 0) {
+    				if (count == bytes.length) {
+    					output.write(bytes, 0, count);
+    					count = 0;
+    				}
+    				bytes[count ++] = (byte) ch;
+    			} else {
+    				encode(ch);
+    			}
+    		}
+    		return this;
+    	}
+
+    	public Appendable append(char ch) throws IOException {
+    		encode(ch);
+    		return this;
+    	}
+
+    	// Same as String.getBytes(), the malformed and unmappable chars are replaced with '?'.
+    	private void encode(char ch) throws IOException {
+    		if (count + 4 > bytes.length) {
+    			output.write(bytes, 0, count);
+    			count = 0;
+    		}
+    		if (surrogate != 0) {
+    			char high = surrogate;
+    			surrogate = 0;
+    			if (Character.isLowSurrogate(ch)) {
+    				if (utf8) {
+    					int cp = Character.toCodePoint(high, ch);
+    					bytes[count ++] = (byte) (0xF0 | (cp >> 18));
+    					bytes[count ++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+    					bytes[count ++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+    					bytes[count ++] = (byte) (0x80 | (cp & 0x3F));
+    				} else {
+    					bytes[count ++] = '?';
+    				}
+    				return;
+    			}
+    			bytes[count ++] = '?';
+    		}
+    		if (ch < 0x80) {
+    			bytes[count ++] = (byte) ch;
+    		} else if (Character.isHighSurrogate(ch)) {
+    			surrogate = ch;
+    		} else if (! utf8) {
+    			bytes[count ++] = ch < limit ? (byte) ch : (byte) '?';
+    		} else if (ch < 0x800) {
+    			bytes[count ++] = (byte) (0xC0 | (ch >> 6));
+    			bytes[count ++] = (byte) (0x80 | (ch & 0x3F));
+    		} else if (Character.isLowSurrogate(ch)) {
+    			bytes[count ++] = '?';
+    		} else {
+    			bytes[count ++] = (byte) (0xE0 | (ch >> 12));
+    			bytes[count ++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+    			bytes[count ++] = (byte) (0x80 | (ch & 0x3F));
+    		}
+    	}
+
+    	private void put(char ch) throws IOException {
+    		if (count == bytes.length) {
+    			output.write(bytes, 0, count);
+    			count = 0;
+    		}
+    		bytes[count ++] = (byte) ch;
+    	}
+
+    }
+
     protected abstract void doRender(Context context, Map<String, Object> parameters, OutputStream output) throws Exception;
 
 }
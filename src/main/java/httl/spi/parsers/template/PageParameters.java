@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.parsers.template;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * PageParameters. (SPI, Prototype, ThreadUnsafe)
+ * 
+ * Wrap the parameters of a page render, and remember whether the page read any parameter
+ * beyond the declared ones, such as the included templates, macros and evaluate() read the whole context.
+ * Only the pages depending on the declared parameters alone can be cached by their values.
+ * 
+ * @see httl.spi.caches.PageCache
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+final class PageParameters implements Map<String, Object> {
+
+	private final Map<String, Object> parameters;
+
+	private final Set<String> keys;
+
+	private boolean dependent;
+
+	PageParameters(Map<String, Object> parameters, Set<String> keys) {
+		this.parameters = parameters;
+		this.keys = keys;
+	}
+
+	/**
+	 * Is the page read the parameters not in the page key.
+	 */
+	boolean isDependent() {
+		return dependent;
+	}
+
+	private void check(Object key) {
+		if (! keys.contains(key)) {
+			dependent = true;
+		}
+	}
+
+	public Object get(Object key) {
+		check(key);
+		return parameters.get(key);
+	}
+
+	public boolean containsKey(Object key) {
+		check(key);
+		return parameters.containsKey(key);
+	}
+
+	// 整体读取时，无法确定依赖的参数
+	public boolean containsValue(Object value) {
+		dependent = true;
+		return parameters.containsValue(value);
+	}
+
+	public int size() {
+		dependent = true;
+		return parameters.size();
+	}
+
+	public boolean isEmpty() {
+		dependent = true;
+		return parameters.isEmpty();
+	}
+
+	public Set<String> keySet() {
+		dependent = true;
+		return parameters.keySet();
+	}
+
+	public Collection<Object> values() {
+		dependent = true;
+		return parameters.values();
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet() {
+		dependent = true;
+		return parameters.entrySet();
+	}
+
+	public Object put(String key, Object value) {
+		dependent = true;
+		return parameters.put(key, value);
+	}
+
+	public void putAll(Map<? extends String, ? extends Object> map) {
+		dependent = true;
+		parameters.putAll(map);
+	}
+
+	public Object remove(Object key) {
+		dependent = true;
+		return parameters.remove(key);
+	}
+
+	public void clear() {
+		dependent = true;
+		parameters.clear();
+	}
+
+}
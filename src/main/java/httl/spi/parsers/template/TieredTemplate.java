@@ -0,0 +1,192 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.parsers.template;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tiered Template. (SPI, Prototype, ThreadSafe)
+ * 
+ * Render the interpreted template first, and compile the template in background after it is rendered threshold times.
+ * 
+ * @see httl.spi.parsers.AbstractParser#setTemplateCompileThreshold(int)
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TieredTemplate implements Template, Serializable {
+
+	private static final long serialVersionUID = -5526351398743210398L;
+
+	private final Template interpreted;
+
+	private final int threshold;
+
+	private transient final Executor executor;
+
+	private transient final Callable<Template> compiler;
+
+	private transient final Logger logger;
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	// 编译完成前为解释执行的模板，编译完成后替换为编译的模板
+	private volatile Template template;
+
+	/**
+	 * Create the tiered template.
+	 * 
+	 * @param interpreted - the interpreted template
+	 * @param threshold - compile after rendered threshold times
+	 * @param executor - the background compile executor
+	 * @param compiler - compile the template
+	 * @param logger - log the compile failure
+	 */
+	public TieredTemplate(Template interpreted, int threshold, Executor executor, Callable<Template> compiler, Logger logger) {
+		if (interpreted == null)
+			throw new IllegalArgumentException("interpreted template == null");
+		if (executor == null)
+			throw new IllegalArgumentException("executor == null");
+		if (compiler == null)
+			throw new IllegalArgumentException("compiler == null");
+		this.interpreted = interpreted;
+		this.threshold = threshold;
+		this.executor = executor;
+		this.compiler = compiler;
+		this.logger = logger;
+		this.template = interpreted;
+	}
+
+	/**
+	 * Is the template compiled.
+	 * 
+	 * @return compiled
+	 */
+	public boolean isCompiled() {
+		return template != interpreted;
+	}
+
+	// 渲染次数达到阈值时，只提交一次后台编译，编译失败则继续解释执行
+	private Template getRenderTemplate() {
+		Template current = template;
+		if (current == interpreted && count.incrementAndGet() == threshold && executor != null) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							template = compiler.call();
+						} catch (Throwable e) {
+							if (logger != null && logger.isWarnEnabled()) {
+								logger.warn("Failed to compile template " + interpreted.getName() + ", keep interpreting it, cause: " + e.getMessage(), e);
+							}
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) { // 引擎已销毁，继续解释执行
+			}
+		}
+		return current;
+	}
+
+	public String getName() {
+		return template.getName();
+	}
+
+	public String getEncoding() {
+		return template.getEncoding();
+	}
+
+	public long getLastModified() {
+		return template.getLastModified();
+	}
+
+	public long getLength() {
+		return template.getLength();
+	}
+
+	public String getSource() {
+		return template.getSource();
+	}
+
+	public Reader getReader() throws IOException {
+		return template.getReader();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return template.getInputStream();
+	}
+
+	public Engine getEngine() {
+		return template.getEngine();
+	}
+
+	public Class<?> getReturnType() {
+		return template.getReturnType();
+	}
+
+	public Object evaluate(Map<String, Object> parameters) {
+		return getRenderTemplate().evaluate(parameters);
+	}
+
+	public void render(Map<String, Object> parameters, OutputStream output)
+			throws IOException {
+		getRenderTemplate().render(parameters, output);
+	}
+
+	public void render(Map<String, Object> parameters, Writer writer)
+			throws IOException {
+		getRenderTemplate().render(parameters, writer);
+	}
+
+	public Map<String, Class<?>> getParameterTypes() {
+		return template.getParameterTypes();
+	}
+
+	public Map<String, Class<?>> getContextTypes() {
+		return template.getContextTypes();
+	}
+
+	public Map<String, Template> getMacros() {
+		return template.getMacros();
+	}
+
+	public String getCode() {
+		return template.getCode();
+	}
+
+	public int getOffset() {
+		return template.getOffset();
+	}
+
+	public boolean isMacro() {
+		return template.isMacro();
+	}
+
+}
@@ -28,7 +28,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -42,6 +44,23 @@ public abstract class WriterTemplate extends AbstractTemplate {
     
     private static final long serialVersionUID = 7127901461769617745L;
 
+    private static final ThreadLocal<char[]> NUMBER_BUFFER = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[NUMBER_LENGTH];
+		}
+    };
+
+    private static final int MAX_POOL_SIZE = 8;
+
+    // The reusable buffers of evaluate() in the current thread
+    private static final ThreadLocal<List<UnsafeStringWriter>> BUFFER_POOL = new ThreadLocal<List<UnsafeStringWriter>>() {
+		@Override
+		protected List<UnsafeStringWriter> initialValue() {
+			return new ArrayList<UnsafeStringWriter>(MAX_POOL_SIZE);
+		}
+    };
+
     public WriterTemplate(Engine engine, Filter filter, 
     		Formatter<?> formatter, Map<Class<?>, Object> functions,
     		Map<String, Template> importMacros){
@@ -53,13 +72,27 @@ public abstract class WriterTemplate extends AbstractTemplate {
     }
 
     public Object evaluate(Map<String, Object> parameters) {
-        UnsafeStringWriter output = new UnsafeStringWriter();
+        List<UnsafeStringWriter> pool = BUFFER_POOL.get();
+        UnsafeStringWriter output;
+        if (pool.isEmpty()) {
+            output = new UnsafeStringWriter(getBufferSize());
+        } else { // 嵌套的evaluate()使用池中的下一个缓冲区
+            output = pool.remove(pool.size() - 1);
+            output.getBuffer().ensureCapacity(getBufferSize());
+        }
+        StringBuilder buffer = output.getBuffer();
         try {
             render(parameters, output);
+            learnBufferSize(buffer.length());
+            return buffer.toString();
         } catch (IOException e) {
             throw new IllegalStateException(e);
+        } finally {
+            if (buffer.length() <= MAX_BUFFER_SIZE && pool.size() < MAX_POOL_SIZE) {
+                buffer.setLength(0);
+                pool.add(output);
+            }
         }
-        return output.toString();
     }
 
     public void render(Map<String, Object> parameters, OutputStream output) throws IOException {
@@ -71,6 +104,30 @@ public abstract class WriterTemplate extends AbstractTemplate {
          	throw new IllegalArgumentException("writer == null");
     	if (parameters == null)
     		parameters = new HashMap<String, Object>();
+    	Object[] page = getPageValues(parameters);
+    	if (page == null) {
+    		renderContext(parameters, writer);
+    		return;
+    	}
+    	char[] value = (char[]) getPage(page);
+    	if (value != null) {
+    		writer.write(value); // 整页命中，跳过渲染
+    		return;
+    	}
+    	FragmentWriter buffer = new FragmentWriter(writer);
+    	try {
+    		PageParameters pageParameters = new PageParameters(parameters, getParameterTypes().keySet());
+    		renderContext(pageParameters, buffer);
+    		buffer.value = buffer.toChars();
+    		if (! pageParameters.isDependent()) { // 读取了声明以外的参数，如包含的模板，不能按声明的参数缓存
+    			putPage(page, buffer.value);
+    		}
+    	} finally {
+    		endFragment(buffer);
+    	}
+    }
+
+    private void renderContext(Map<String, Object> parameters, Writer writer) throws IOException {
     	Context context = Context.pushContext(this, parameters, writer);
         try {
             doRender(context, parameters, writer);
@@ -85,6 +142,224 @@ public abstract class WriterTemplate extends AbstractTemplate {
         }
     }
 
+    /**
+     * Write the cached fragment of the #cache block.
+     * 
+     * @param output - writer
+     * @param fragment - fragment id
+     * @param key - fragment key
+     * @return true if the fragment is cached and written
+     * @throws IOException - If an I/O error occurs
+     */
+    protected boolean writeFragment(Writer output, String fragment, Object key) throws IOException {
+    	char[] value = (char[]) getFragment(fragment, key);
+    	if (value == null) {
+    		return false;
+    	}
+    	output.write(value);
+    	return true;
+    }
+
+    protected Writer beginFragment(Writer output) {
+    	return new FragmentWriter(output);
+    }
+
+    protected void cacheFragment(Writer output, String fragment, Object key, long ttl) {
+    	FragmentWriter writer = (FragmentWriter) output;
+    	writer.value = writer.toChars();
+    	putFragment(fragment, key, writer.value, ttl);
+    }
+
+    // 渲染中断时，如breakif，也写出已渲染的内容，但不缓存
+    protected Writer endFragment(Writer output) throws IOException {
+    	FragmentWriter writer = (FragmentWriter) output;
+    	if (writer.value != null) {
+    		writer.output.write(writer.value);
+    	} else {
+    		writer.output.append(writer.getBuffer());
+    	}
+    	return writer.output;
+    }
+
+    private static final class FragmentWriter extends UnsafeStringWriter {
+
+    	final Writer output;
+
+    	char[] value;
+
+    	FragmentWriter(Writer output) {
+    		this.output = output;
+    	}
+
+    	char[] toChars() {
+    		StringBuilder buffer = getBuffer();
+    		char[] chars = new char[buffer.length()];
+    		buffer.getChars(0, chars.length, chars, 0);
+    		return chars;
+    	}
+
+    }
+
+    /**
+     * Write the value to the output without intermediate string.
+     * 
+     * @param output - writer
+     * @param value - value
+     * @param filtered - filter the value
+     * @throws IOException - If an I/O error occurs
+     */
+    protected void write(Writer output, boolean value, boolean filtered) throws IOException {
+    	String text = getText(value, filtered);
+    	if (text == null) {
+    		writeText(output, format(value), filtered);
+    	} else {
+    		output.write(text);
+    	}
+    }
+
+    // Filter the string straight into the writer, without the filtered copy.
+    protected void write(Writer output, String value, boolean filtered) throws IOException {
+    	if (filtered) {
+    		filter(value, output);
+    	} else if (value != null) {
+    		output.write(value);
+    	}
+    }
+
+    protected void write(Writer output, char value, boolean filtered) throws IOException {
+    	String text = getText(value, filtered);
+    	if (text == null) {
+    		writeText(output, format(value), filtered);
+    	} else {
+    		output.write(text);
+    	}
+    }
+
+    protected void write(Writer output, byte value, boolean filtered) throws IOException {
+    	if (isByteAsInt()) {
+    		write(output, (int) value, filtered);
+    	} else {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, short value, boolean filtered) throws IOException {
+    	if (isShortAsInt()) {
+    		write(output, (int) value, filtered);
+    	} else {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, int value, boolean filtered) throws IOException {
+    	char[] buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, long value, boolean filtered) throws IOException {
+    	char[] buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, float value, boolean filtered) throws IOException {
+    	char[] buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, double value, boolean filtered) throws IOException {
+    	char[] buf = NUMBER_BUFFER.get();
+    	if (! writeNumber(output, buf, format(value, filtered, buf))) {
+    		writeText(output, format(value), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Boolean value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.booleanValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Character value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.charValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Byte value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.byteValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Short value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.shortValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Integer value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.intValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Long value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.longValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Float value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.floatValue(), filtered);
+    	}
+    }
+
+    protected void write(Writer output, Double value, boolean filtered) throws IOException {
+    	if (value == null) {
+    		writeNull(output, filtered);
+    	} else {
+    		write(output, value.doubleValue(), filtered);
+    	}
+    }
+
+    // The number formatted into the buffer, or false if required format(value).
+    private static boolean writeNumber(Writer output, char[] buf, int begin) throws IOException {
+    	if (begin < 0) {
+    		return false;
+    	}
+    	output.write(buf, begin, buf.length - begin);
+    	return true;
+    }
+
+    private void writeNull(Writer output, boolean filtered) throws IOException {
+    	writeText(output, format((Object) null), filtered);
+    }
+
+    private void writeText(Writer output, String text, boolean filtered) throws IOException {
+    	output.write(filtered ? filter(text) : text);
+    }
+
     protected abstract void doRender(Context context, Map<String, Object> parameters, Writer output) throws Exception;
 
 }
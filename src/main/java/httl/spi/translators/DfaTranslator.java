@@ -53,6 +53,8 @@ public class DfaTranslator implements Translator {
 
     private final List<StringSequence> sequences = new CopyOnWriteArrayList<StringSequence>();
 
+    private int expressionCompileThreshold;
+
     /**
      * httl.properties: engine=httl.spi.engines.DefaultEngine
      */
@@ -74,6 +76,13 @@ public class DfaTranslator implements Translator {
     	this.importPackages = importPackages;
     }
 
+    /**
+     * httl.properties: expression.compile.threshold=1000
+     */
+    public void setExpressionCompileThreshold(int expressionCompileThreshold) {
+    	this.expressionCompileThreshold = expressionCompileThreshold;
+    }
+
     public void setImportMethods(Object[] importMethods) {
     	for (Object function : importMethods) {
     		if (function instanceof Class) {
@@ -107,7 +116,7 @@ public class DfaTranslator implements Translator {
 	public Expression translate(String source, Map<String, Class<?>> parameterTypes, int offset) throws ParseException {
 	    source = StringUtils.unescapeHtml(source);
 	    Node node = new DfaParser(this, parameterTypes, functions.keySet(), sequences, importPackages, offset).parse(source);
-        return new ExpressionImpl(source, parameterTypes, offset, node, node.getCode(), node.getReturnType(), engine, compiler, importPackages, functions);
+        return new ExpressionImpl(source, parameterTypes, offset, node, node.getCode(), node.getReturnType(), engine, compiler, importPackages, functions, expressionCompileThreshold);
 	}
 
 }
@@ -438,7 +438,7 @@ public final class BinaryOperator extends Operator {
             } else if (leftType == char.class || leftType == Character.class) {
                 return CharacterSequence.class;
             } else if (leftType == String.class) {
-                return StringSequence.class;
+                return String[].class; // 字符串序列生成的是数组字面量
             } else {
                 throw new ParseException("The operator \"..\" unsupported parameter type " + leftType, getOffset());
             }
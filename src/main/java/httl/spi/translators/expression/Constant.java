@@ -17,6 +17,7 @@
 package httl.spi.translators.expression;
 
 import java.text.ParseException;
+import java.util.Map;
 
 
 /**
@@ -36,6 +37,9 @@ public final class Constant extends Node {
 
     public static final Constant FALSE = new Constant(false, boolean.class, "false");
     
+    // 生成参数化的表达式类时，提升为字段的常量
+    private static final ThreadLocal<Map<Constant, String>> LIFTED_FIELDS = new ThreadLocal<Map<Constant, String>>();
+
     private final Object value;
 
     private final Class<?> type;
@@ -58,9 +62,32 @@ public final class Constant extends Node {
     }
 
     public String getCode() throws ParseException {
+        Map<Constant, String> fields = LIFTED_FIELDS.get();
+        if (fields != null) {
+            String field = fields.get(this);
+            if (field != null) {
+                return field;
+            }
+        }
         return literal;
     }
 
+    /**
+     * Get the code of the node, with the lifted constants replaced by the fields.
+     * 
+     * @param node - expression node
+     * @param fields - the lifted constant to field name, must be an IdentityHashMap
+     * @return code
+     */
+    static String getLiftedCode(Node node, Map<Constant, String> fields) throws ParseException {
+        LIFTED_FIELDS.set(fields);
+        try {
+            return node.getCode();
+        } finally {
+            LIFTED_FIELDS.remove();
+        }
+    }
+
     @Override
     public String toString() {
         return literal;
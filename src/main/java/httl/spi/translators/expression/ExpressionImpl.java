@@ -24,10 +24,15 @@ import httl.util.MD5;
 
 import java.io.Serializable;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ExpressionImpl. (SPI, Prototype, ThreadSafe)
@@ -60,11 +65,22 @@ public class ExpressionImpl implements Expression, Serializable {
 
     private final Map<Class<?>, Object> functions;
 
-    private volatile String md5;
-    
+    private final int compileThreshold;
+
+    private final AtomicInteger evaluateCount = new AtomicInteger();
+
     private volatile Evaluator evaluator;
     
     public ExpressionImpl(String source, Map<String, Class<?>> parameterTypes, int offset, Node node, String code, Class<?> returnType, Engine engine, Compiler compiler, String[] importPackages, Map<Class<?>, Object> functions){
+        this(source, parameterTypes, offset, node, code, returnType, engine, compiler, importPackages, functions, 0);
+    }
+
+    /**
+     * Create the expression.
+     * 
+     * @param compileThreshold - interpret the expression until it is evaluated threshold times, 0 to compile on first evaluation
+     */
+    public ExpressionImpl(String source, Map<String, Class<?>> parameterTypes, int offset, Node node, String code, Class<?> returnType, Engine engine, Compiler compiler, String[] importPackages, Map<Class<?>, Object> functions, int compileThreshold){
         this.engine = engine;
         this.compiler = compiler;
         this.source = source;
@@ -76,6 +92,7 @@ public class ExpressionImpl implements Expression, Serializable {
         this.importPackages = importPackages;
         this.importPackageSet = new HashSet<String>(Arrays.asList(importPackages));
         this.functions = functions;
+        this.compileThreshold = compileThreshold;
     }
 
     public Node getNode() {
@@ -86,14 +103,30 @@ public class ExpressionImpl implements Expression, Serializable {
     	if (evaluator == null) {
     		synchronized (this) {
     			if (evaluator == null) { // double check
-    				evaluator = newEvaluator(); // lazy compile
+    				evaluator = compileThreshold > 0 ? newInterpreter() : newEvaluator(); // lazy compile
     			}
 			}
     	}
-        return evaluator.evaluate(parameters);
+    	Evaluator current = evaluator;
+    	// 解释执行的次数达到阈值时，由达到阈值的线程编译，其它线程继续解释执行
+    	if (current instanceof Interpreter && evaluateCount.incrementAndGet() == compileThreshold) {
+    		Evaluator compiled = newEvaluator();
+    		evaluator = compiled;
+    		current = compiled;
+    	}
+        return current.evaluate(parameters);
+    }
+
+    // 不能准确解释的表达式直接编译
+    private Evaluator newInterpreter() {
+    	try {
+    		return new Interpreter(node, functions);
+    	} catch (ParseException e) {
+    		return newEvaluator();
+    	}
     }
     
-    private Class<?> newEvaluatorClass(String className) {
+    private String getEvaluatorCode(String className, String code, List<Constant> constants) throws ParseException {
     	StringBuilder imports = new StringBuilder();
         String[] packages = importPackages;
         if (packages != null && packages.length > 0) {
@@ -104,9 +137,13 @@ public class ExpressionImpl implements Expression, Serializable {
             }
         }
         StringBuilder declare = new StringBuilder();
-        for (Map.Entry<String, Class<?>> entry : parameterTypes.entrySet()) {
+        // 按名称排序，相同参数类型的表达式生成相同的代码
+        for (Map.Entry<String, Class<?>> entry : new TreeMap<String, Class<?>>(parameterTypes).entrySet()) {
         	String var = entry.getKey();
             Class<?> type = entry.getValue();
+            if (var.indexOf(':') >= 0) { // 泛型类型，如：list:0
+            	continue;
+            }
             String pkgName = type.getPackage() == null ? null : type.getPackage().getName();
             String typeName;
             if (pkgName != null && ("java.lang".equals(pkgName) 
@@ -115,7 +152,7 @@ public class ExpressionImpl implements Expression, Serializable {
             } else {
                 typeName = type.getCanonicalName();
             }
-            declare.append(typeName + " " + var + " = " + ClassUtils.getInitCode(type) + ";\n");
+            declare.append(typeName + " " + var + " = " + getParameterCode(var, type, typeName) + ";\n");
         }
         StringBuilder funtionFileds = new StringBuilder();
         StringBuilder functionInits = new StringBuilder();
@@ -146,43 +183,128 @@ public class ExpressionImpl implements Expression, Serializable {
         	functionInits.append(typeName);
         	functionInits.append(".class);\n");
         }
-        String sourceCode = "package " + Evaluator.class.getPackage().getName() + ";\n" 
+        StringBuilder constantFields = new StringBuilder();
+        StringBuilder constantInits = new StringBuilder();
+        for (int i = 0; i < constants.size(); i ++) {
+        	Class<?> type = constants.get(i).getReturnType();
+        	String typeName = type.isPrimitive() ? type.getName() : type.getSimpleName();
+        	constantFields.append("private final " + typeName + " " + getConstantField(i) + ";\n");
+        	String value = "constants[" + i + "]";
+        	if (type.isPrimitive()) {
+        		value = ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(type).getSimpleName() + ") " + value + ")";
+        	} else {
+        		value = "(" + typeName + ") " + value;
+        	}
+        	constantInits.append("this." + getConstantField(i) + " = " + value + ";\n");
+        }
+        return "package " + Evaluator.class.getPackage().getName() + ";\n" 
                 + imports.toString()
                 + "public class " + className + " implements " + Evaluator.class.getName() + " {\n" 
                 + funtionFileds
-                + "public " + className + "(Map functions) {\n"
+                + constantFields
+                + "public " + className + "(Map functions, Object[] constants) {\n"
                 + functionInits
+                + constantInits
                 + "}\n"
                 + "public " + Object.class.getSimpleName() + " evaluate(" + Map.class.getName() + " parameters) {\n"
                 + declare.toString()
-                + "return " + ClassUtils.class.getName() + ".boxed(" + getCode() + ");\n"
+                + "return " + ClassUtils.class.getName() + ".boxed(" + code + ");\n"
                 + "}\n"
                 + "}\n";
-        try {
-        	return compiler.compile(sourceCode);
-        } catch (ParseException e) {
-        	throw new IllegalStateException("Failed to create expression class. class: " + className + ", code: \n" + sourceCode + ", offset: " + getOffset() + ", cause:" + ClassUtils.toString(e));
-        }
     }
 
+    private static String getConstantField(int index) {
+    	return "$C" + index;
+    }
+
+    // 基本类型参数为null时取默认值，与Interpreter一致
+    private static String getParameterCode(String var, Class<?> type, String typeName) {
+    	String value = "parameters.get(\"" + var + "\")";
+    	if (type.isPrimitive()) {
+    		return ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(type).getSimpleName() + ") " + value + ")";
+    	}
+    	return "(" + typeName + ") " + value;
+    }
+
+    // 常量提升为构造参数，类名取自代码的MD5，只有常量或空白不同的表达式共享同一个类
     private Evaluator newEvaluator() {
-    	if (md5 == null) {
-    		md5 = MD5.getMD5(source);
+    	List<Constant> constants = new ArrayList<Constant>();
+    	String liftedCode;
+    	try {
+    		liftedCode = getLiftedCode(constants);
+    	} catch (ParseException e) {
+    		constants.clear();
+    		liftedCode = code;
     	}
-    	String className = (Evaluator.class.getSimpleName() + "_" + md5);
+    	String className = null;
+    	String sourceCode = null;
     	Class<?> cls;
     	try {
-    		cls = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
-    	} catch (ClassNotFoundException e) {
-    		cls = newEvaluatorClass(className);
+    		className = Evaluator.class.getSimpleName() + "_" + MD5.getMD5(getEvaluatorCode(Evaluator.class.getSimpleName(), liftedCode, constants));
+    		sourceCode = getEvaluatorCode(className, liftedCode, constants);
+    		cls = compiler.compile(sourceCode);
+    	} catch (ParseException e) {
+    		throw new IllegalStateException("Failed to create expression class. class: " + className + ", code: \n" + sourceCode + ", offset: " + getOffset() + ", cause:" + ClassUtils.toString(e));
+    	}
+    	Object[] values = new Object[constants.size()];
+    	for (int i = 0; i < values.length; i ++) {
+    		values[i] = constants.get(i).getValue();
     	}
         try {
-            return (Evaluator) cls.getConstructor(Map.class).newInstance(functions);
+            return (Evaluator) cls.getConstructor(Map.class, Object[].class).newInstance(functions, values);
         } catch (Exception e) {
             throw new IllegalStateException("Failed to create expression instance. class: " + className + ", offset: " + getOffset() + ", cause:" + ClassUtils.toString(e));
         }
     }
 
+    private String getLiftedCode(List<Constant> constants) throws ParseException {
+    	liftConstants(node, true, constants);
+    	Map<Constant, String> fields = new IdentityHashMap<Constant, String>();
+    	for (int i = 0; i < constants.size(); i ++) {
+    		fields.put(constants.get(i), getConstantField(i));
+    	}
+    	return Constant.getLiftedCode(node, fields);
+    }
+
+    // 代码生成时检查字面量的常量，以及可能被javac按常量窄化类型的常量，保留字面量
+    private static void liftConstants(Node node, boolean liftable, List<Constant> constants) throws ParseException {
+    	if (node instanceof Constant) {
+    		if (liftable && isLiftable((Constant) node)) {
+    			constants.add((Constant) node);
+    		}
+    	} else if (node instanceof BinaryOperator) {
+    		BinaryOperator operator = (BinaryOperator) node;
+    		String name = operator.getName();
+    		boolean sequence = "..".equals(name);
+    		liftConstants(operator.getLeftParameter(), ! sequence && ! isBranch(name, operator.getLeftParameter()), constants);
+    		liftConstants(operator.getRightParameter(), ! sequence && ! ".to".equals(name) && ! isBranch(name, operator.getRightParameter()), constants);
+    	} else if (node instanceof UnaryOperator) {
+    		liftConstants(((UnaryOperator) node).getParameter(), true, constants);
+    	}
+    }
+
+    // byte和short常量的字面量为int类型，含转义字符的字面量由javac解析，都保留字面量
+    private static boolean isLiftable(Constant constant) throws ParseException {
+    	Class<?> type = constant.getReturnType();
+    	Object value = constant.getValue();
+    	if (value == null) {
+    		return false;
+    	}
+    	if (type == int.class || type == long.class || type == float.class || type == double.class) {
+    		return true;
+    	}
+    	if (type == char.class || type == String.class) {
+    		String literal = String.valueOf(value);
+    		return literal.indexOf('\\') < 0 && literal.indexOf('"') < 0 && literal.indexOf('\'') < 0;
+    	}
+    	return false;
+    }
+
+    // 三元表达式的int常量分支，javac可能窄化为byte, short或char类型
+    private static boolean isBranch(String name, Node parameter) throws ParseException {
+    	return ":".equals(name) && parameter instanceof Constant && parameter.getReturnType() == int.class;
+    }
+
     public String getSource() {
         return source;
     }
@@ -0,0 +1,1092 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.spi.translators.expression;
+
+import httl.Expression;
+import httl.spi.methods.DefaultMethod;
+import httl.spi.sequences.CharacterSequence;
+import httl.spi.sequences.IntegerSequence;
+import httl.util.ClassUtils;
+import httl.util.CollectionUtils;
+import httl.util.MapEntry;
+import httl.util.StringUtils;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreter. (SPI, Prototype, ThreadSafe)
+ *
+ * Evaluate the expression by walking the syntax tree, without compiling a class.
+ * The semantics are the same as the code generated by Node.getCode(),
+ * the expression which can not be interpreted exactly is rejected with ParseException.
+ *
+ * @see httl.spi.translators.expression.Node#getCode()
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class Interpreter implements Evaluator {
+
+	private final Node node;
+
+	private final Map<Class<?>, Object> functions;
+
+	private final Evaluator evaluator;
+
+	private final Condition condition;
+
+	public Interpreter(Node node, Map<Class<?>, Object> functions) throws ParseException {
+		this.node = node;
+		this.functions = functions;
+		this.evaluator = build(node);
+		Class<?> type = node.getReturnType();
+		this.condition = type == null ? null : new Condition(type);
+	}
+
+	public Object evaluate(Map<String, Object> parameters) {
+		return evaluator.evaluate(parameters);
+	}
+
+	/**
+	 * Evaluate the expression as condition, the same as StringUtils.getConditionCode().
+	 *
+	 * @param parameters - variables
+	 * @return true - if the value is not empty
+	 */
+	public boolean evaluateCondition(Map<String, Object> parameters) {
+		if (condition == null) {
+			throw new IllegalStateException("The expression " + node + " is not a condition.");
+		}
+		return condition.isTrue(evaluator.evaluate(parameters));
+	}
+
+	private Evaluator build(Node node) throws ParseException {
+		if (node instanceof Constant) {
+			return buildConstant((Constant) node);
+		} else if (node instanceof Variable) {
+			return buildVariable((Variable) node);
+		} else if (node instanceof BinaryOperator) {
+			return buildBinary((BinaryOperator) node);
+		} else if (node instanceof UnaryOperator) {
+			return buildUnary((UnaryOperator) node);
+		}
+		throw unsupported(node);
+	}
+
+	private Evaluator buildConstant(Constant constant) throws ParseException {
+		final Object value = constant.getValue();
+		if (constant == Constant.EMPTY
+				|| (value instanceof String && ((String) value).indexOf('\\') >= 0)) { // 转义字符由javac解析
+			throw unsupported(constant);
+		}
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				return value;
+			}
+		};
+	}
+
+	private Evaluator buildVariable(Variable variable) throws ParseException {
+		final String name = variable.getName();
+		final Object defaultValue = getDefaultValue(variable.getReturnType());
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				Object value = parameters.get(name);
+				return value == null ? defaultValue : value;
+			}
+		};
+	}
+
+	private Evaluator buildBinary(final BinaryOperator operator) throws ParseException {
+		String name = operator.getName();
+		final Node leftParameter = operator.getLeftParameter();
+		final Node rightParameter = operator.getRightParameter();
+		Class<?> leftType = leftParameter.getReturnType();
+		Class<?> rightType = rightParameter.getReturnType();
+		Map<String, Class<?>> types = operator.getParameterTypes();
+		if (StringUtils.isFunction(name)) {
+			name = name.substring(1);
+			if ("to".equals(name)
+					&& rightParameter instanceof Constant
+					&& rightType == String.class
+					&& ((Constant) rightParameter).getValue() != null) {
+				return buildCast(operator, leftParameter, ClassUtils.forName(operator.getPackages(), (String) ((Constant) rightParameter).getValue()));
+			} else if ("class".equals(name)) {
+				if (leftType == null) {
+					throw unsupported(operator);
+				}
+				if (leftType.isPrimitive()) {
+					final Class<?> type = leftType;
+					return new Evaluator() {
+						public Object evaluate(Map<String, Object> parameters) {
+							return type;
+						}
+					};
+				}
+				return new BinaryEvaluator(operator, build(leftParameter), null) {
+					protected Object evaluate(Object left, Map<String, Object> parameters) {
+						return left.getClass();
+					}
+				};
+			}
+			if (leftType == null) {
+				throw unsupported(operator);
+			}
+			String var = Node.getGenericVariableName(leftParameter);
+			if (Map.Entry.class.isAssignableFrom(leftType)
+					&& ("key".equals(name) || "value".equals(name))
+					&& var != null
+					&& types.get(var + ("key".equals(name) ? ":0" : ":1")) != null) {
+				final boolean key = "key".equals(name);
+				return new BinaryEvaluator(operator, build(leftParameter), null) {
+					protected Object evaluate(Object left, Map<String, Object> parameters) {
+						return key ? ((Map.Entry<?, ?>) left).getKey() : ((Map.Entry<?, ?>) left).getValue();
+					}
+				};
+			}
+			if ("get".equals(name) && var != null
+					&& (Map.class.isAssignableFrom(leftType) && String.class.equals(rightType) && types.get(var + ":1") != null
+						|| List.class.isAssignableFrom(leftType) && int.class.equals(rightType) && types.get(var + ":0") != null)) {
+				final boolean map = Map.class.isAssignableFrom(leftType);
+				return new BinaryEvaluator(operator, build(leftParameter), build(rightParameter)) {
+					protected Object evaluate(Object left, Map<String, Object> parameters) {
+						Object right = getRight().evaluate(parameters);
+						return map ? ((Map<?, ?>) left).get(right) : ((List<?>) left).get(toNumber(right).intValue());
+					}
+				};
+			}
+			List<Node> arguments = getArguments(rightParameter);
+			Class<?>[] rightTypes = rightParameter.getReturnTypes();
+			if (rightTypes.length != arguments.size()) {
+				throw unsupported(operator);
+			}
+			Collection<Class<?>> functionTypes = operator.getFunctions();
+			if (functionTypes != null && functionTypes.size() > 0) {
+				Class<?>[] allTypes = new Class<?>[rightTypes.length + 1];
+				allTypes[0] = leftType;
+				System.arraycopy(rightTypes, 0, allTypes, 1, rightTypes.length);
+				for (Class<?> function : functionTypes) {
+					try {
+						Method method = ClassUtils.searchMethod(function, name, allTypes);
+						if (! Object.class.equals(method.getDeclaringClass())) {
+							List<Node> all = new ArrayList<Node>(arguments.size() + 1);
+							all.add(leftParameter);
+							all.addAll(arguments);
+							return buildInvoke(operator, getMethod(function, method, allTypes), getFunction(function, method), all);
+						}
+					} catch (NoSuchMethodException e) {
+					}
+				}
+			}
+			if (leftType.isPrimitive()) {
+				throw unsupported(operator);
+			}
+			Method method;
+			try {
+				method = getMethod(leftType, ClassUtils.searchMethod(leftType, name, rightTypes), rightTypes);
+			} catch (NoSuchMethodException e) {
+				if (rightTypes.length > 0) {
+					throw unsupported(operator);
+				}
+				method = getGetter(leftType, name);
+				if (method == null) {
+					if (! Map.class.isAssignableFrom(leftType)) { // 公有字段生成的代码不可编译
+						throw unsupported(operator);
+					}
+					final String key = name;
+					return new BinaryEvaluator(operator, build(leftParameter), null) {
+						protected Object evaluate(Object left, Map<String, Object> parameters) {
+							return ((Map<?, ?>) left).get(key);
+						}
+					};
+				}
+			}
+			final Method invoked = method;
+			final Evaluator[] evaluators = build(arguments);
+			return new BinaryEvaluator(operator, build(leftParameter), null) {
+				protected Object evaluate(Object left, Map<String, Object> parameters) {
+					return invoke(invoked, left, Interpreter.evaluate(evaluators, parameters));
+				}
+			};
+		} else if ("[".equals(name)) {
+			if (leftType == null) {
+				throw unsupported(operator);
+			}
+			if (Map.class.isAssignableFrom(leftType)) {
+				return new BinaryEvaluator(operator, build(leftParameter), build(rightParameter)) {
+					protected Object evaluate(Object left, Map<String, Object> parameters) {
+						return ((Map<?, ?>) left).get(getRight().evaluate(parameters));
+					}
+				};
+			} else if (List.class.isAssignableFrom(leftType) || leftType.isArray()) {
+				if (IntegerSequence.class.equals(rightType) || int[].class == rightType) {
+					Class<?>[] argumentTypes = new Class<?>[] { leftType, rightType };
+					Method method = getMethod(ClassUtils.class, List.class.isAssignableFrom(leftType) ? "subList" : "subArray", argumentTypes);
+					return buildInvoke(operator, method, null, Arrays.asList(new Node[] { leftParameter, rightParameter }));
+				} else if (int.class.equals(rightType)) {
+					final boolean list = List.class.isAssignableFrom(leftType);
+					return new BinaryEvaluator(operator, build(leftParameter), build(rightParameter)) {
+						protected Object evaluate(Object left, Map<String, Object> parameters) {
+							int index = toNumber(getRight().evaluate(parameters)).intValue();
+							return list ? ((List<?>) left).get(index) : Array.get(left, index);
+						}
+					};
+				}
+			}
+			throw unsupported(operator);
+		} else if ("..".equals(name)) {
+			if (leftType == int.class || leftType == Integer.class
+					|| leftType == short.class  || leftType == Short.class
+					|| leftType == long.class || leftType == Long.class) {
+				return buildNew(operator, IntegerSequence.class, Arrays.asList(new Node[] { leftParameter, rightParameter }));
+			} else if (leftType == char.class || leftType == Character.class) {
+				return buildNew(operator, CharacterSequence.class, Arrays.asList(new Node[] { leftParameter, rightParameter }));
+			}
+			throw unsupported(operator);
+		} else if (("==".equals(name) || "!=".equals(name))
+				&& leftParameter != Constant.NULL && rightParameter != Constant.NULL
+				&& leftType != null && rightType != null
+				&& ! leftType.isPrimitive() && ! rightType.isPrimitive()) {
+			final boolean equals = "==".equals(name);
+			return new BinaryEvaluator(operator, build(leftParameter), build(rightParameter)) {
+				protected Object evaluate(Object left, Map<String, Object> parameters) {
+					return Boolean.valueOf(left.equals(getRight().evaluate(parameters)) == equals);
+				}
+			};
+		} else if ("&&".equals(name) || "||".equals(name)) {
+			if (leftType == null || rightType == null) {
+				throw unsupported(operator);
+			}
+			final boolean and = "&&".equals(name);
+			final Evaluator left = build(leftParameter);
+			final Evaluator right = build(rightParameter);
+			final Condition leftCondition = new Condition(leftType);
+			final Condition rightCondition = new Condition(rightType);
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					boolean value = leftCondition.isTrue(left.evaluate(parameters));
+					if (value == and) {
+						value = rightCondition.isTrue(right.evaluate(parameters));
+					}
+					return Boolean.valueOf(value);
+				}
+			};
+		} else if ("?".equals(name)) {
+			throw unsupported(operator); // 只能作为":"的左参数
+		} else if ("|".equals(name)
+				&& leftType != null
+				&& ! leftType.isPrimitive()
+				&& ! Number.class.isAssignableFrom(leftType)
+				&& ! Boolean.class.isAssignableFrom(leftType)) {
+			final Evaluator left = build(leftParameter);
+			final Evaluator right = build(rightParameter);
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					Object value = left.evaluate(parameters);
+					return ClassUtils.isNotEmpty(value) ? value : right.evaluate(parameters);
+				}
+			};
+		} else if (":".equals(name)) {
+			if (leftParameter instanceof BinaryOperator
+					&& "?".equals(((BinaryOperator) leftParameter).getName())) {
+				return buildTernary((BinaryOperator) leftParameter, rightParameter);
+			}
+			final Evaluator left = build(leftParameter);
+			final Evaluator right = build(rightParameter);
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					return new MapEntry<Object, Object>(left.evaluate(parameters), right.evaluate(parameters));
+				}
+			};
+		}
+		if ("lt".equals(name)) {
+			name = "<";
+		} else if ("le".equals(name)) {
+			name = "<=";
+		} else if ("gt".equals(name)) {
+			name = ">";
+		} else if ("ge".equals(name)) {
+			name = ">=";
+		}
+		final String oper = name;
+		if (leftType != null && Comparable.class.isAssignableFrom(leftType)
+				&& (">".equals(name) || ">=".equals(name) || "<".equals(name) || "<=".equals(name))) {
+			return new BinaryEvaluator(operator, build(leftParameter), build(rightParameter)) {
+				@SuppressWarnings("unchecked")
+				protected Object evaluate(Object left, Map<String, Object> parameters) {
+					return Boolean.valueOf(compare(oper, ((Comparable<Object>) left).compareTo(getRight().evaluate(parameters)), 0));
+				}
+			};
+		}
+		if (leftType == null || rightType == null) {
+			if (("==".equals(name) || "!=".equals(name))
+					&& (leftParameter == Constant.NULL || rightParameter == Constant.NULL)) {
+				final boolean equals = "==".equals(name);
+				final Evaluator left = build(leftParameter);
+				final Evaluator right = build(rightParameter);
+				return new Evaluator() {
+					public Object evaluate(Map<String, Object> parameters) {
+						return Boolean.valueOf((left.evaluate(parameters) == right.evaluate(parameters)) == equals);
+					}
+				};
+			}
+			throw unsupported(operator);
+		}
+		if ("+".equals(name)) {
+			if ((Collection.class.isAssignableFrom(leftType) || leftType.isArray())
+						&& (Collection.class.isAssignableFrom(rightType) || rightType.isArray())
+					|| Map.class.isAssignableFrom(leftType) && Map.class.isAssignableFrom(rightType)) {
+				Method method = getMethod(CollectionUtils.class, "merge", new Class<?>[] { leftType, rightType });
+				return buildInvoke(operator, method, null, Arrays.asList(new Node[] { leftParameter, rightParameter }));
+			}
+			Class<?> type;
+			if (rightType.isPrimitive() && rightType != boolean.class) {
+				type = rightType;
+			} else if (leftType.isPrimitive() && leftType != boolean.class) {
+				type = leftType;
+			} else {
+				type = String.class;
+			}
+			if (type == String.class) {
+				if (leftType != String.class && rightType != String.class) {
+					throw unsupported(operator);
+				}
+				final Evaluator left = build(leftParameter);
+				final Evaluator right = build(rightParameter);
+				return new Evaluator() {
+					public Object evaluate(Map<String, Object> parameters) {
+						return String.valueOf(left.evaluate(parameters)) + String.valueOf(right.evaluate(parameters));
+					}
+				};
+			}
+			return buildArithmetic(operator, name, type, leftParameter, rightParameter);
+		} else if ("%".equals(name)) {
+			Class<?> type;
+			if (rightType.isPrimitive() && rightType != boolean.class) {
+				type = rightType;
+			} else if (leftType.isPrimitive() && leftType != boolean.class) {
+				type = leftType;
+			} else {
+				type = int.class;
+			}
+			return buildArithmetic(operator, name, type, leftParameter, rightParameter);
+		}
+		return buildPrimitive(operator, name, leftParameter, rightParameter);
+	}
+
+	// 与BinaryOperator生成的代码相同，非基本类型的参数先用DefaultMethod.toXxx()转换
+	private Evaluator buildArithmetic(BinaryOperator operator, String name, Class<?> type, Node leftParameter, Node rightParameter) throws ParseException {
+		Class<?> leftType = leftParameter.getReturnType();
+		Class<?> rightType = rightParameter.getReturnType();
+		String typeName = type.getCanonicalName();
+		typeName = "to" + typeName.substring(0, 1).toUpperCase() + typeName.substring(1);
+		Evaluator left = build(leftParameter);
+		Evaluator right = build(rightParameter);
+		if (! (leftType.isPrimitive() && leftType != boolean.class)) {
+			left = buildConvert(operator, left, getMethod(DefaultMethod.class, typeName, new Class<?>[] { leftType }));
+			leftType = type;
+		}
+		if (! (rightType.isPrimitive() && leftParameter.getReturnType() != boolean.class)) {
+			right = buildConvert(operator, right, getMethod(DefaultMethod.class, typeName, new Class<?>[] { rightType }));
+			rightType = type;
+		}
+		return buildOperation(operator, name, leftType, rightType, left, right);
+	}
+
+	private Evaluator buildPrimitive(BinaryOperator operator, String name, Node leftParameter, Node rightParameter) throws ParseException {
+		Class<?> leftType = ClassUtils.getUnboxedClass(leftParameter.getReturnType());
+		Class<?> rightType = ClassUtils.getUnboxedClass(rightParameter.getReturnType());
+		if (! leftType.isPrimitive() || ! rightType.isPrimitive()) {
+			throw unsupported(operator);
+		}
+		return buildOperation(operator, name, leftType, rightType, build(leftParameter), build(rightParameter));
+	}
+
+	private Evaluator buildOperation(BinaryOperator operator, final String name, Class<?> leftType, Class<?> rightType, final Evaluator left, final Evaluator right) throws ParseException {
+		final Class<?> type;
+		if (leftType == boolean.class || rightType == boolean.class) {
+			if (leftType != rightType || ! ("==".equals(name) || "!=".equals(name)
+					|| "&".equals(name) || "|".equals(name) || "^".equals(name))) {
+				throw unsupported(operator);
+			}
+			type = boolean.class;
+		} else if ("<<".equals(name) || ">>".equals(name) || ">>>".equals(name)) {
+			type = promote(leftType, int.class);
+		} else {
+			type = promote(leftType, rightType);
+		}
+		if (type != boolean.class && type != int.class && type != long.class
+				&& ("&".equals(name) || "|".equals(name) || "^".equals(name)
+						|| "<<".equals(name) || ">>".equals(name) || ">>>".equals(name))) {
+			throw unsupported(operator);
+		}
+		if (! ("+".equals(name) || "-".equals(name) || "*".equals(name) || "/".equals(name) || "%".equals(name)
+				|| "==".equals(name) || "!=".equals(name) || "<".equals(name) || "<=".equals(name)
+				|| ">".equals(name) || ">=".equals(name) || "&".equals(name) || "|".equals(name) || "^".equals(name)
+				|| "<<".equals(name) || ">>".equals(name) || ">>>".equals(name))) {
+			throw unsupported(operator);
+		}
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				return operate(name, type, left.evaluate(parameters), right.evaluate(parameters));
+			}
+		};
+	}
+
+	private Evaluator buildTernary(BinaryOperator question, Node elseParameter) throws ParseException {
+		Node conditionParameter = question.getLeftParameter();
+		Node thenParameter = question.getRightParameter();
+		Class<?> conditionType = conditionParameter.getReturnType();
+		Class<?> thenType = thenParameter.getReturnType();
+		Class<?> elseType = elseParameter.getReturnType();
+		if (conditionType == null) {
+			throw unsupported(question);
+		}
+		final Condition condition = new Condition(conditionType);
+		final Evaluator test = build(conditionParameter);
+		final Evaluator then = build(thenParameter);
+		final Evaluator otherwise = build(elseParameter);
+		// 两个分支为不同的数值类型时，结果按Java的二元数值提升转换
+		final Class<?> type = thenType != null && elseType != null && thenType != elseType
+				&& isNumeric(thenType) && isNumeric(elseType) ? promote(thenType, elseType) : null;
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				Object value = condition.isTrue(test.evaluate(parameters)) ? then.evaluate(parameters) : otherwise.evaluate(parameters);
+				return type == null ? value : cast(value, type);
+			}
+		};
+	}
+
+	private Evaluator buildUnary(UnaryOperator operator) throws ParseException {
+		String name = operator.getName();
+		Node parameter = operator.getParameter();
+		if (name.startsWith("new ")) {
+			return buildNew(operator, ClassUtils.forName(operator.getPackages(), name.substring(4)), getArguments(parameter));
+		} else if (StringUtils.isTyped(name)) {
+			return buildCast(operator, parameter, ClassUtils.forName(operator.getPackages(), name));
+		} else if (StringUtils.isFunction(name)) {
+			name = name.substring(1);
+			List<Node> arguments = getArguments(parameter);
+			Class<?>[] types = parameter.getReturnTypes();
+			if (types.length != arguments.size()) {
+				throw unsupported(operator);
+			}
+			Class<?> t = operator.getParameterTypes().get(name);
+			if (t != null && Expression.class.isAssignableFrom(t)) {
+				final String macro = name;
+				final Evaluator[] evaluators = build(arguments);
+				return new Evaluator() {
+					public Object evaluate(Map<String, Object> parameters) {
+						Expression expression = (Expression) parameters.get(macro);
+						return expression.evaluate(ClassUtils.toMap(expression.getParameterTypes().keySet(), Interpreter.evaluate(evaluators, parameters)));
+					}
+				};
+			}
+			Collection<Class<?>> functionTypes = operator.getFunctions();
+			if (functionTypes != null && functionTypes.size() > 0) {
+				for (Class<?> function : functionTypes) {
+					try {
+						Method method = ClassUtils.searchMethod(function, name, types);
+						if (Object.class.equals(method.getDeclaringClass())) {
+							break;
+						}
+						return buildInvoke(operator, getMethod(function, method, types), getFunction(function, method), arguments);
+					} catch (NoSuchMethodException e) {
+					}
+				}
+			}
+			throw unsupported(operator);
+		} else if ("[".equals(name)) {
+			List<Node> arguments = getArguments(parameter);
+			Class<?>[] types = parameter.getReturnTypes();
+			if (types.length == 0 || types.length != arguments.size()) {
+				throw unsupported(operator);
+			}
+			final Evaluator[] evaluators = build(arguments);
+			if (Map.Entry.class.isAssignableFrom(types[0])) {
+				return new Evaluator() {
+					public Object evaluate(Map<String, Object> parameters) {
+						Map<Object, Object> map = new HashMap<Object, Object>();
+						for (int i = 0; i < evaluators.length; i ++) {
+							Map.Entry<?, ?> entry = (Map.Entry<?, ?>) evaluators[i].evaluate(parameters);
+							map.put(entry.getKey(), entry.getValue());
+						}
+						return map;
+					}
+				};
+			}
+			final Class<?> componentType = types[0];
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					Object array = Array.newInstance(componentType, evaluators.length);
+					for (int i = 0; i < evaluators.length; i ++) {
+						Array.set(array, i, cast(evaluators[i].evaluate(parameters), componentType));
+					}
+					return array;
+				}
+			};
+		}
+		final Class<?> type = parameter.getReturnType() == null ? null : ClassUtils.getUnboxedClass(parameter.getReturnType());
+		final Evaluator evaluator = build(parameter);
+		if ("!".equals(name) && type == boolean.class) {
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					return Boolean.valueOf(! ((Boolean) evaluator.evaluate(parameters)).booleanValue());
+				}
+			};
+		} else if (("-".equals(name) || "+".equals(name) || "~".equals(name))
+				&& type != null && isNumeric(type)) {
+			final String oper = name;
+			final Class<?> promoted = promote(type, int.class);
+			if ("~".equals(name) && promoted != int.class && promoted != long.class) {
+				throw unsupported(operator);
+			}
+			return new Evaluator() {
+				public Object evaluate(Map<String, Object> parameters) {
+					Object value = cast(evaluator.evaluate(parameters), promoted);
+					if ("+".equals(oper)) {
+						return value;
+					} else if ("~".equals(oper)) {
+						return operate("^", promoted, value, cast(Integer.valueOf(-1), promoted));
+					}
+					return operate("*", promoted, cast(Integer.valueOf(-1), promoted), value);
+				}
+			};
+		}
+		throw unsupported(operator);
+	}
+
+	private Evaluator buildCast(Node node, Node parameter, final Class<?> type) throws ParseException {
+		if (! isCastable(parameter.getReturnType(), type)) { // 不能转型的代码不可编译
+			throw unsupported(node);
+		}
+		final Evaluator evaluator = build(parameter);
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				return cast(evaluator.evaluate(parameters), type);
+			}
+		};
+	}
+
+	private static boolean isCastable(Class<?> from, Class<?> to) {
+		if (from == null) {
+			return ! to.isPrimitive();
+		}
+		if (from.isPrimitive() && to.isPrimitive()) {
+			return (from == boolean.class) == (to == boolean.class);
+		}
+		if (to.isPrimitive()) {
+			return from == Object.class || from == ClassUtils.getBoxedClass(to);
+		}
+		if (from.isPrimitive()) {
+			return to.isAssignableFrom(ClassUtils.getBoxedClass(from));
+		}
+		return to.isAssignableFrom(from) || from.isAssignableFrom(to) || to.isInterface() || from.isInterface();
+	}
+
+	private Evaluator buildConvert(Node node, final Evaluator evaluator, final Method method) throws ParseException {
+		if (method == null) {
+			throw unsupported(node);
+		}
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				return invoke(method, null, new Object[] { evaluator.evaluate(parameters) });
+			}
+		};
+	}
+
+	private Evaluator buildInvoke(Node node, final Method method, final Object target, List<Node> arguments) throws ParseException {
+		if (method == null) {
+			throw unsupported(node);
+		}
+		final Evaluator[] evaluators = build(arguments);
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				return invoke(method, target, Interpreter.evaluate(evaluators, parameters));
+			}
+		};
+	}
+
+	private Evaluator buildNew(Node node, Class<?> type, List<Node> arguments) throws ParseException {
+		Class<?>[] types = new Class<?>[arguments.size()];
+		for (int i = 0; i < types.length; i ++) {
+			types[i] = arguments.get(i).getReturnType();
+			if (types[i] == null) {
+				throw unsupported(node);
+			}
+		}
+		List<Constructor<?>> constructors = new ArrayList<Constructor<?>>();
+		List<Class<?>[]> parameterTypes = new ArrayList<Class<?>[]>();
+		for (Constructor<?> constructor : type.getConstructors()) {
+			constructors.add(constructor);
+			parameterTypes.add(constructor.getParameterTypes());
+		}
+		final Constructor<?> constructor = select(constructors, parameterTypes, types);
+		if (constructor == null || Modifier.isAbstract(type.getModifiers())) {
+			throw unsupported(node);
+		}
+		final Evaluator[] evaluators = build(arguments);
+		return new Evaluator() {
+			public Object evaluate(Map<String, Object> parameters) {
+				try {
+					return constructor.newInstance(Interpreter.evaluate(evaluators, parameters));
+				} catch (InvocationTargetException e) {
+					throw toRuntimeException(e.getTargetException());
+				} catch (Exception e) {
+					throw new IllegalStateException(e.getMessage(), e);
+				}
+			}
+		};
+	}
+
+	private Evaluator[] build(List<Node> nodes) throws ParseException {
+		Evaluator[] evaluators = new Evaluator[nodes.size()];
+		for (int i = 0; i < evaluators.length; i ++) {
+			evaluators[i] = build(nodes.get(i));
+		}
+		return evaluators;
+	}
+
+	private Object getFunction(Class<?> function, Method method) {
+		if (Modifier.isStatic(method.getModifiers())) {
+			return null;
+		}
+		return functions == null ? null : functions.get(function);
+	}
+
+	private static ParseException unsupported(Node node) {
+		return new ParseException("Unsupported interpreting expression " + node + ", it must be compiled.", node.getOffset());
+	}
+
+	// 展开","分隔的参数列表，无参数时为Constant.EMPTY
+	private static List<Node> getArguments(Node node) {
+		List<Node> arguments = new ArrayList<Node>();
+		if (node != Constant.EMPTY) {
+			addArguments(node, arguments);
+		}
+		return arguments;
+	}
+
+	private static void addArguments(Node node, List<Node> arguments) {
+		if (node instanceof BinaryOperator && ",".equals(((BinaryOperator) node).getName())) {
+			addArguments(((BinaryOperator) node).getLeftParameter(), arguments);
+			addArguments(((BinaryOperator) node).getRightParameter(), arguments);
+		} else {
+			arguments.add(node);
+		}
+	}
+
+	private static Object[] evaluate(Evaluator[] evaluators, Map<String, Object> parameters) {
+		Object[] values = new Object[evaluators.length];
+		for (int i = 0; i < evaluators.length; i ++) {
+			values[i] = evaluators[i].evaluate(parameters);
+		}
+		return values;
+	}
+
+	private static Object invoke(Method method, Object target, Object[] arguments) {
+		try {
+			return method.invoke(target, arguments);
+		} catch (InvocationTargetException e) {
+			throw toRuntimeException(e.getTargetException());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private static RuntimeException toRuntimeException(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new IllegalStateException(ClassUtils.toString(e), e);
+	}
+
+	private static Method getGetter(Class<?> type, String name) {
+		String property = name.substring(0, 1).toUpperCase() + name.substring(1);
+		try {
+			return accessible(type.getMethod("get" + property, new Class<?>[0]));
+		} catch (NoSuchMethodException e) {
+			try {
+				return accessible(type.getMethod("is" + property, new Class<?>[0]));
+			} catch (NoSuchMethodException e2) {
+				return null;
+			}
+		}
+	}
+
+	private static Method getMethod(Class<?> type, String name, Class<?>[] types) {
+		try {
+			return getMethod(type, ClassUtils.searchMethod(type, name, types), types);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	// javac按参数的静态类型选择最具体的重载方法，ClassUtils.searchMethod()只保证存在同名方法
+	private static Method getMethod(Class<?> type, Method found, Class<?>[] types) {
+		List<Method> methods = new ArrayList<Method>();
+		List<Class<?>[]> parameterTypes = new ArrayList<Class<?>[]>();
+		for (Method method : type.getMethods()) {
+			if (method.getName().equals(found.getName()) && ! method.isBridge()) {
+				methods.add(method);
+				parameterTypes.add(method.getParameterTypes());
+			}
+		}
+		Method method = select(methods, parameterTypes, types);
+		return accessible(method == null ? found : method);
+	}
+
+	private static Method accessible(Method method) {
+		if (! Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+			try {
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+			}
+		}
+		return method;
+	}
+
+	private static <T> T select(List<T> members, List<Class<?>[]> parameterTypes, Class<?>[] types) {
+		for (int phase = 0; phase < 2; phase ++) { // 先不装箱匹配，再允许装箱和拆箱匹配
+			T selected = null;
+			Class<?>[] selectedTypes = null;
+			for (int i = 0; i < members.size(); i ++) {
+				Class<?>[] candidateTypes = parameterTypes.get(i);
+				if (candidateTypes.length == types.length
+						&& isConvertible(types, candidateTypes, phase > 0)
+						&& (selected == null || isConvertible(candidateTypes, selectedTypes, false))) {
+					selected = members.get(i);
+					selectedTypes = candidateTypes;
+				}
+			}
+			if (selected != null) {
+				return selected;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isConvertible(Class<?>[] from, Class<?>[] to, boolean boxing) {
+		for (int i = 0; i < from.length; i ++) {
+			if (! isConvertible(from[i], to[i], boxing)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isConvertible(Class<?> from, Class<?> to, boolean boxing) {
+		if (from == to) {
+			return true;
+		}
+		if (from.isPrimitive()) {
+			if (to.isPrimitive()) {
+				return isWidening(from, to);
+			}
+			return boxing && to.isAssignableFrom(ClassUtils.getBoxedClass(from));
+		}
+		if (to.isPrimitive()) {
+			Class<?> unboxed = ClassUtils.getUnboxedClass(from);
+			return boxing && unboxed.isPrimitive() && (unboxed == to || isWidening(unboxed, to));
+		}
+		return to.isAssignableFrom(from);
+	}
+
+	private static final List<Class<?>> NUMERIC_TYPES = Arrays.asList(new Class<?>[] { byte.class, short.class, int.class, long.class, float.class, double.class });
+
+	private static boolean isWidening(Class<?> from, Class<?> to) {
+		if (from == char.class) {
+			from = short.class; // char可以拓宽为int及以上
+			if (to == short.class) {
+				return false;
+			}
+		}
+		int i = NUMERIC_TYPES.indexOf(from);
+		int j = NUMERIC_TYPES.indexOf(to);
+		return i >= 0 && j >= 0 && i < j;
+	}
+
+	private static boolean isNumeric(Class<?> type) {
+		type = ClassUtils.getUnboxedClass(type);
+		return type == char.class || NUMERIC_TYPES.contains(type);
+	}
+
+	private static Class<?> promote(Class<?> left, Class<?> right) {
+		left = ClassUtils.getUnboxedClass(left);
+		right = ClassUtils.getUnboxedClass(right);
+		if (left == double.class || right == double.class) {
+			return double.class;
+		} else if (left == float.class || right == float.class) {
+			return float.class;
+		} else if (left == long.class || right == long.class) {
+			return long.class;
+		}
+		return int.class;
+	}
+
+	private static Object getDefaultValue(Class<?> type) {
+		if (type == null || ! type.isPrimitive()) {
+			return null;
+		} else if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == char.class) {
+			return Character.valueOf('\0');
+		}
+		return cast(Integer.valueOf(0), type);
+	}
+
+	private static Number toNumber(Object value) {
+		if (value instanceof Character) {
+			return Integer.valueOf(((Character) value).charValue());
+		}
+		return (Number) value;
+	}
+
+	/**
+	 * Cast the value to the type, the primitive type is converted as java cast.
+	 *
+	 * @param value - value
+	 * @param type - target type
+	 * @return the converted value
+	 */
+	public static Object cast(Object value, Class<?> type) {
+		if (! type.isPrimitive()) {
+			if (value != null && ! type.isInstance(value)) {
+				throw new ClassCastException(value.getClass().getName() + " cannot be cast to " + type.getName());
+			}
+			return value;
+		}
+		if (value == null) {
+			return getDefaultValue(type);
+		}
+		if (type == boolean.class) {
+			return (Boolean) value;
+		}
+		Number number = toNumber(value);
+		if (type == int.class) {
+			return number instanceof Integer ? number : Integer.valueOf(number.intValue());
+		} else if (type == long.class) {
+			return number instanceof Long ? number : Long.valueOf(number.longValue());
+		} else if (type == double.class) {
+			return number instanceof Double ? number : Double.valueOf(number.doubleValue());
+		} else if (type == float.class) {
+			return number instanceof Float ? number : Float.valueOf(number.floatValue());
+		} else if (type == short.class) {
+			return number instanceof Short ? number : Short.valueOf(number.shortValue());
+		} else if (type == byte.class) {
+			return number instanceof Byte ? number : Byte.valueOf(number.byteValue());
+		} else if (type == char.class) {
+			return value instanceof Character ? value : Character.valueOf((char) number.intValue());
+		}
+		return value;
+	}
+
+	private static boolean compare(String name, int left, int right) {
+		if ("<".equals(name)) {
+			return left < right;
+		} else if ("<=".equals(name)) {
+			return left <= right;
+		} else if (">".equals(name)) {
+			return left > right;
+		} else if (">=".equals(name)) {
+			return left >= right;
+		} else if ("==".equals(name)) {
+			return left == right;
+		}
+		return left != right;
+	}
+
+	private static Object operate(String name, Class<?> type, Object left, Object right) {
+		if (type == boolean.class) {
+			boolean l = ((Boolean) left).booleanValue();
+			boolean r = ((Boolean) right).booleanValue();
+			if ("==".equals(name)) {
+				return Boolean.valueOf(l == r);
+			} else if ("!=".equals(name) || "^".equals(name)) {
+				return Boolean.valueOf(l != r);
+			} else if ("&".equals(name)) {
+				return Boolean.valueOf(l & r);
+			}
+			return Boolean.valueOf(l | r);
+		}
+		if (type == int.class || type == long.class) {
+			long l = toNumber(left).longValue();
+			long r = toNumber(right).longValue();
+			boolean isInt = type == int.class;
+			long value;
+			if ("+".equals(name)) {
+				value = l + r;
+			} else if ("-".equals(name)) {
+				value = l - r;
+			} else if ("*".equals(name)) {
+				value = l * r;
+			} else if ("/".equals(name)) {
+				value = isInt ? (int) l / (int) r : l / r;
+			} else if ("%".equals(name)) {
+				value = isInt ? (int) l % (int) r : l % r;
+			} else if ("&".equals(name)) {
+				value = l & r;
+			} else if ("|".equals(name)) {
+				value = l | r;
+			} else if ("^".equals(name)) {
+				value = l ^ r;
+			} else if ("<<".equals(name)) {
+				value = isInt ? (int) l << (int) r : l << r;
+			} else if (">>".equals(name)) {
+				value = isInt ? (int) l >> (int) r : l >> r;
+			} else if (">>>".equals(name)) {
+				value = isInt ? (int) l >>> (int) r : l >>> r;
+			} else {
+				return Boolean.valueOf(compare(name, l < r ? -1 : (l == r ? 0 : 1), 0));
+			}
+			return isInt ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value);
+		}
+		double l = toNumber(left).doubleValue();
+		double r = toNumber(right).doubleValue();
+		boolean isFloat = type == float.class;
+		if (isFloat) {
+			l = (float) l;
+			r = (float) r;
+		}
+		double value;
+		if ("+".equals(name)) {
+			value = l + r;
+		} else if ("-".equals(name)) {
+			value = l - r;
+		} else if ("*".equals(name)) {
+			value = l * r;
+		} else if ("/".equals(name)) {
+			value = isFloat ? (float) l / (float) r : l / r;
+		} else if ("%".equals(name)) {
+			value = isFloat ? (float) l % (float) r : l % r;
+		} else if ("<".equals(name)) {
+			return Boolean.valueOf(l < r);
+		} else if ("<=".equals(name)) {
+			return Boolean.valueOf(l <= r);
+		} else if (">".equals(name)) {
+			return Boolean.valueOf(l > r);
+		} else if (">=".equals(name)) {
+			return Boolean.valueOf(l >= r);
+		} else if ("==".equals(name)) {
+			return Boolean.valueOf(l == r);
+		} else {
+			return Boolean.valueOf(l != r);
+		}
+		return isFloat ? (Object) Float.valueOf((float) value) : (Object) Double.valueOf(value);
+	}
+
+	/**
+	 * The binary operator, return the default value of the return type if the left value is null.
+	 *
+	 * @see httl.spi.translators.expression.BinaryOperator#getCode()
+	 */
+	private static abstract class BinaryEvaluator implements Evaluator {
+
+		private final Evaluator left;
+
+		private final Evaluator right;
+
+		private final boolean notNull;
+
+		private final Object defaultValue;
+
+		public BinaryEvaluator(BinaryOperator operator, Evaluator left, Evaluator right) throws ParseException {
+			this.left = left;
+			this.right = right;
+			this.notNull = ! (operator.getLeftParameter() instanceof Constant);
+			this.defaultValue = getDefaultValue(operator.getReturnType());
+		}
+
+		protected Evaluator getRight() {
+			return right;
+		}
+
+		public Object evaluate(Map<String, Object> parameters) {
+			Object value = left.evaluate(parameters);
+			if (value == null && notNull) {
+				return defaultValue;
+			}
+			return evaluate(value, parameters);
+		}
+
+		protected abstract Object evaluate(Object left, Map<String, Object> parameters);
+
+	}
+
+	/**
+	 * The condition of the static type.
+	 *
+	 * @see httl.util.StringUtils#getConditionCode(Class, String)
+	 */
+	private static final class Condition {
+
+		private final Class<?> type;
+
+		private final Method sizeMethod;
+
+		public Condition(Class<?> type) {
+			this.type = type;
+			Method method = null;
+			if (! type.isPrimitive() && type != String.class && ! type.isArray()
+					&& ! Collection.class.isAssignableFrom(type) && ! Map.class.isAssignableFrom(type)) {
+				String name = ClassUtils.getSizeMethod(type);
+				if (name != null && name.length() > 0) {
+					try {
+						method = accessible(type.getMethod(name.substring(0, name.length() - 2), new Class<?>[0]));
+					} catch (NoSuchMethodException e) {
+					}
+				}
+			}
+			this.sizeMethod = method;
+		}
+
+		public boolean isTrue(Object value) {
+			if (type == boolean.class) {
+				return ((Boolean) value).booleanValue();
+			} else if (type.isPrimitive()) {
+				return toNumber(value).doubleValue() != 0;
+			} else if (value == null) {
+				return false;
+			} else if (type == String.class) {
+				return ((String) value).length() > 0;
+			} else if (type.isArray()) {
+				return Array.getLength(value) > 0;
+			} else if (Collection.class.isAssignableFrom(type)) {
+				return ((Collection<?>) value).size() > 0;
+			} else if (Map.class.isAssignableFrom(type)) {
+				return ((Map<?, ?>) value).size() > 0;
+			} else if (sizeMethod != null) {
+				return toNumber(invoke(sizeMethod, value, new Object[0])).doubleValue() > 0;
+			}
+			return true;
+		}
+
+	}
+
+}
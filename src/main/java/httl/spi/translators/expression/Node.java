@@ -77,6 +77,18 @@ public abstract class Node implements Serializable {
     	return null;
     }
 
+    /**
+     * Get the code that renders the node to the output directly.
+     * 
+     * @param output - output variable name
+     * @param outputType - Writer or OutputStream
+     * @return render code, or null if the node must be evaluated.
+     * @throws ParseException - If the node code is invalid
+     */
+    public String getRenderCode(String output, Class<?> outputType) throws ParseException {
+        return null;
+    }
+
     public abstract Class<?> getReturnType() throws ParseException;
 
     public abstract String getCode() throws ParseException;
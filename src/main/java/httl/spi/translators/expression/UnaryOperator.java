@@ -17,6 +17,7 @@
 package httl.spi.translators.expression;
 
 import httl.Expression;
+import httl.Template;
 import httl.spi.Translator;
 import httl.util.ClassUtils;
 import httl.util.StringUtils;
@@ -94,6 +95,56 @@ public final class UnaryOperator extends Operator {
         }
     }
 
+    public String getRenderCode(String output, Class<?> outputType) throws ParseException {
+        if (! StringUtils.isFunction(getName())) {
+            return null;
+        }
+        String name = getName().substring(1);
+        Class<?> t = getParameterTypes().get(name);
+        if (t != null && Expression.class.isAssignableFrom(t)) {
+            if (Template.class.isAssignableFrom(t)) {
+                return name + ".render(" + getMacroParameterCode(name) + ", " + output + ")";
+            }
+            return null;
+        }
+        // 函数有以输出为最后一个参数的同名重载时，直接渲染到输出，如：include(String name, Writer output)
+        Class<?>[] types = parameter.getReturnTypes();
+        Collection<Class<?>> functions = getFunctions();
+        if (functions != null && functions.size() > 0) {
+            for (Class<?> function : functions) {
+                try {
+                    Method method = ClassUtils.searchMethod(function, name, types);
+                    if (Object.class.equals(method.getDeclaringClass())) {
+                        break;
+                    }
+                    Class<?>[] renderTypes = new Class<?>[types.length + 1];
+                    System.arraycopy(types, 0, renderTypes, 0, types.length);
+                    renderTypes[types.length] = outputType;
+                    try {
+                        method = ClassUtils.searchMethod(function, name, renderTypes);
+                    } catch (NoSuchMethodException e) {
+                        return null;
+                    }
+                    if (! void.class.equals(method.getReturnType())) {
+                        return null;
+                    }
+                    String code = parameter.getCode();
+                    code = code.length() == 0 ? output : code + ", " + output;
+                    if (Modifier.isStatic(method.getModifiers())) {
+                        return function.getName() + "." + method.getName() + "(" + code + ")";
+                    }
+                    return "_" + function.getName().replace('.', '_') + "." + method.getName() + "(" + code + ")";
+                } catch (NoSuchMethodException e) {
+                }
+            }
+        }
+        return null;
+    }
+
+    private String getMacroParameterCode(String name) throws ParseException {
+        return ClassUtils.class.getName() + ".toMap(" + name + ".getParameterTypes().keySet(), new Object" + (parameter.getCode().length() == 0 ? "[0]" : "[] { " + parameter.getCode() + " }") + " )";
+    }
+
     public String getCode() throws ParseException {
         if (getName().startsWith("new ")) {
             return getName() + "(" + parameter.getCode() + ")";
@@ -103,7 +154,7 @@ public final class UnaryOperator extends Operator {
             String name = getName().substring(1);
             Class<?> t = getParameterTypes().get(name);
             if (t != null && Expression.class.isAssignableFrom(t)) {
-                return name + ".evaluate(" + ClassUtils.class.getName() + ".toMap(" + name + ".getParameterTypes().keySet(), new Object" + (parameter.getCode().length() == 0 ? "[0]" : "[] { " + parameter.getCode() + " }") + " ))";
+                return name + ".evaluate(" + getMacroParameterCode(name) + ")";
             } else {
                 Class<?>[] types = parameter.getReturnTypes();
                 Collection<Class<?>> functions = getFunctions();
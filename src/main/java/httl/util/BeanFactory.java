@@ -35,6 +35,8 @@ public class BeanFactory {
 
     private static final String INITED_METHOD = "inited";
 
+    private static final String DESTROY_METHOD = "destroy";
+
     private static final Pattern COMMA_SPLIT_PATTERN = Pattern.compile("\\s*\\,\\s*");
     
     public static String getPropertyKey(Class<?> beanClass, String property) {
@@ -66,6 +68,22 @@ public class BeanFactory {
     	return instance;
     }
 
+    public static void destroyBean(Object bean) {
+    	if (bean == null) {
+    		return;
+    	}
+    	try {
+    		Method method = bean.getClass().getMethod(DESTROY_METHOD, new Class<?>[0]);
+    		if (Modifier.isPublic(method.getModifiers())
+    				&& ! Modifier.isStatic(method.getModifiers())) {
+    			method.invoke(bean, new Object[0]);
+    		}
+    	} catch (NoSuchMethodException e) {
+    	} catch (Exception e) {
+    		throw new IllegalStateException(e.getMessage(), e);
+    	}
+    }
+
     private static void injectInstance(Object object, Properties properties, String parent, Map<String, Object> instances, List<Object> inits) {
 		try {
 			if (! inits.contains(object)) {
@@ -28,6 +28,8 @@ import httl.util.iterators.LongArrayIterator;
 import httl.util.iterators.ObjectArrayIterator;
 import httl.util.iterators.ShortArrayIterator;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Array;
@@ -37,11 +39,13 @@ import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -216,6 +220,28 @@ public class ClassUtils {
         }
     }
     
+    public static Class<?> getUnboxedClass(Class<?> type) {
+        if (type == Boolean.class) {
+            return boolean.class; 
+        } else if (type == Character.class) {
+            return char.class; 
+        } else if (type == Byte.class) {
+            return byte.class; 
+        } else if (type == Short.class) {
+            return short.class; 
+        } else if (type == Integer.class) {
+            return int.class; 
+        } else if (type == Long.class) {
+            return long.class; 
+        } else if (type == Float.class) {
+            return float.class; 
+        } else if (type == Double.class) {
+            return double.class; 
+        } else {
+            return type;
+        }
+    }
+    
     public static Boolean boxed(boolean v) {
         return Boolean.valueOf(v);
     }
@@ -494,6 +520,36 @@ public class ClassUtils {
     public static boolean isBeforeJava6(String javaVersion) {
         return isBeforeJava5(javaVersion) || "1.5".equals(javaVersion);
     }
+
+    // 先取MANIFEST中的版本号，没有时从jar包文件名中取，如：httl-1.0.5.jar
+    public static String getVersion(Class<?> cls, String defaultVersion) {
+        Package pkg = cls.getPackage();
+        String version = pkg == null ? null : pkg.getImplementationVersion();
+        if (version == null || version.length() == 0) {
+            version = pkg == null ? null : pkg.getSpecificationVersion();
+        }
+        if (version == null || version.length() == 0) {
+            CodeSource codeSource = cls.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                String file = codeSource.getLocation().getFile();
+                if (file != null && file.endsWith(".jar")) {
+                    file = file.substring(0, file.length() - 4);
+                    int i = file.lastIndexOf('/');
+                    if (i >= 0) {
+                        file = file.substring(i + 1);
+                    }
+                    i = file.indexOf('-');
+                    while (i >= 0 && i + 1 < file.length() && ! Character.isDigit(file.charAt(i + 1))) {
+                        i = file.indexOf('-', i + 1);
+                    }
+                    if (i >= 0 && i + 1 < file.length()) {
+                        version = file.substring(i + 1);
+                    }
+                }
+            }
+        }
+        return version == null || version.length() == 0 ? defaultVersion : version;
+    }
     
     public static String toString(Throwable e) {
         StringWriter w = new StringWriter();
@@ -511,11 +567,93 @@ public class ClassUtils {
         }
     }
 
-    private static final int JIT_LIMIT = 5 * 1024;
+    // HotSpot的-XX:HugeMethodLimit，超过此字节码长度的方法不会被JIT编译
+    public static final int HUGE_METHOD_LIMIT = 8000;
     
     public static void checkBytecode(String name, byte[] bytecode) {
-        if (bytecode.length > JIT_LIMIT) {
-            System.err.println("The template bytecode too long, may be affect the JIT compiler. template class: " + name);
+        for (Map.Entry<String, Integer> entry : getMethodCodeLengths(bytecode).entrySet()) {
+            if (entry.getValue() > HUGE_METHOD_LIMIT) {
+                System.err.println("The template method bytecode too long, may be affect the JIT compiler. template class: " + name + ", method: " + entry.getKey() + ", bytecode length: " + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the bytecode length of the methods in the class file.
+     * 
+     * @param bytecode - class file bytes
+     * @return method name and descriptor to the code length, in declaration order.
+     */
+    public static Map<String, Integer> getMethodCodeLengths(byte[] bytecode) {
+        try {
+            DataInputStream in = new DataInputStream(new UnsafeByteArrayInputStream(bytecode));
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Not a class file.");
+            }
+            in.readUnsignedShort(); // minor_version
+            in.readUnsignedShort(); // major_version
+            int count = in.readUnsignedShort();
+            String[] utf8s = new String[count];
+            for (int i = 1; i < count; i ++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Utf8
+                        utf8s[i] = in.readUTF();
+                        break;
+                    case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                        in.skipBytes(2);
+                        break;
+                    case 15: // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    case 5: case 6: // Long, Double, 占两个常量池位置
+                        in.skipBytes(8);
+                        i ++;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+                }
+            }
+            in.skipBytes(6); // access_flags, this_class, super_class
+            in.skipBytes(in.readUnsignedShort() * 2); // interfaces
+            int fields = in.readUnsignedShort();
+            for (int i = 0; i < fields; i ++) {
+                in.skipBytes(6); // access_flags, name_index, descriptor_index
+                skipAttributes(in);
+            }
+            Map<String, Integer> lengths = new LinkedHashMap<String, Integer>();
+            int methods = in.readUnsignedShort();
+            for (int i = 0; i < methods; i ++) {
+                in.skipBytes(2); // access_flags
+                String method = utf8s[in.readUnsignedShort()] + utf8s[in.readUnsignedShort()];
+                int attributes = in.readUnsignedShort();
+                for (int j = 0; j < attributes; j ++) {
+                    String attribute = utf8s[in.readUnsignedShort()];
+                    int length = in.readInt();
+                    if ("Code".equals(attribute)) {
+                        in.skipBytes(4); // max_stack, max_locals
+                        int codeLength = in.readInt();
+                        lengths.put(method, codeLength);
+                        in.skipBytes(length - 8);
+                    } else {
+                        in.skipBytes(length);
+                    }
+                }
+            }
+            return lengths;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Illegal class file, cause: " + e.getMessage(), e);
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int attributes = in.readUnsignedShort();
+        for (int i = 0; i < attributes; i ++) {
+            in.skipBytes(2); // attribute_name_index
+            in.skipBytes(in.readInt());
         }
     }
     
@@ -1620,7 +1620,7 @@ public class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V>
 	 * }
 	 * </pre>
 	 */
-	static final class Builder<K, V> {
+	public static final class Builder<K, V> {
 		static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 		static final int DEFAULT_INITIAL_CAPACITY = 16;
 
@@ -2139,7 +2139,7 @@ public class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V>
 		void setNext(T next);
 	}
 
-	static interface EntryWeigher<K, V> {
+	public static interface EntryWeigher<K, V> {
 
 		/**
 		 * Measures an entry's weight to determine how many units of capacity
@@ -2155,7 +2155,7 @@ public class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V>
 		int weightOf(K key, V value);
 	}
 
-	static interface EvictionListener<K, V> {
+	public static interface EvictionListener<K, V> {
 
 		/**
 		 * A call-back notification that the entry was evicted.
@@ -2168,7 +2168,7 @@ public class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V>
 		void onEviction(K key, V value);
 	}
 
-	static interface Weigher<V> {
+	public static interface Weigher<V> {
 
 		/**
 		 * Measures an object's weight to determine how many units of capacity
@@ -2181,7 +2181,7 @@ public class ConcurrentLinkedHashMap<K, V> extends AbstractMap<K, V>
 		int weightOf(V value);
 	}
 
-	static final class Weighers {
+	public static final class Weighers {
 
 		private Weighers() {
 			throw new AssertionError();
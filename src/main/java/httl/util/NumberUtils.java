@@ -58,5 +58,58 @@ public class NumberUtils {
     public static String format(Number value, String format) {
         return getDecimalFormat(format).format(value);
     }
-    
+
+    // The max length of a long in decimal: "-9223372036854775808"
+    public static final int MAX_LONG_LENGTH = 20;
+
+    private static final char[] MIN_LONG_CHARS = String.valueOf(Long.MIN_VALUE).toCharArray();
+
+    /**
+     * Get the decimal chars of the value, same as String.valueOf(long), but without allocation.
+     *
+     * @param value - long value
+     * @param buf - the chars buffer
+     * @param end - write the chars before the end index
+     * @return the begin index of the chars
+     */
+    public static int getChars(long value, char[] buf, int end) {
+        if (value == Long.MIN_VALUE) {
+            int begin = end - MIN_LONG_CHARS.length;
+            System.arraycopy(MIN_LONG_CHARS, 0, buf, begin, MIN_LONG_CHARS.length);
+            return begin;
+        }
+        boolean negative = value < 0;
+        if (negative) {
+            value = - value;
+        }
+        int i = end;
+        do {
+            buf[-- i] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            buf[-- i] = '-';
+        }
+        return i;
+    }
+
+    /**
+     * Get the decimal chars of the integral value, same as String.valueOf(double), but without allocation.
+     *
+     * @param value - double value
+     * @param buf - the chars buffer
+     * @param end - write the chars before the end index
+     * @return the begin index of the chars, or -1 if the value is not a plain integral value.
+     */
+    public static int getChars(double value, char[] buf, int end) {
+        // Double.toString() use the plain notation only for 10^-3 <= |value| < 10^7
+        if (value != (long) value || value >= 1e7 || value <= -1e7
+                || (value == 0 && 1 / value < 0)) { // -0.0
+            return -1;
+        }
+        buf[end - 1] = '0';
+        buf[end - 2] = '.';
+        return getChars((long) value, buf, end - 2);
+    }
+
 }
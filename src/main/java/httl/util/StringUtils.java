@@ -16,8 +16,10 @@
  */
 package httl.util;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collection;
@@ -287,6 +289,64 @@ public class StringUtils {
         return value;
     }
 
+    /**
+     * HTML特殊符转义，直接写入输出，不生成中间串。
+     * 
+     * @param value 可能带HTML特殊符的串
+     * @param output 转义后的输出
+     * @throws IOException 输出失败
+     */
+    public static void escapeHtml(CharSequence value, Appendable output) throws IOException {
+    	escapeXml(value, output);
+    }
+
+    public static void escapeXml(CharSequence value, Appendable output) throws IOException {
+        if (value == null || value.length() == 0) {
+            return;
+        }
+        int len = value.length();
+        int last = 0;
+        for (int i = 0; i < len; i ++) {
+            String escaped;
+            switch (value.charAt(i)) {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '\"':
+                    escaped = "&quot;";
+                    break;
+                case '\'':
+                    escaped = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+            if (i > last) {
+                append(output, value, last, i);
+            }
+            output.append(escaped);
+            last = i + 1;
+        }
+        if (last < len) {
+            append(output, value, last, len);
+        }
+    }
+
+    // Writer.append(CharSequence, int, int) creates a sub sequence, so write the String range directly.
+    private static void append(Appendable output, CharSequence value, int start, int end) throws IOException {
+        if (output instanceof Writer && value instanceof String) {
+            ((Writer) output).write((String) value, start, end - start);
+        } else {
+            output.append(value, start, end);
+        }
+    }
+
     /**
      * HTML特殊符转义还原。
      * 
@@ -57,6 +57,10 @@ public class UnsafeByteArrayOutputStream extends OutputStream {
         count = newcount;
     }
 
+    public void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) buffer = copyOf(buffer, capacity);
+    }
+
     public int size() {
         return count;
     }
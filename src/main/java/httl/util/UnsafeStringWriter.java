@@ -63,7 +63,7 @@ public class UnsafeStringWriter extends Writer {
 
     @Override
     public void write(String str, int off, int len) {
-        buffer.append(str.substring(off, off + len));
+        buffer.append(str, off, off + len);
     }
 
     @Override
@@ -76,7 +76,7 @@ public class UnsafeStringWriter extends Writer {
     @Override
     public Writer append(CharSequence csq, int start, int end) {
         CharSequence cs = (csq == null ? "null" : csq);
-        write(cs.subSequence(start, end).toString());
+        buffer.append(cs, start, end);
         return this;
     }
 
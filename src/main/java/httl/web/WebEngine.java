@@ -117,6 +117,16 @@ public class WebEngine {
         }
 	}
 
+	// 应用停止时，停止引擎的后台线程，注销MBean，避免引用旧的类加载器
+	public static void destroy() {
+		synchronized (WebEngine.class) {
+			if (ENGINE != null) {
+				ENGINE.destroy();
+				ENGINE = null;
+			}
+		}
+	}
+
 	public static Engine getEngine() {
 		if (ENGINE == null) {
 			init(ServletLoader.getAndCheckServletContext());
@@ -182,6 +192,7 @@ public class WebEngine {
 	        }
 		}
 		try {
+			// 配置page.cache时，Template.render按#var声明的参数值缓存整页，请求参数也作为键值
 			Template template = ENGINE.getTemplate(path);
 			if (output == null) {
 				if (OUTPUT_STREAM) {
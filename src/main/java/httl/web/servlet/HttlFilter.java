@@ -57,6 +57,7 @@ public class HttlFilter implements Filter {
 	}
 
 	public void destroy() {
+		WebEngine.destroy();
 	}
 
 }
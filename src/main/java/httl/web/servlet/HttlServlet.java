@@ -40,6 +40,11 @@ public class HttlServlet extends HttpServlet {
     	WebEngine.init(getServletContext());
     }
 
+    @Override
+    public void destroy() {
+    	WebEngine.destroy();
+    }
+
     public void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         doPost(request, response);
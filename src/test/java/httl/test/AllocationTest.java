@@ -0,0 +1,162 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.test.util.DiscardOutputStream;
+import httl.test.util.DiscardWriter;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * AllocationTest
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class AllocationTest extends TestCase {
+
+	private static final int WARMUP = 2000;
+
+	private static final int COUNT = 1000;
+
+	private static final int SIZE = 100;
+
+    @Test
+    public void testPrimitiveWrite() throws Exception {
+    	int[] numbers = new int[SIZE];
+    	for (int i = 0; i < SIZE; i ++) {
+    		numbers[i] = i;
+    	}
+    	// ${n},${n * 10000000000l},${n * 1.0},${n > 50}
+    	assertAllocation("/benchmarks/numbers.httl", "numbers", numbers, SIZE * 4);
+    }
+
+    @Test
+    public void testStringWrite() throws Exception {
+    	String[] strings = new String[SIZE];
+    	for (int i = 0; i < SIZE; i ++) {
+    		strings[i] = "<a href=\"/book?id=" + i + "&type=1\">中文" + i + "</a>";
+    	}
+    	// ${s},$!{s}
+    	assertAllocation("/benchmarks/strings.httl", "strings", strings, SIZE * 2);
+    }
+
+    @Test
+    public void testForeachSequence() throws Exception {
+    	// 1..size的下标循环，没有Iterator和Integer装箱，不使用foreach状态时也不创建ForeachStatus
+    	assertAllocation("/benchmarks/table.httl", "size", SIZE, SIZE * SIZE);
+    }
+
+    @Test
+    public void testEvaluate() throws Exception {
+    	String[] strings = new String[SIZE];
+    	for (int i = 0; i < SIZE; i ++) {
+    		strings[i] = "<a href=\"/book?id=" + i + "&type=1\">中文" + i + "</a>";
+    	}
+    	Method method = getAllocatedBytesMethod();
+    	if (method == null) {
+    		return;
+    	}
+    	ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("strings", strings);
+    	Template template = getEngine().getTemplate("/benchmarks/strings.httl");
+    	int length = 0;
+    	for (int i = 0; i < WARMUP; i ++) {
+    		length = ((String) template.evaluate(parameters)).length();
+    	}
+    	long begin = getAllocatedBytes(bean, method);
+    	for (int i = 0; i < COUNT; i ++) {
+    		template.evaluate(parameters);
+    	}
+    	long bytes = (getAllocatedBytes(bean, method) - begin) / COUNT;
+    	System.out.println("========evaluate========");
+    	System.out.println("result: " + length + "chars");
+    	System.out.println("evaluate: " + bytes + "bytes");
+    	// 只分配结果串，缓冲区复用，不再逐步扩容
+    	assertTrue("evaluate allocated " + bytes + "bytes", bytes < length * 4 + 1024);
+    }
+
+    private void assertAllocation(String name, String key, Object value, int values) throws Exception {
+    	Method method = getAllocatedBytesMethod();
+    	if (method == null) {
+    		return;
+    	}
+    	ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put(key, value);
+    	Template template = getEngine().getTemplate(name);
+    	Writer writer = new DiscardWriter();
+    	OutputStream stream = new DiscardOutputStream();
+    	for (int i = 0; i < WARMUP; i ++) {
+    		template.render(parameters, writer);
+    		template.render(parameters, stream);
+    	}
+    	long begin = getAllocatedBytes(bean, method);
+    	for (int i = 0; i < COUNT; i ++) {
+    		template.render(parameters, writer);
+    	}
+    	long writerBytes = (getAllocatedBytes(bean, method) - begin) / COUNT;
+    	begin = getAllocatedBytes(bean, method);
+    	for (int i = 0; i < COUNT; i ++) {
+    		template.render(parameters, stream);
+    	}
+    	long streamBytes = (getAllocatedBytes(bean, method) - begin) / COUNT;
+    	System.out.println("========" + name + "========");
+    	System.out.println("values: " + values + "/render");
+    	System.out.println("writer: " + writerBytes + "bytes/render");
+    	System.out.println("stream: " + streamBytes + "bytes/render");
+    	// 每个值都生成中间串至少分配String和char[]两个对象，直接写入时只剩下每次渲染的固定开销
+    	assertTrue("writer allocated " + writerBytes + "bytes/render", writerBytes < values * 8);
+    	assertTrue("stream allocated " + streamBytes + "bytes/render", streamBytes < values * 8);
+    }
+
+    private static Engine getEngine() {
+    	Properties properties = new Properties();
+    	properties.setProperty("output.encoding", "UTF-8");
+    	return Engine.getEngine("httl-allocation.properties", properties);
+    }
+
+    private static Method getAllocatedBytesMethod() {
+    	try {
+    		Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", new Class<?>[] { long.class });
+    		if (getAllocatedBytes(ManagementFactory.getThreadMXBean(), method) < 0) {
+    			return null;
+    		}
+    		return method;
+    	} catch (Throwable e) { // 非HotSpot虚拟机不支持统计线程分配
+    		return null;
+    	}
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean bean, Method method) throws Exception {
+    	return ((Long) method.invoke(bean, new Object[] { Thread.currentThread().getId() })).longValue();
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * CompileDirectoryTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class CompileDirectoryTest extends TestCase {
+
+    @Test
+    public void testSaveCacheKeyWithDefaultConfig() throws Exception {
+    	File dir = File.createTempFile("httl-classes", "");
+    	dir.delete();
+    	dir.mkdirs();
+    	Engine engine = null;
+    	try {
+	    	Properties properties = new Properties();
+	    	properties.setProperty("compile.directory", dir.getAbsolutePath());
+	    	properties.setProperty("output.stream", "true");
+	    	properties.setProperty("output.writer", "true");
+	    	properties.setProperty("output.encoding", "UTF-8");
+	    	engine = Engine.getEngine("httl-compile-directory.properties", properties);
+	    	engine.addResource("/cached.httl", "<!--#var(String name)-->hello \"${name}\"\n中文");
+	    	Template template = engine.getTemplate("/cached.httl");
+	    	Map<String, Object> parameters = new HashMap<String, Object>();
+	    	parameters.put("name", "httl");
+	    	StringWriter writer = new StringWriter();
+	    	template.render(parameters, writer);
+	    	assertEquals("hello \"httl\"\n中文", writer.toString());
+	    	ByteArrayOutputStream output = new ByteArrayOutputStream();
+	    	template.render(parameters, output);
+	    	assertEquals("hello \"httl\"\n中文", new String(output.toByteArray(), "UTF-8"));
+	    	// 默认text.in.class=false时，文本也放在类中，两种输出的类都可以缓存
+	    	assertEquals(2, countKeys(dir));
+    	} finally {
+    		if (engine != null) {
+    			engine.destroy();
+    		}
+    		delete(dir);
+    	}
+    }
+
+    private static int countKeys(File dir) {
+    	int count = 0;
+    	File[] files = dir.listFiles();
+    	if (files != null) {
+    		for (File file : files) {
+    			if (file.isDirectory()) {
+    				count += countKeys(file);
+    			} else if (file.getName().endsWith(".key")) {
+    				count ++;
+    			}
+    		}
+    	}
+    	return count;
+    }
+
+    private static void delete(File file) {
+    	File[] files = file.listFiles();
+    	if (files != null) {
+    		for (File child : files) {
+    			delete(child);
+    		}
+    	}
+    	file.delete();
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * EncodingTest
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class EncodingTest extends TestCase {
+
+	// xml special chars, latin1, chinese, surrogate pair, and the malformed surrogates, also before the xml special chars
+	private static final String VALUE = "a<b>&\"c'déÿĀ中文😀\uD800x\uDC00y\uD800<script>\uD800&\uD800";
+
+    @Test
+    public void testOutputEncoding() throws Exception {
+    	StringBuilder buf = new StringBuilder();
+    	for (int i = 0; i < 300; i ++) {
+    		buf.append(VALUE);
+    	}
+    	String[] values = new String[] { "", VALUE, buf.toString() };
+    	String[] encodings = new String[] { "UTF-8", "ISO-8859-1", "US-ASCII", "GBK" };
+    	for (String encoding : encodings) {
+    		Properties properties = new Properties();
+    		properties.setProperty("output.encoding", encoding);
+    		Engine engine = Engine.getEngine("httl-" + encoding + ".properties", properties);
+    		engine.addResource("/encoding.httl", "<!--#var(String value)-->${value}|$!{value}");
+    		Template template = engine.getTemplate("/encoding.httl");
+    		for (String value : values) {
+    			Map<String, Object> parameters = new HashMap<String, Object>();
+    			parameters.put("value", value);
+    			ByteArrayOutputStream output = new ByteArrayOutputStream();
+    			template.render(parameters, output);
+    			byte[] expected = (StringUtils.escapeXml(value) + "|" + value).getBytes(encoding);
+    			assertTrue(encoding + ": " + value, Arrays.equals(expected, output.toByteArray()));
+    		}
+    	}
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.engines.DefaultEngine;
+import httl.spi.engines.EngineStatistics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * EngineMBeanTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class EngineMBeanTest extends TestCase {
+
+    @Test
+    public void testStatisticsAndInvalidate() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("statistics", EngineStatistics.class.getName());
+    	properties.setProperty("jmx.enabled", "true");
+    	Engine engine = Engine.getEngine("httl-mbean.properties", properties);
+    	engine.addResource("/mbean.httl", "hello");
+    	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    	ObjectName name = new ObjectName("httl:type=Engine,name=" + ObjectName.quote("httl-mbean.properties"));
+    	assertTrue(server.isRegistered(name));
+    	server.invoke(name, "resetStatistics", new Object[0], new String[0]);
+    	engine.getTemplate("/mbean.httl");
+    	engine.getTemplate("/mbean.httl");
+    	assertEquals(1L, server.getAttribute(name, "TemplateHitCount"));
+    	assertEquals(1L, server.getAttribute(name, "TemplateMissCount"));
+    	assertEquals(1L, server.getAttribute(name, "CompileCount"));
+    	long[] histogram = (long[]) server.getAttribute(name, "CompileLatencyHistogram");
+    	long total = 0;
+    	for (long count : histogram) {
+    		total += count;
+    	}
+    	assertEquals(1L, total);
+    	server.invoke(name, "invalidateTemplate", new Object[] { "/mbean.httl" }, new String[] { String.class.getName() });
+    	engine.getTemplate("/mbean.httl");
+    	assertEquals(2L, server.getAttribute(name, "TemplateMissCount"));
+    	assertEquals(1L, server.getAttribute(name, "CompileCount")); // 模板未修改，重新解析时复用已编译的类
+    	engine.destroy();
+    	assertFalse(server.isRegistered(name));
+    	// 销毁后，同一配置重新创建引擎
+    	Engine recreated = Engine.getEngine("httl-mbean.properties", properties);
+    	assertNotSame(engine, recreated);
+    	recreated.destroy();
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+    	assertNull(((DefaultEngine) Engine.getEngine()).getStatistics());
+    	Properties properties = new Properties();
+    	properties.setProperty("statistics", EngineStatistics.class.getName());
+    	Engine engine = Engine.getEngine("httl-mbean-disabled.properties", properties);
+    	ObjectName name = new ObjectName("httl:type=Engine,name=" + ObjectName.quote("httl-mbean-disabled.properties"));
+    	assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    	// 统计不依赖JMX，由编译器记录，包括首次渲染另一种输出时的延迟编译
+    	EngineStatistics statistics = ((DefaultEngine) engine).getStatistics();
+    	engine.addResource("/lazy.httl", "hello");
+    	Template template = engine.getTemplate("/lazy.httl");
+    	long count = statistics.getCompileCount();
+    	template.render(new HashMap<String, Object>(), new ByteArrayOutputStream());
+    	template.render(new HashMap<String, Object>(), new StringWriter());
+    	assertTrue(statistics.getCompileCount() > count);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Expression;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * ExpressionTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ExpressionTest extends TestCase {
+
+    @Test
+    public void testShareEvaluatorClass() throws Exception {
+    	Engine engine = Engine.getEngine("httl-expression.properties", new Properties());
+    	Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+    	types.put("price", int.class);
+    	types.put("name", String.class);
+    	Expression expression1 = engine.getExpression("price > 10 && name != \"a\"", types);
+    	Expression expression2 = engine.getExpression("price>20  &&  name != \"b\"", types);
+    	Expression expression3 = engine.getExpression("price >= 20 && name != \"b\"", types);
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("price", 15);
+    	parameters.put("name", "b");
+    	assertEquals(Boolean.TRUE, expression1.evaluate(parameters));
+    	assertEquals(Boolean.FALSE, expression2.evaluate(parameters));
+    	assertEquals(Boolean.FALSE, expression3.evaluate(parameters));
+    	assertSame(getEvaluatorClass(expression1), getEvaluatorClass(expression2));
+    	assertNotSame(getEvaluatorClass(expression1), getEvaluatorClass(expression3));
+    }
+
+    @Test
+    public void testTypeSpecializedVariants() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("expression.cache.variants", "1");
+    	Engine engine = Engine.getEngine("httl-expression-variants.properties", properties);
+    	Map<String, Class<?>> intTypes = new HashMap<String, Class<?>>();
+    	intTypes.put("value", int.class);
+    	Map<String, Class<?>> stringTypes = new HashMap<String, Class<?>>();
+    	stringTypes.put("value", String.class);
+    	Expression specialized = engine.getExpression("value.toString().length()", intTypes);
+    	Expression generic = engine.getExpression("value.toString().length()", stringTypes);
+    	assertSame(specialized, engine.getExpression("value.toString().length()", new HashMap<String, Class<?>>(intTypes)));
+    	assertSame(generic, engine.getExpression("value.toString().length()", stringTypes));
+    	assertNotSame(specialized, generic);
+    	assertEquals(Object.class, generic.getParameterTypes().get("value"));
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("value", 123);
+    	assertEquals(3, specialized.evaluate(parameters));
+    	assertEquals(3, generic.evaluate(parameters));
+    	parameters.put("value", "abcd");
+    	assertEquals(4, generic.evaluate(parameters));
+    	parameters.put("value", java.util.Arrays.asList("a", "b"));
+    	assertEquals(6, generic.evaluate(parameters));
+    }
+
+    private static Class<?> getEvaluatorClass(Expression expression) throws Exception {
+    	Field field = expression.getClass().getDeclaredField("evaluator");
+    	field.setAccessible(true);
+    	return field.get(expression).getClass();
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.caches.FragmentCache;
+import httl.spi.engines.DefaultEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * FragmentCacheTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class FragmentCacheTest extends TestCase {
+
+    @Test
+    public void testCacheFragment() throws Exception {
+    	for (String stream : new String[] { "false", "true" }) {
+	    	Properties properties = new Properties();
+	    	properties.setProperty("output.stream", stream);
+	    	properties.setProperty("output.writer", String.valueOf(! Boolean.parseBoolean(stream)));
+	    	Engine engine = Engine.getEngine("httl-fragment-" + stream + ".properties", properties);
+	    	engine.addResource("/fragment.httl", "<!--#var(String key, int n)-->[<!--#cache(key, 60000)-->${n}<!--#end-->]${n}");
+	    	Template template = engine.getTemplate("/fragment.httl");
+	    	FragmentCache cache = ((DefaultEngine) engine).getFragmentCache();
+	    	assertEquals("[1]1", render(template, "a", 1, stream));
+	    	assertEquals("[1]2", render(template, "a", 2, stream));
+	    	assertEquals("[3]3", render(template, "b", 3, stream));
+	    	assertEquals(1, cache.getHitCount());
+	    	assertEquals(2, cache.getMissCount());
+	    	assertEquals(2, cache.size());
+    	}
+    }
+
+    @Test
+    public void testBoundedBySize() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("output.stream", "false");
+    	properties.setProperty("fragment.cache.capacity", "100");
+    	Engine engine = Engine.getEngine("httl-fragment-size.properties", properties);
+    	engine.addResource("/size.httl", "<!--#var(String key, int n)--><!--#cache(key, 60000)-->${key}<!--#end-->");
+    	Template template = engine.getTemplate("/size.httl");
+    	FragmentCache cache = ((DefaultEngine) engine).getFragmentCache();
+    	StringBuilder key = new StringBuilder();
+    	for (int i = 0; i < 20; i ++) {
+    		key.append('x');
+    	}
+    	for (int i = 0; i < 10; i ++) { // 每个片段40字节，容量100字节最多保留两个
+    		render(template, key.toString() + i, i, "false");
+    	}
+    	assertTrue(cache.size() <= 2);
+    	assertTrue(cache.getEvictionCount() >= 8);
+    }
+
+    private static String render(Template template, String key, int n, String stream) throws Exception {
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("key", key);
+    	parameters.put("n", n);
+    	if ("true".equals(stream)) {
+    		ByteArrayOutputStream output = new ByteArrayOutputStream();
+    		template.render(parameters, output);
+    		return new String(output.toByteArray());
+    	}
+    	StringWriter writer = new StringWriter();
+    	template.render(parameters, writer);
+    	return writer.toString();
+    }
+
+}
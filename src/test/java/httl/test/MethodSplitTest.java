@@ -0,0 +1,124 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.test.model.Book;
+import httl.util.ClassUtils;
+import httl.util.IOUtils;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * MethodSplitTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class MethodSplitTest extends TestCase {
+
+    @Test
+    public void testSplitMethod() throws Exception {
+    	StringBuilder source = new StringBuilder();
+    	source.append("<!--#var(httl.test.model.Book[] books)-->\n");
+    	source.append("<!--#set(int total = 0)-->\n");
+    	for (int i = 0; i < 40; i ++) {
+    		source.append("<table>\n");
+    		source.append("<!--#foreach(book in books)-->\n");
+    		source.append("<!--#breakif(foreach.count > " + (i % 5 + 1) + ")-->\n");
+    		source.append("<tr><td>${foreach.count}</td><td>${book.title}</td><td>${book.author}</td>\n");
+    		source.append("<!--#if(book.price > 60)--><td>${book.price * book.discount / 100}</td>\n");
+    		source.append("<!--#else--><td>${book.publisher}</td><!--#end--></tr>\n");
+    		source.append("<!--#end-->\n");
+    		source.append("</table>\n");
+    		if (i % 10 == 0) {
+    			source.append("<!--#set(total = total + books.length)-->${total}\n");
+    		}
+    	}
+    	Book[] books = new Book[10];
+    	for (int i = 0; i < books.length; i ++) {
+    		books[i] = new Book("Book" + i, "Author" + i, "Publisher" + i, new Date(0), 50 + i * 2, 80);
+    	}
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("books", books);
+
+    	Template expected = getTemplate("httl-nosplit.properties", 0, source.toString());
+    	Template actual = getTemplate("httl-split.properties", 2000, source.toString());
+    	assertEquals(render(expected, parameters), render(actual, parameters));
+
+    	Map<String, Integer> expectedLengths = getMethodCodeLengths(expected);
+    	Map<String, Integer> actualLengths = getMethodCodeLengths(actual);
+    	if (expectedLengths == null || actualLengths == null) { // 不能读取字节码的编译器
+    		return;
+    	}
+    	int max = 0;
+    	for (Map.Entry<String, Integer> entry : expectedLengths.entrySet()) {
+    		if (entry.getKey().startsWith("doRender")) {
+    			max = Math.max(max, entry.getValue());
+    		}
+    	}
+    	assertTrue("not split doRender " + max + "bytes", max > ClassUtils.HUGE_METHOD_LIMIT);
+    	int count = 0;
+    	for (Map.Entry<String, Integer> entry : actualLengths.entrySet()) {
+    		if (entry.getKey().startsWith("doRender")) {
+    			count ++;
+    			assertTrue(entry.getKey() + " " + entry.getValue() + "bytes", entry.getValue() < ClassUtils.HUGE_METHOD_LIMIT);
+    		}
+    	}
+    	assertTrue(count > 1);
+    }
+
+    private static Template getTemplate(String config, int length, String source) throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("output.stream", "false");
+    	if (length > 0) {
+    		properties.setProperty("split.method.length", String.valueOf(length));
+    	}
+    	Engine engine = Engine.getEngine(config, properties);
+    	engine.addResource("/split.httl", source);
+    	return engine.getTemplate("/split.httl");
+    }
+
+    private static String render(Template template, Map<String, Object> parameters) throws Exception {
+    	StringWriter writer = new StringWriter();
+    	template.render(parameters, writer);
+    	return writer.toString();
+    }
+
+    private static Map<String, Integer> getMethodCodeLengths(Template template) throws Exception {
+    	Class<?> cls = template.getClass();
+    	InputStream in = cls.getClassLoader().getResourceAsStream(cls.getName().replace('.', '/') + ".class");
+    	if (in == null) {
+    		return null;
+    	}
+    	try {
+    		return ClassUtils.getMethodCodeLengths(IOUtils.readToBytes(in));
+    	} finally {
+    		in.close();
+    	}
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.caches.PageCache;
+import httl.spi.engines.DefaultEngine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * PageCacheTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class PageCacheTest extends TestCase {
+
+    @Test
+    public void testCachePage() throws Exception {
+    	for (String stream : new String[] { "false", "true" }) {
+	    	Properties properties = new Properties();
+	    	properties.setProperty("output.stream", stream);
+	    	properties.setProperty("output.writer", String.valueOf(! Boolean.parseBoolean(stream)));
+	    	properties.setProperty("page.cache", PageCache.class.getName());
+	    	Engine engine = Engine.getEngine("httl-page-" + stream + ".properties", properties);
+	    	engine.addResource("/page.httl", "<!--#var(String name, int n)-->${name}:${n}");
+	    	Template template = engine.getTemplate("/page.httl");
+	    	PageCache cache = ((DefaultEngine) engine).getPageCache();
+	    	assertEquals("a:1", render(template, "a", 1, stream));
+	    	assertEquals("a:1", render(template, "a", 1, stream));
+	    	assertEquals("a:2", render(template, "a", 2, stream));
+	    	assertEquals("b:2", render(template, "b", 2, stream));
+	    	assertEquals(1, cache.getHitCount());
+	    	assertEquals(3, cache.getMissCount());
+	    	assertEquals(3, cache.size());
+	    	// 可变的参数值不缓存
+	    	engine.addResource("/mutable.httl", "<!--#var(int[] ns)-->${ns[0]}");
+	    	Map<String, Object> parameters = new HashMap<String, Object>();
+	    	parameters.put("ns", new int[] { 1 });
+	    	assertEquals("1", render(engine.getTemplate("/mutable.httl"), parameters, stream));
+	    	assertEquals(3, cache.getMissCount());
+	    	// 包含的模板读取了页面声明以外的参数，不能按页面声明的参数缓存
+	    	engine.addResource("/user.httl", "<!--#var(String user)-->Hello ${user}");
+	    	engine.addResource("/home.httl", "<!--#var(String title)-->${title}: ${include(\"/user.httl\")}");
+	    	Template home = engine.getTemplate("/home.httl");
+	    	parameters = new HashMap<String, Object>();
+	    	parameters.put("title", "Home");
+	    	parameters.put("user", "alice");
+	    	assertEquals("Home: Hello alice", render(home, parameters, stream));
+	    	parameters.put("user", "bob");
+	    	assertEquals("Home: Hello bob", render(home, parameters, stream));
+	    	assertEquals(3, cache.size());
+    	}
+    }
+
+    private static String render(Template template, String name, int n, String stream) throws Exception {
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("name", name);
+    	parameters.put("n", n);
+    	return render(template, parameters, stream);
+    }
+
+    private static String render(Template template, Map<String, Object> parameters, String stream) throws Exception {
+    	if ("true".equals(stream)) {
+    		ByteArrayOutputStream output = new ByteArrayOutputStream();
+    		template.render(parameters, output);
+    		return new String(output.toByteArray());
+    	}
+    	StringWriter writer = new StringWriter();
+    	template.render(parameters, writer);
+    	return writer.toString();
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * ReloadTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ReloadTest extends TestCase {
+
+    @Test
+    public void testUnloadReloadedClasses() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("reloadable", "true");
+    	properties.setProperty("precompiled", "false");
+    	properties.setProperty("output.stream", "false");
+    	Engine engine = Engine.getEngine("httl-reload.properties", properties);
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("name", "world");
+    	List<WeakReference<Class<?>>> classes = new ArrayList<WeakReference<Class<?>>>();
+    	int count = 10;
+    	for (int i = 0; i < count; i ++) {
+    		Thread.sleep(10); // 保证每次修改的时间不同
+    		engine.addResource("/reload.httl", "<!--#var(String name)--><!--#macro(hello(String s))-->Hello ${s} " + i + "<!--#end-->${hello(name)}");
+    		Template template = engine.getTemplate("/reload.httl");
+    		StringWriter writer = new StringWriter();
+    		template.render(parameters, writer);
+    		assertEquals("Hello world " + i, writer.toString());
+    		classes.add(new WeakReference<Class<?>>(template.getClass()));
+    		classes.add(new WeakReference<Class<?>>(template.getMacros().get("hello").getClass()));
+    	}
+    	// 最后一次加载的模板仍在缓存中，之前的模板类和宏类都应被回收
+    	List<WeakReference<Class<?>>> reloaded = classes.subList(0, classes.size() - 2);
+    	for (int i = 0; i < 50 && getLoaded(reloaded) > 0; i ++) {
+    		System.gc();
+    		Thread.sleep(100);
+    	}
+    	assertEquals(0, getLoaded(reloaded));
+    	assertNotNull(classes.get(classes.size() - 1).get());
+    }
+
+    private static int getLoaded(List<WeakReference<Class<?>>> classes) {
+    	int loaded = 0;
+    	for (WeakReference<Class<?>> cls : classes) {
+    		if (cls.get() != null) {
+    			loaded ++;
+    		}
+    	}
+    	return loaded;
+    }
+
+}
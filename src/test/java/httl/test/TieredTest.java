@@ -0,0 +1,108 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Expression;
+import httl.Template;
+import httl.spi.parsers.template.TieredTemplate;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * TieredTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TieredTest extends TestCase {
+
+    @Test
+    public void testInterpretThenCompile() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("template.compile.threshold", "2");
+    	properties.setProperty("output.stream", "false");
+    	Engine engine = Engine.getEngine("httl-tiered.properties", properties);
+    	engine.addResource("/tiered.httl", "<!--#var(String name, int[] numbers)--><!--#set(int sum = 0)-->"
+    			+ "<!--#foreach(int n in numbers)--><!--#if(n > 2)--><!--#breakif(n > 3)-->${n}<!--#else-->-<!--#end--><!--#set(sum = sum + n)--><!--#end-->"
+    			+ " ${name}:${sum}");
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("name", "sum");
+    	parameters.put("numbers", new int[] { 1, 2, 3, 4 });
+    	Template template = engine.getTemplate("/tiered.httl");
+    	assertTrue(template instanceof TieredTemplate);
+    	TieredTemplate tiered = (TieredTemplate) template;
+    	assertFalse(tiered.isCompiled());
+    	for (int i = 0; i < 50 && ! tiered.isCompiled(); i ++) {
+    		assertEquals("--3 sum:6", render(template, parameters));
+    		Thread.sleep(100);
+    	}
+    	assertTrue(tiered.isCompiled());
+    	assertEquals("--3 sum:6", render(template, parameters));
+    	assertEquals(Arrays.asList("name", "numbers"), new ArrayList<String>(template.getParameterTypes().keySet()));
+    }
+
+    @Test
+    public void testKeepInterpretingAfterDestroy() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("template.compile.threshold", "1");
+    	properties.setProperty("output.stream", "false");
+    	Engine engine = Engine.getEngine("httl-tiered-destroy.properties", properties);
+    	engine.addResource("/destroy.httl", "<!--#var(String name)-->hello ${name}");
+    	Template template = engine.getTemplate("/destroy.httl");
+    	engine.destroy();
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("name", "httl");
+    	for (int i = 0; i < 3; i ++) { // 编译线程已停止，仍解释执行
+    		assertEquals("hello httl", render(template, parameters));
+    	}
+    	Thread.sleep(200);
+    	assertFalse(((TieredTemplate) template).isCompiled());
+    }
+
+    @Test
+    public void testInterpretThenCompileExpression() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("expression.compile.threshold", "3");
+    	Engine engine = Engine.getEngine("httl-tiered-expression.properties", properties);
+    	Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+    	types.put("price", int.class);
+    	types.put("name", String.class);
+    	Expression expression = engine.getExpression("price > 10 ? name.toUpperCase() : \"cheap\"", types);
+    	Map<String, Object> parameters = new HashMap<String, Object>();
+    	parameters.put("name", "book");
+    	for (int i = 0; i < 5; i ++) { // 前两次解释执行，之后编译执行
+    		parameters.put("price", 10 + i);
+    		assertEquals(i == 0 ? "cheap" : "BOOK", expression.evaluate(parameters));
+    	}
+    }
+
+    private static String render(Template template, Map<String, Object> parameters) throws Exception {
+    	StringWriter writer = new StringWriter();
+    	template.render(parameters, writer);
+    	return writer.toString();
+    }
+
+}
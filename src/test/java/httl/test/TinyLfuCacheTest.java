@@ -0,0 +1,102 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.caches.TemplateTinyLfuCache;
+import httl.spi.caches.TinyLfuCache;
+import httl.spi.compilers.AbstractCompiler;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * TinyLfuCacheTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class TinyLfuCacheTest extends TestCase {
+
+    @Test
+    public void testScanResistant() throws Exception {
+    	TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>();
+    	cache.setCacheMaximumWeight(100);
+    	cache.setCachePinned(new String[] { "pinned" });
+    	cache.put("pinned", "pinned");
+    	for (int n = 0; n < 20; n ++) {
+    		for (int i = 0; i < 10; i ++) {
+    			if (cache.get("hot" + i) == null) {
+    				cache.putIfAbsent("hot" + i, "hot" + i);
+    			}
+    		}
+    	}
+    	for (int i = 0; i < 10000; i ++) { // 爬虫扫描冷门页面，同时热门页面仍被访问
+    		if (cache.get("cold" + i) == null) {
+    			cache.putIfAbsent("cold" + i, "cold" + i);
+    		}
+    		if (i % 10 == 0) {
+    			cache.get("hot" + (i / 10 % 10));
+    		}
+    	}
+    	for (int i = 0; i < 10; i ++) {
+    		assertEquals("hot" + i, cache.get("hot" + i));
+    	}
+    	assertEquals("pinned", cache.get("pinned"));
+    	assertTrue(cache.size() <= 100);
+    	assertTrue(cache.getWeightedSize() <= 100);
+    	assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void testWeighTemplate() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("template.cache", TemplateTinyLfuCache.class.getName());
+    	Engine engine = Engine.getEngine("httl-tinylfu.properties", properties);
+    	engine.addResource("/tinylfu.httl", "<!--#var(String name)-->hello ${name}");
+    	assertEquals("hello world", engine.getTemplate("/tinylfu.httl").evaluate(java.util.Collections.<String, Object>singletonMap("name", "world")).toString());
+    	engine.getTemplate("/tinylfu.httl");
+    	Field field = engine.getClass().getDeclaredField("templateCache");
+    	field.setAccessible(true);
+    	TemplateTinyLfuCache<?, ?> cache = (TemplateTinyLfuCache<?, ?>) field.get(engine);
+    	assertEquals(1, cache.size());
+    	assertTrue(cache.getWeightedSize() > "hello ${name}".length());
+    }
+
+    @Test
+    public void testWeighBytecode() throws Exception {
+    	Properties properties = new Properties();
+    	properties.setProperty("template.cache", TemplateTinyLfuCache.class.getName());
+    	properties.setProperty("output.stream", "false");
+    	Engine engine = Engine.getEngine("httl-tinylfu-bytecode.properties", properties);
+    	engine.addResource("/bytecode.httl", "<!--#var(String name)-->hello ${name}");
+    	Template template = engine.getTemplate("/bytecode.httl");
+    	engine.getTemplate("/bytecode.httl"); // 编译完成后再次访问时计算权重
+    	// 编译器定义类后不再持有字节码，按定义时记录的长度计算
+    	int length = AbstractCompiler.getBytecodeLength(template.getClass());
+    	assertTrue(length > 0);
+    	Field field = engine.getClass().getDeclaredField("templateCache");
+    	field.setAccessible(true);
+    	TemplateTinyLfuCache<?, ?> cache = (TemplateTinyLfuCache<?, ?>) field.get(engine);
+    	assertEquals(template.getLength() + length, cache.getWeightedSize());
+    }
+
+}
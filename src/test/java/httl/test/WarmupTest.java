@@ -0,0 +1,91 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.util.IOUtils;
+
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * WarmupTest
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class WarmupTest extends TestCase {
+
+    @Test
+    public void testRecordAndWarmup() throws Exception {
+    	File file = File.createTempFile("httl-hot", ".txt");
+    	file.delete();
+    	Engine engine = null;
+    	Engine engine2 = null;
+    	try {
+	    	Properties properties = new Properties();
+	    	properties.setProperty("warmup.file", file.getAbsolutePath());
+	    	properties.setProperty("warmup.interval", "50");
+	    	properties.setProperty("warmup.limit", "1");
+	    	properties.setProperty("statistics", "httl.spi.engines.EngineStatistics");
+	    	properties.setProperty("jmx.enabled", "true");
+	    	engine = Engine.getEngine("httl-warmup.properties", properties);
+	    	engine.getTemplate("/templates/bit.httl");
+	    	engine.getTemplate("/templates/bit.httl");
+	    	engine.getTemplate("/templates/decimal.httl");
+	    	String expected = "2 /templates/bit.httl\n1 /templates/decimal.httl\n";
+	    	String content = "";
+	    	for (int i = 0; i < 100 && content.indexOf(expected) < 0; i ++) { // 等待定时保存
+	    		Thread.sleep(50);
+	    		if (file.exists()) {
+	    			content = IOUtils.readToString(new FileReader(file));
+	    		}
+	    	}
+	    	assertTrue(content, content.indexOf(expected) >= 0);
+	
+	    	engine2 = Engine.getEngine("httl-warmup2.properties", properties);
+	    	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    	ObjectName name = new ObjectName("httl:type=Engine,name=" + ObjectName.quote("httl-warmup2.properties"));
+	    	assertEquals(1, server.getAttribute(name, "PrecompileTotal"));
+	    	for (int i = 0; i < 100 && ((Integer) server.getAttribute(name, "PrecompiledCount")).intValue() < 1; i ++) {
+	    		Thread.sleep(50);
+	    	}
+	    	assertEquals(1, server.getAttribute(name, "PrecompiledCount"));
+	    	assertEquals(1L, server.getAttribute(name, "CompileCount"));
+	    	assertEquals(0L, server.getAttribute(name, "TemplateHitCount"));
+    	} finally {
+    		// 停止定时保存后，再删除记录文件
+    		if (engine != null) {
+    			engine.destroy();
+    		}
+    		if (engine2 != null) {
+    			engine2.destroy();
+    		}
+    		file.delete();
+    		new File(file.getPath() + ".tmp").delete();
+    	}
+    }
+
+}
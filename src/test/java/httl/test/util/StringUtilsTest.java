@@ -17,6 +17,10 @@
 package httl.test.util;
 
 import httl.util.StringUtils;
+import httl.util.UnsafeStringWriter;
+
+import java.io.IOException;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
@@ -38,6 +42,17 @@ public class StringUtilsTest {
 		Assert.assertEquals("a&lt;table border=&quot;0&quot; color=&apos;red&apos;&gt;b&amp;lt;c&lt;/table&gt;d", StringUtils.escapeHtml("a<table border=\"0\" color=\'red\'>b&lt;c</table>d"));
 	}
 
+	@Test
+	public void testEscapeHtmlStream() throws IOException {
+		UnsafeStringWriter writer = new UnsafeStringWriter();
+		StringUtils.escapeHtml("a<table border=\"0\" color=\'red\'>b&lt;c</table>d", writer);
+		Assert.assertEquals("a&lt;table border=&quot;0&quot; color=&apos;red&apos;&gt;b&amp;lt;c&lt;/table&gt;d", writer.toString());
+		StringBuilder builder = new StringBuilder();
+		StringUtils.escapeHtml(new StringBuilder("<a>b"), builder);
+		StringUtils.escapeHtml("abc", builder);
+		Assert.assertEquals("&lt;a&gt;babc", builder.toString());
+	}
+
 	@Test
 	public void testUnescapeHtml() {
 		Assert.assertEquals("a<table border=\"0\" color=\'red\'>b&lt;c</table>d", StringUtils.unescapeHtml("a&lt;table border=&quot;0&quot; color=&apos;red&apos;&gt;b&amp;lt;c&lt;/table&gt;d"));